@@ -0,0 +1,178 @@
+package com.gruegames.lambda_sns_ec2_scaling;
+
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.gruegames.lambda_sns_ec2_scaling.alerts.AlertHandler;
+import com.gruegames.lambda_sns_ec2_scaling.alerts.slack.SlackAlertImpl;
+import com.gruegames.lambda_sns_ec2_scaling.ec2.EC2InstanceHandler;
+import com.gruegames.lambda_sns_ec2_scaling.enums.Type;
+import com.gruegames.lambda_sns_ec2_scaling.helper.AWSHelper;
+import com.gruegames.lambda_sns_ec2_scaling.helper.HttpTransport;
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.Message;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.MessageTypeAdapter;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.Response;
+import com.gruegames.lambda_sns_ec2_scaling.sns.SNSEnvelope;
+import com.gruegames.lambda_sns_ec2_scaling.sns.SNSSignatureVerifier;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+// The part shared by every entry point: set up the handlers once, then verify, decode and dispatch
+// one SNS notification at a time. LambdaFunction feeds it SNS records, the queue worker feeds it
+// notifications read from a queue.
+public class NotificationProcessor {
+    private static final Logger logger = Logger.getLogger(NotificationProcessor.class);
+    private static final long ALERT_FLUSH_TIMEOUT_MILLIS = 10000;
+    // what SNS delivers for a launch, only used to warm the decoding and verification code
+    private static final String PRIME_ENVELOPE = "{\"Type\":\"Notification\",\"MessageId\":\"prime\"," +
+            "\"TopicArn\":\"arn:aws:sns:us-east-1:000000000000:prime\",\"Subject\":\"Auto Scaling: launch\"," +
+            "\"Message\":\"{\\\"Event\\\":\\\"autoscaling:EC2_INSTANCE_LAUNCH\\\",\\\"EC2InstanceId\\\":\\\"i-00000000\\\"," +
+            "\\\"ActivityId\\\":\\\"prime\\\",\\\"StartTime\\\":\\\"2016-01-01T00:00:00.000Z\\\"," +
+            "\\\"Details\\\":{\\\"Availability Zone\\\":\\\"us-east-1a\\\"}}\"," +
+            "\"Timestamp\":\"2016-01-01T00:00:00.000Z\",\"SignatureVersion\":\"1\"}";
+
+    private static volatile boolean initialized = false;
+
+    private NotificationProcessor() {}
+
+    // Build the handler registries once per process. Returns true only for the call that did the work.
+    public static boolean initialize() {
+        if(initialized) {
+            return false;
+        }
+
+        synchronized (NotificationProcessor.class) {
+            if(initialized) {
+                return false;
+            }
+
+            long start = System.currentTimeMillis();
+            registerAlerts();
+            registerEC2Instances();
+            initialized = true;
+
+            long took = System.currentTimeMillis() - start;
+            logStartup(String.format("Initialized handlers in %d ms", took));
+            Metrics.recordMillis("init", took);
+            return true;
+        }
+    }
+
+    // Set PRIME_ON_INIT=true to prime while the function initializes, so a runtime snapshot taken
+    // after init already has everything loaded
+    public static boolean isPrimeOnInit() {
+        return Boolean.parseBoolean(System.getenv("PRIME_ON_INIT"));
+    }
+
+    // Load and exercise what the first notification would otherwise pay for: JSON decoding,
+    // signature verification and the AWS and HTTP clients. Nothing is sent anywhere.
+    public static void prime() {
+        initialize();
+        long start = System.currentTimeMillis();
+
+        SNSEvent.SNS sample = SNSEnvelope.parse(PRIME_ENVELOPE);
+        try {
+            MessageTypeAdapter.parse(sample.getMessage());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not prime message decoding", e);
+        }
+        SNSSignatureVerifier.prime(sample);
+        for(Region region : AWSHelper.getReconcileRegions()) {
+            AWSHelper.getEC2Client(region);
+        }
+        HttpTransport.getClient();
+
+        logStartup(String.format("Primed in %d ms", System.currentTimeMillis() - start));
+    }
+
+    // Check, decode and dispatch a single SNS notification. Failures are reported, never thrown.
+    public static Response.RecordResult process(SNSEvent.SNS sns) {
+        return process(sns, null, null);
+    }
+
+    // Confirmations are only verified and logged, subscribing is left to whoever set up the topic.
+    // Their SubscribeURL and Token are signed too and only come with a queue envelope.
+    public static Response.RecordResult process(SNSEvent.SNS sns, String subscribeUrl, String token) {
+        String messageId = sns == null ? null : sns.getMessageId();
+
+        try {
+            Type type = Type.getFromString(sns.getType());
+            switch (type) {
+                case Notification:
+                    if (SNSSignatureVerifier.isSupportedVersion(sns.getSignatureVersion())) {
+                        // Check the signature and throw an exception if the signature verification fails.
+                        long verifyStart = Metrics.start();
+                        boolean valid = SNSSignatureVerifier.isMessageSignatureValid(sns);
+                        Metrics.record("sns.verify", verifyStart);
+                        if (valid) {
+                            logger.info(String.format("Signature verification succeeded for %s", messageId));
+                            Message message = MessageTypeAdapter.parse(sns.getMessage());
+                            if(message == null) {
+                                throw new IllegalArgumentException("Empty SNS message");
+                            }
+
+                            if("autoscaling:TEST_NOTIFICATION".equals(message.getEvent())) {
+                                logger.info("Ignoring test notification");
+                                return new Response.RecordResult(messageId, "Success", null);
+                            }
+
+                            message.region = AWSHelper.getRegionNameFromArn(sns.getTopicArn());
+                            EC2InstanceHandler.processEvent(message);
+                        } else {
+                            logger.warn(String.format("Signature verification failed for %s", messageId));
+                            throw new SecurityException("Signature verification failed.");
+                        }
+                    } else {
+                        logger.warn("Unexpected signature version. Unable to verify signature.");
+                        throw new SecurityException("Unexpected signature version. Unable to verify signature.");
+                    }
+                    break;
+                case SubscriptionConfirmation:
+                case UnsubscribeConfirmation:
+                    if (!SNSSignatureVerifier.isSupportedVersion(sns.getSignatureVersion())
+                            || !SNSSignatureVerifier.isConfirmationSignatureValid(sns, subscribeUrl, token)) {
+                        logger.warn(String.format("Signature verification failed for %s %s", type, messageId));
+                        throw new SecurityException("Signature verification failed.");
+                    }
+                    logger.info(String.format("%s for %s, confirm it at %s", type, sns.getTopicArn(), subscribeUrl));
+                    break;
+                default:
+                    return new Response.RecordResult(messageId, "Failed", "Invalid SNS message type");
+            }
+        } catch (Exception e) {
+            logger.error(String.format("Could not process SNS record %s", messageId), e);
+            return new Response.RecordResult(messageId, "Failed", e.getLocalizedMessage());
+        }
+
+        return new Response.RecordResult(messageId, "Success", null);
+    }
+
+    // Push out what was collected in the background: queued alerts, transport stats and metrics
+    public static void flush(String source) {
+        if(!AlertHandler.flush(ALERT_FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            logger.warn("Timed out flushing alerts");
+        }
+        HttpTransport.logStats();
+        Metrics.emit(source);
+    }
+
+    // Classes loaded and JVM uptime so far, compare these across builds to see what a cold start costs
+    private static void logStartup(String message) {
+        logger.info(String.format("%s, %d classes loaded, JVM up %d ms", message,
+                ManagementFactory.getClassLoadingMXBean().getLoadedClassCount(),
+                ManagementFactory.getRuntimeMXBean().getUptime()));
+    }
+
+    private static void registerAlerts()
+    {
+        AlertHandler.register(SlackAlertImpl.class);
+    }
+
+    private static void registerEC2Instances()
+    {
+        EC2InstanceHandler.loadServices();
+    }
+}
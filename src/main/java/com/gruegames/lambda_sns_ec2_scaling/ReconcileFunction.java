@@ -0,0 +1,70 @@
+package com.gruegames.lambda_sns_ec2_scaling;
+
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.gruegames.lambda_sns_ec2_scaling.alerts.AlertHandler;
+import com.gruegames.lambda_sns_ec2_scaling.ec2.EC2InstanceHandler;
+import com.gruegames.lambda_sns_ec2_scaling.ec2.Fleet;
+import com.gruegames.lambda_sns_ec2_scaling.helper.AWSHelper;
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.Response;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Scheduled sweep that repairs whatever lost SNS notifications left behind. Point a CloudWatch
+// Events schedule at 'com.gruegames.lambda_sns_ec2_scaling.ReconcileFunction::handleRequest'.
+public class ReconcileFunction implements RequestHandler<Map<String, Object>, Response> {
+    private static final Logger logger = Logger.getLogger(ReconcileFunction.class);
+
+    @Override
+    public Response handleRequest(Map<String, Object> event, Context context) {
+        String eventId = event == null || event.get("id") == null ? null : String.valueOf(event.get("id"));
+        boolean coldStart = NotificationProcessor.initialize();
+        long start = System.currentTimeMillis();
+
+        Response response = new Response("Success");
+        try {
+            boolean regionsConfigured = AWSHelper.isReconcileRegionsConfigured();
+            if(!regionsConfigured) {
+                logger.warn("reconcile.regions is not set, only the default region is listed and nothing will be deleted");
+            }
+
+            EC2InstanceHandler.reconcile(new Fleet(regionsConfigured, ReconcileFunction::listFleet));
+            response.addRecord(new Response.RecordResult(eventId, "Success", null));
+        } catch (Exception e) {
+            logger.error("Reconcile failed", e);
+            AlertHandler.alert(Level.ERROR, "reconcile", String.format("Reconcile failed: %s", e.getLocalizedMessage()));
+            response.setStatus("Failed");
+            response.addRecord(new Response.RecordResult(eventId, "Failed", e.getLocalizedMessage()));
+        }
+
+        logger.info(String.format("Reconcile finished in %d ms (cold start: %s), status: %s",
+                System.currentTimeMillis() - start, coldStart, response.getStatus()));
+        Metrics.recordMillis("reconcile", System.currentTimeMillis() - start);
+        NotificationProcessor.flush(LambdaFunction.getFunctionName(context));
+        return response;
+    }
+
+    // Keys on the master are global, so every region is listed before anything is compared
+    private static void listFleet(Set<String> expected, Set<String> live) {
+        long start = System.currentTimeMillis();
+        List<String> groupNames = AWSHelper.getReconcileGroupNames();
+        for(Region region : AWSHelper.getReconcileRegions()) {
+            Set<String> regionExpected = AWSHelper.getAutoScalingInstanceIds(region, groupNames);
+            Set<String> regionLive = AWSHelper.getLiveInstanceIds(region);
+            logger.info(String.format("%s: %d InService Auto Scaling instances, %d live instances", region.getName(),
+                    regionExpected.size(), regionLive.size()));
+
+            expected.addAll(regionExpected);
+            live.addAll(regionLive);
+        }
+
+        Metrics.recordMillis("reconcile.list", System.currentTimeMillis() - start);
+        Metrics.add("reconcile.expected", expected.size());
+    }
+}
@@ -0,0 +1,221 @@
+package com.gruegames.lambda_sns_ec2_scaling.alerts;
+
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+// Sends alerts from a background thread so callers never wait on Slack. Alerts raised within a
+// short window with the same level and message template are merged into one ("37 instances:
+// Could not SSH") that lists the instance ids. The template is the error with instance ids,
+// addresses and numbers masked, so "i-0a1 timed out after 300 s" and "i-0b2 timed out after 301 s" merge.
+// The queue is bounded: when it is full new alerts are dropped and counted, and the count is
+// reported with the next batch. flush() sends whatever is queued, call it before the Lambda returns.
+class AlertDispatcher {
+    private static final Logger logger = LogManager.getLogger(AlertDispatcher.class);
+    private static final int QUEUE_CAPACITY = 1000;
+    private static final long COALESCE_WINDOW_MILLIS = 2000;
+    private static final int MAX_LISTED_INSTANCES = 10;
+    private static final int MAX_APPENDED_INSTANCES = 100;
+    private static final Pattern INSTANCE_ID = Pattern.compile("\\bi-[0-9a-f]{8,17}\\b");
+    private static final Pattern HOST = Pattern.compile("\\bip-\\d+-\\d+-\\d+-\\d+[\\w.-]*");
+    private static final Pattern ADDRESS = Pattern.compile("\\b\\d{1,3}(\\.\\d{1,3}){3}(:\\d+)?\\b");
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+
+    private static class Pending {
+        final Level level;
+        final String instanceId;
+        final String error;
+        final CountDownLatch flushed;
+
+        Pending(Level level, String instanceId, String error, CountDownLatch flushed) {
+            this.level = level;
+            this.instanceId = instanceId;
+            this.error = error;
+            this.flushed = flushed;
+        }
+    }
+
+    private static class Key {
+        final Level level;
+        final String template;
+
+        Key(Level level, String template) {
+            this.level = level;
+            this.template = template;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return level.equals(other.level) && Objects.equals(template, other.template);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(level.toInt(), template);
+        }
+    }
+
+    // Alerts merged under one key: who raised them and the first error as it was written
+    private static class Group {
+        final Set<String> instanceIds = new LinkedHashSet<>();
+        final String firstError;
+        boolean varied;
+
+        Group(String firstError) {
+            this.firstError = firstError;
+        }
+
+        void add(String instanceId, String error) {
+            instanceIds.add(instanceId);
+            varied |= !Objects.equals(firstError, error);
+        }
+    }
+
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Supplier<List<Alert>> alerts;
+
+    AlertDispatcher(Supplier<List<Alert>> alerts) {
+        this.alerts = alerts;
+
+        Thread thread = new Thread(this::run, "alert-dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void submit(Level level, String instanceId, String error) {
+        if (!queue.offer(new Pending(level, instanceId, error, null))) {
+            Metrics.increment("alert.dropped");
+            // one line when dropping starts, the rest are counted and summed up with the next batch
+            if (dropped.getAndIncrement() == 0) {
+                logger.warn(String.format("Alert queue full, dropping alerts until it drains, first: [%s] %s: %s",
+                        level, instanceId, error));
+            }
+        }
+    }
+
+    // Send everything queued so far and wait for it. The timeout covers queueing the flush and
+    // waiting for it together.
+    boolean flush(long timeout, TimeUnit unit) {
+        CountDownLatch latch = new CountDownLatch(1);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            if (!queue.offer(new Pending(null, null, null, latch), timeout, unit)) {
+                return false;
+            }
+            return latch.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Pending first = queue.take();
+                Map<Key, Group> batch = new LinkedHashMap<>();
+                List<CountDownLatch> flushes = new ArrayList<>();
+
+                long windowEnd = System.currentTimeMillis() + COALESCE_WINDOW_MILLIS;
+                Pending next = first;
+                while (next != null) {
+                    if (next.flushed != null) {
+                        // a flush ends the window early
+                        flushes.add(next.flushed);
+                        break;
+                    }
+
+                    String error = next.error;
+                    batch.computeIfAbsent(new Key(next.level, template(error)), key -> new Group(error))
+                            .add(next.instanceId, error);
+                    next = queue.poll(Math.max(0, windowEnd - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+
+                send(batch);
+                flushes.forEach(CountDownLatch::countDown);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Alert dispatcher failed to send a batch", e);
+            }
+        }
+    }
+
+    private void send(Map<Key, Group> batch) {
+        for (Map.Entry<Key, Group> entry : batch.entrySet()) {
+            Group group = entry.getValue();
+            List<String> instanceIds = new ArrayList<>(group.instanceIds);
+            if (instanceIds.size() == 1) {
+                deliver(entry.getKey().level, instanceIds.get(0), group.firstError);
+                continue;
+            }
+
+            Metrics.add("alert.merged", instanceIds.size() - 1);
+            String error = group.varied
+                    ? String.format("%s (first: %s)", entry.getKey().template, group.firstError)
+                    : group.firstError;
+            deliver(entry.getKey().level, describe(instanceIds), String.format("%s\nInstances: %s", error,
+                    list(instanceIds, MAX_APPENDED_INSTANCES)));
+        }
+
+        long droppedCount = dropped.getAndSet(0);
+        if (droppedCount > 0) {
+            logger.warn(String.format("Dropped %d alerts since the last batch, the alert queue was full", droppedCount));
+            deliver(Level.WARN, "alerts", String.format("Dropped %d alerts, the alert queue was full", droppedCount));
+        }
+    }
+
+    private void deliver(Level level, String subject, String error) {
+        for (Alert alert : alerts.get()) {
+            long start = Metrics.start();
+            try {
+                alert.sendAlert(level, subject, error);
+                Metrics.record("alert.send", start);
+            } catch (RuntimeException e) {
+                logger.error(String.format("Alert %s failed", alert.getClass().getSimpleName()), e);
+            }
+        }
+    }
+
+    private static String describe(List<String> instanceIds) {
+        return String.format("%d instances (%s)", instanceIds.size(), list(instanceIds, MAX_LISTED_INSTANCES));
+    }
+
+    private static String list(List<String> instanceIds, int max) {
+        List<String> listed = instanceIds.subList(0, Math.min(max, instanceIds.size()));
+        String more = instanceIds.size() > listed.size() ? String.format(", +%d more", instanceIds.size() - listed.size()) : "";
+        return String.join(", ", listed) + more;
+    }
+
+    // What's left of an error once the parts that differ per instance are masked
+    static String template(String error) {
+        if (error == null) {
+            return null;
+        }
+        String template = INSTANCE_ID.matcher(error).replaceAll("<instance>");
+        template = HOST.matcher(template).replaceAll("<host>");
+        template = ADDRESS.matcher(template).replaceAll("<address>");
+        return NUMBER.matcher(template).replaceAll("<n>");
+    }
+}
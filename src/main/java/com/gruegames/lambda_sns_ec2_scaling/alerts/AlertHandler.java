@@ -4,15 +4,23 @@ import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class AlertHandler {
     private static final Logger logger = LogManager.getLogger(AlertHandler.class);
-    private static ArrayList<Alert> alertList = new ArrayList<>();
+    private static final List<Alert> alertList = new CopyOnWriteArrayList<>();
+    private static final AlertDispatcher dispatcher = new AlertDispatcher(() -> alertList);
 
     private AlertHandler() {}
 
-    public static void register(Class<? extends Alert> clazz) {
+    // Registration is idempotent so a warm container never ends up with duplicate handlers
+    public static synchronized void register(Class<? extends Alert> clazz) {
+        if(isRegistered(clazz)) {
+            return;
+        }
+
         try {
             alertList.add(clazz.newInstance());
         } catch (IllegalAccessException | InstantiationException e) {
@@ -20,9 +28,17 @@ public class AlertHandler {
         }
     }
 
+    public static boolean isRegistered(Class<? extends Alert> clazz) {
+        return alertList.stream().anyMatch(registered -> registered.getClass().equals(clazz));
+    }
+
+    // Queue an alert, it is sent (and possibly merged with similar ones) in the background
     public static void alert(Level level, String instanceId, String error) {
-        for(Alert ai : alertList) {
-            ai.sendAlert(level, instanceId, error);
-        }
+        dispatcher.submit(level, instanceId, error);
+    }
+
+    // Send every queued alert, waiting up to the timeout. Returns false if they didn't all go out.
+    public static boolean flush(long timeout, TimeUnit unit) {
+        return dispatcher.flush(timeout, unit);
     }
 }
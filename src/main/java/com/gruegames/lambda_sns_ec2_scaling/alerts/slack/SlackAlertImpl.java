@@ -1,12 +1,11 @@
 package com.gruegames.lambda_sns_ec2_scaling.alerts.slack;
 
 import com.gruegames.lambda_sns_ec2_scaling.alerts.Alert;
+import com.gruegames.lambda_sns_ec2_scaling.helper.HttpTransport;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Form;
 import javax.ws.rs.core.MediaType;
@@ -43,7 +42,6 @@ public class SlackAlertImpl implements Alert {
 
     // parameters
     private Properties properties = new Properties();
-    private Client client = ClientBuilder.newClient();
     private String apiToken;
     private String url;
     private String channel;
@@ -69,11 +67,13 @@ public class SlackAlertImpl implements Alert {
 
         SlackPayload payload = new SlackPayload(apiToken, channel, userName, message);
 
-        Response response = client.target(url)
+        // the shared client is only built once the first alert goes out
+        Response response = HttpTransport.getClient().target(url)
                 .request(MediaType.APPLICATION_JSON_TYPE)
                 .post(Entity.entity(payload.getFormFromPayload(), MediaType.APPLICATION_FORM_URLENCODED_TYPE));
 
         if(response.getStatus() != 200) {
+            response.close();
             logger.error(String.format("Could not talk to Slack. HTTP Code: %s", response.getStatus()));
         } else {
             String responseJSON = response.readEntity(String.class);
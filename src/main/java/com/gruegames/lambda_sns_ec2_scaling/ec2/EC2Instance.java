@@ -1,9 +1,60 @@
 package com.gruegames.lambda_sns_ec2_scaling.ec2;
 
+import com.gruegames.lambda_sns_ec2_scaling.journal.EventProgress;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// A lifecycle handler. Implementations are found with ServiceLoader, so list them in
+// META-INF/services/com.gruegames.lambda_sns_ec2_scaling.ec2.EC2Instance and give them a public no-arg
+// constructor. All handlers run at the same time for an event.
 public interface EC2Instance {
     void create(String instanceId, String availabilityZone);
 
     void terminate(String instanceId, String availabilityZone);
 
     boolean processTerminateOnFail();
+
+    // Journal-aware variants. Implementations that can resume part way through override these,
+    // skip the steps progress says are already done and record each step they finish.
+    default void create(String instanceId, String availabilityZone, EventProgress progress) {
+        create(instanceId, availabilityZone);
+    }
+
+    default void terminate(String instanceId, String availabilityZone, EventProgress progress) {
+        terminate(instanceId, availabilityZone);
+    }
+
+    // The instance announced that it finished booting (push readiness), carry on from there
+    default void ready(String instanceId, String availabilityZone, EventProgress progress) {}
+
+    // True when create stops once the instance is known to exist and ready() does the rest. A
+    // launch lifecycle action is then held open until the ready signal has been handled.
+    default boolean awaitsReadySignal() {
+        return false;
+    }
+
+    // Stop launch work still running for the instance, called when it is terminated part way through
+    default void cancel(String instanceId) {}
+
+    // Bring this system back in line with EC2 after notifications were lost. The fleet is listed
+    // when first asked for, read this system's own state before that.
+    default void reconcile(Fleet fleet) {
+        reconcile(fleet.getExpected(), fleet.getLive());
+    }
+
+    // As above, for handlers that don't mind the order. expected holds the InService Auto Scaling
+    // instances, live every instance that still exists in the region.
+    default void reconcile(Set<String> expected, Set<String> live) {}
+
+    // Handlers that must finish a step before this one starts it. If one of them fails, this handler is skipped.
+    default Set<Class<? extends EC2Instance>> dependsOn() {
+        return Collections.emptySet();
+    }
+
+    // How long one step may take before it is reported as failed
+    default long timeoutMillis() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
 }
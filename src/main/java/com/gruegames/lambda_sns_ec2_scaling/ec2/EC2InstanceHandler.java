@@ -1,19 +1,50 @@
 package com.gruegames.lambda_sns_ec2_scaling.ec2;
 
+import com.amazonaws.regions.Region;
+import com.amazonaws.util.StringUtils;
 import com.gruegames.lambda_sns_ec2_scaling.alerts.AlertHandler;
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+import com.gruegames.lambda_sns_ec2_scaling.helper.AWSHelper;
+import com.gruegames.lambda_sns_ec2_scaling.journal.EventJournals;
+import com.gruegames.lambda_sns_ec2_scaling.journal.EventProgress;
+import com.gruegames.lambda_sns_ec2_scaling.metadata.InstanceMetadataCache;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.Message;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
-import java.util.ArrayList;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
 
 public class EC2InstanceHandler {
+    // published by an instance once it has booted, when handlers use push readiness
+    public static final String INSTANCE_READY = "ec2:INSTANCE_READY";
+
     private static final Logger logger = LogManager.getLogger(EC2InstanceHandler.class);
-    private static ArrayList<EC2Instance> instanceList = new ArrayList<>();
+    private static final List<EC2Instance> instanceList = new CopyOnWriteArrayList<>();
+    private static final LifecycleDispatcher dispatcher = new LifecycleDispatcher();
+    private static final InstanceSequencer sequencer = new InstanceSequencer(EC2InstanceHandler::cancel);
+
+    // only lifecycle hook notifications need the heartbeat timer, start it with the first one
+    private static class Hooks {
+        static final LifecycleHooks lifecycleHooks = new LifecycleHooks(AWSHelper.getLifecycleHeartbeatMillis());
+    }
 
     private EC2InstanceHandler() {}
 
-    public static void register(Class<? extends EC2Instance> clazz) {
+    // Registration is idempotent so a warm container never ends up with duplicate handlers
+    public static synchronized void register(Class<? extends EC2Instance> clazz) {
+        if(isRegistered(clazz)) {
+            return;
+        }
+
         try {
             instanceList.add(clazz.newInstance());
         } catch (IllegalAccessException | InstantiationException e) {
@@ -21,26 +52,233 @@ public class EC2InstanceHandler {
         }
     }
 
+    // Register every handler listed in META-INF/services/com.gruegames.lambda_sns_ec2_scaling.ec2.EC2Instance.
+    // A handler that fails to load is logged and left out, the others are still registered.
+    public static synchronized void loadServices() {
+        Iterator<EC2Instance> iterator = ServiceLoader.load(EC2Instance.class).iterator();
+        while(true) {
+            try {
+                if(!iterator.hasNext()) {
+                    break;
+                }
+
+                EC2Instance instance = iterator.next();
+                if(!isRegistered(instance.getClass())) {
+                    instanceList.add(instance);
+                    logger.info(String.format("Registered instance impl %s", instance.getClass().getSimpleName()));
+                }
+            } catch (ServiceConfigurationError e) {
+                logger.error("Could not load instance impl", e);
+            }
+        }
+    }
+
+    public static boolean isRegistered(Class<? extends EC2Instance> clazz) {
+        return instanceList.stream().anyMatch(registered -> registered.getClass().equals(clazz));
+    }
+
+    // Entry point for an Auto Scaling notification. The sequencer drops duplicate deliveries and
+    // launches that were overtaken by a terminate, and cancels a launch still running when the
+    // instance is terminated. A duplicate of an event that is still being handled fails instead, its
+    // first delivery may yet fail too, so it has to be retried once the outcome is known.
+    //
+    // Lifecycle hook notifications (EC2_INSTANCE_LAUNCHING/TERMINATING) arrive while the instance
+    // is held in a wait state. The action is heartbeated while the handlers run and completed with
+    // CONTINUE when they all succeed or ABANDON when they don't. When a handler waits for the
+    // instance's ready signal, a launch action stays open and is completed with CONTINUE once the
+    // INSTANCE_READY message has been handled.
+    public static void processEvent(Message message) {
+        String event = message.getEvent();
+        String journalKey = StringUtils.isNullOrEmpty(message.activityId) ? message.requestId : message.activityId;
+        // lifecycle notifications carry no Details, the region is enough to describe the instance
+        String availabilityZone = message.details == null ? message.region : message.details.availabilityZone;
+        String dedupeKey = journalKey == null ? null : String.format("%s/%s", journalKey, event);
+
+        InstanceSequencer.Admission admission = sequencer.admit(message.EC2InstanceId, kindOf(event),
+                dedupeKey, eventTime(message));
+        if(!admission.proceed) {
+            if(admission.inProgress) {
+                throw new IllegalStateException(String.format("%s %s is still being handled by an earlier delivery",
+                        message.EC2InstanceId, dedupeKey));
+            }
+            return;
+        }
+
+        LifecycleHooks.Action lifecycleAction = null;
+        boolean handled = false;
+        boolean succeeded = false;
+        // everything after admit runs in here, so the admission is released whatever throws
+        try {
+            if(message.isLifecycleAction()) {
+                if(availabilityZone == null) {
+                    throw new IllegalArgumentException(String.format("No region for %s lifecycle action", message.EC2InstanceId));
+                }
+                lifecycleAction = Hooks.lifecycleHooks.begin(message, AWSHelper.getRegionFromAZ(availabilityZone));
+            }
+
+            processEvent(event, message.EC2InstanceId, availabilityZone, journalKey);
+            handled = true;
+            succeeded = true;
+        } catch (CancellationException e) {
+            // superseded by a terminate for the same instance, nothing left to do
+            logger.info(String.format("%s: %s", message.EC2InstanceId, e.getLocalizedMessage()));
+            handled = true;
+        } finally {
+            try {
+                finishLifecycleAction(message, availabilityZone, lifecycleAction, succeeded);
+            } finally {
+                admission.done(handled);
+            }
+        }
+    }
+
+    private static void finishLifecycleAction(Message message, String availabilityZone,
+                                              LifecycleHooks.Action lifecycleAction, boolean succeeded) {
+        InstanceSequencer.Kind kind = kindOf(message.getEvent());
+        if(kind == InstanceSequencer.Kind.TERMINATE && awaitsReadySignal()) {
+            // a launch action held for the ready signal is over once the instance goes away
+            Hooks.lifecycleHooks.forget(message.EC2InstanceId);
+        }
+
+        if(lifecycleAction != null) {
+            if(succeeded && kind == InstanceSequencer.Kind.LAUNCH && awaitsReadySignal()) {
+                // the instance is only registered once it signals, keep it waiting until then
+                Hooks.lifecycleHooks.park(lifecycleAction, readyTimeoutMillis());
+            } else {
+                Hooks.lifecycleHooks.complete(lifecycleAction, succeeded);
+            }
+            return;
+        }
+
+        if(INSTANCE_READY.equals(message.getEvent()) && succeeded && awaitsReadySignal()) {
+            Region region = availabilityZone == null ? null : AWSHelper.getRegionFromAZ(availabilityZone);
+            if(Hooks.lifecycleHooks.ready(message.EC2InstanceId, region, message.autoScalingGroupName,
+                    message.lifecycleHookName)) {
+                return;
+            }
+            logger.debug(String.format("%s: no lifecycle action waits for the ready signal", message.EC2InstanceId));
+        }
+    }
+
+    private static boolean awaitsReadySignal() {
+        return instanceList.stream().anyMatch(EC2Instance::awaitsReadySignal);
+    }
+
+    // How long a launch action is held for the ready signal: as long as the slowest such handler may take
+    private static long readyTimeoutMillis() {
+        return instanceList.stream().filter(EC2Instance::awaitsReadySignal)
+                .mapToLong(EC2Instance::timeoutMillis).max().orElse(0);
+    }
+
     public static void processEvent(String event, String instanceId, String availabilityZone) {
+        processEvent(event, instanceId, availabilityZone, null);
+    }
+
+    // journalKey identifies the scaling activity (ActivityId/RequestId). A redelivered or retried
+    // activity resumes from the last step the journal recorded instead of starting over.
+    public static void processEvent(String event, String instanceId, String availabilityZone, String journalKey) {
         switch (event) {
             case "autoscaling:EC2_INSTANCE_LAUNCH":
-                for(EC2Instance instance : instanceList) {
-                    instance.create(instanceId, availabilityZone);
+            case "autoscaling:EC2_INSTANCE_LAUNCHING": {
+                EventProgress progress = EventJournals.begin(journalKey, instanceId, event);
+                if(progress.isAtLeast(InstanceState.SALT_REGISTERED)) {
+                    logger.info(String.format("%s launch %s was already handled, skipping", instanceId, journalKey));
+                    break;
                 }
+
+                dispatcher.dispatch(instanceId, "create", instanceList,
+                        instance -> instance.create(instanceId, availabilityZone, progress));
                 break;
+            }
+            case INSTANCE_READY: {
+                EventProgress progress = EventJournals.begin(journalKey, instanceId, event);
+                if(progress.isAtLeast(InstanceState.SALT_REGISTERED)) {
+                    logger.info(String.format("%s ready signal %s was already handled, skipping", instanceId, journalKey));
+                    break;
+                }
+
+                dispatcher.dispatch(instanceId, "ready", instanceList,
+                        instance -> instance.ready(instanceId, availabilityZone, progress));
+                break;
+            }
             case "autoscaling:EC2_INSTANCE_LAUNCH_ERROR":
                 AlertHandler.alert(Level.WARN, instanceId, String.format("Instance scaling issue: %s", event));
                 break;
             case "autoscaling:EC2_INSTANCE_TERMINATE":
-                for(EC2Instance instance : instanceList) {
-                    instance.terminate(instanceId, availabilityZone);
+            case "autoscaling:EC2_INSTANCE_TERMINATING": {
+                EventProgress progress = EventJournals.begin(journalKey, instanceId, event);
+                if(progress.isAtLeast(InstanceState.SALT_REMOVED)) {
+                    logger.info(String.format("%s terminate %s was already handled, skipping", instanceId, journalKey));
+                    break;
                 }
+
+                dispatcher.dispatch(instanceId, "terminate", instanceList,
+                        instance -> instance.terminate(instanceId, availabilityZone, progress));
+                // every handler has read what it needed, a failed terminate keeps it for the retry
+                InstanceMetadataCache.forget(instanceId);
                 break;
-            case "autoscaling:EC2_INSTANCE_TERMINATE_ERROR":
+            }
+            case "autoscaling:EC2_INSTANCE_TERMINATE_ERROR": {
                 AlertHandler.alert(Level.WARN, instanceId, String.format("Instance scaling issue: %s", event));
-                instanceList.stream().filter(EC2Instance::processTerminateOnFail)
-                        .forEach(instance -> instance.create(instanceId, availabilityZone));
+                EventProgress progress = EventJournals.begin(journalKey, instanceId, event);
+                if(progress.isAtLeast(InstanceState.SALT_REGISTERED)) {
+                    break;
+                }
+
+                List<EC2Instance> handlers = instanceList.stream()
+                        .filter(EC2Instance::processTerminateOnFail)
+                        .collect(Collectors.toList());
+                dispatcher.dispatch(instanceId, "create", handlers,
+                        instance -> instance.create(instanceId, availabilityZone, progress));
                 break;
+            }
+        }
+    }
+
+    // Periodic sweep: let every handler fix up whatever the missed notifications left behind
+    public static void reconcile(Fleet fleet) {
+        dispatcher.dispatch("all instances", "reconcile", instanceList, instance -> instance.reconcile(fleet));
+    }
+
+    private static void cancel(String instanceId) {
+        for(EC2Instance instance : instanceList) {
+            try {
+                instance.cancel(instanceId);
+            } catch (RuntimeException e) {
+                logger.error(String.format("%s could not cancel %s", instance.getClass().getSimpleName(), instanceId), e);
+            }
+        }
+    }
+
+    private static InstanceSequencer.Kind kindOf(String event) {
+        switch (event == null ? "" : event) {
+            case "autoscaling:EC2_INSTANCE_LAUNCH":
+            case "autoscaling:EC2_INSTANCE_LAUNCHING":
+            case "autoscaling:EC2_INSTANCE_TERMINATE_ERROR":
+            case INSTANCE_READY:
+                // all of these end up creating the instance in Salt
+                return InstanceSequencer.Kind.LAUNCH;
+            case "autoscaling:EC2_INSTANCE_TERMINATE":
+            case "autoscaling:EC2_INSTANCE_TERMINATING":
+                return InstanceSequencer.Kind.TERMINATE;
+            default:
+                return InstanceSequencer.Kind.OTHER;
+        }
+    }
+
+    // When the scaling activity started, falling back to the notification time and then to arrival
+    private static long eventTime(Message message) {
+        for(String time : new String[] { message.startTime, message.time }) {
+            if(StringUtils.isNullOrEmpty(time)) {
+                continue;
+            }
+
+            try {
+                return Instant.parse(time).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                logger.debug(String.format("Could not parse event time %s", time));
+            }
         }
+        return System.currentTimeMillis();
     }
 }
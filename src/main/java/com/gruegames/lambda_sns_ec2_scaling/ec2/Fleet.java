@@ -0,0 +1,54 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+// What EC2 has running, as seen by a reconcile sweep. It is only listed the first time a handler
+// asks, so a handler can read its own state before: anything it knows about that the listing
+// doesn't show was gone already, rather than launched while the sweep ran.
+public class Fleet {
+    // Fills in the InService Auto Scaling instances and every instance that still exists
+    public interface Lister {
+        void list(Set<String> expected, Set<String> live);
+    }
+
+    private final boolean complete;
+    private final Lister lister;
+    private Set<String> expected;
+    private Set<String> live;
+
+    public Fleet(boolean complete, Lister lister) {
+        this.complete = complete;
+        this.lister = lister;
+    }
+
+    // InService Auto Scaling instances, which should all have a key
+    public synchronized Set<String> getExpected() {
+        list();
+        return expected;
+    }
+
+    // Every instance that hasn't been terminated, which may have a key
+    public synchronized Set<String> getLive() {
+        list();
+        return live;
+    }
+
+    // False when the listing may not cover every region, so a missing instance may still exist
+    public boolean isComplete() {
+        return complete;
+    }
+
+    private void list() {
+        if (expected != null) {
+            return;
+        }
+
+        Set<String> listedExpected = new HashSet<>();
+        Set<String> listedLive = new HashSet<>();
+        lister.list(listedExpected, listedLive);
+        expected = Collections.unmodifiableSet(listedExpected);
+        live = Collections.unmodifiableSet(listedLive);
+    }
+}
@@ -0,0 +1,187 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+// Decides, per instance, whether a scaling event should run. Duplicate deliveries are dropped, a
+// launch older than a terminate we already saw is stale, and a terminate cancels launch work that
+// is still running. Decisions take a lock striped by instance id, so unrelated instances never
+// wait on each other; the work itself runs outside the lock.
+class InstanceSequencer {
+    private static final Logger logger = LogManager.getLogger(InstanceSequencer.class);
+    private static final int STRIPES = 64;
+    private static final int MAX_TRACKED_INSTANCES = 10000;
+    private static final long FORGET_AFTER_MILLIS = TimeUnit.HOURS.toMillis(6);
+    private static final long CANCEL_WAIT_MILLIS = 30000;
+
+    enum Kind {
+        LAUNCH,
+        TERMINATE,
+        OTHER
+    }
+
+    private static class Timeline {
+        final Set<String> seen = new HashSet<>();
+        // events admitted and not done yet
+        final Set<String> running = new HashSet<>();
+        long lastLaunchTime = Long.MIN_VALUE;
+        long lastTerminateTime = Long.MIN_VALUE;
+        long touchedAt;
+        CompletableFuture<Void> launch;
+    }
+
+    // Returned by admit. Call done() once the event has been handled. An event that isn't to
+    // proceed is either finished already or, when inProgress is set, still being handled by an
+    // earlier delivery whose outcome isn't known yet.
+    class Admission {
+        final boolean proceed;
+        final boolean inProgress;
+        private final String instanceId;
+        private final String dedupeKey;
+        private final CompletableFuture<Void> launch;
+
+        private Admission(boolean proceed, String instanceId, String dedupeKey, CompletableFuture<Void> launch) {
+            this(proceed, false, instanceId, dedupeKey, launch);
+        }
+
+        private Admission(boolean proceed, boolean inProgress, String instanceId, String dedupeKey,
+                          CompletableFuture<Void> launch) {
+            this.proceed = proceed;
+            this.inProgress = inProgress;
+            this.instanceId = instanceId;
+            this.dedupeKey = dedupeKey;
+            this.launch = launch;
+        }
+
+        // handled is false when the event failed, so a redelivery of it is let through again
+        void done(boolean handled) {
+            if (proceed && instanceId != null) {
+                finish(this, handled);
+            }
+        }
+    }
+
+    private final Object[] stripes = new Object[STRIPES];
+    private final ConcurrentHashMap<String, Timeline> timelines = new ConcurrentHashMap<>();
+    private final Consumer<String> cancelLaunch;
+
+    // cancelLaunch stops any launch work in progress for an instance id
+    InstanceSequencer(Consumer<String> cancelLaunch) {
+        this.cancelLaunch = cancelLaunch;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    Admission admit(String instanceId, Kind kind, String dedupeKey, long eventTime) {
+        if (instanceId == null) {
+            return new Admission(true, null, null, null);
+        }
+
+        prune();
+
+        CompletableFuture<Void> launchToCancel = null;
+        Admission admission;
+
+        synchronized (stripeFor(instanceId)) {
+            Timeline timeline = timelines.computeIfAbsent(instanceId, id -> new Timeline());
+            timeline.touchedAt = System.currentTimeMillis();
+
+            if (dedupeKey != null && !timeline.seen.add(dedupeKey)) {
+                if (timeline.running.contains(dedupeKey)) {
+                    logger.info(String.format("%s: duplicate delivery %s while the first is still running", instanceId, dedupeKey));
+                    return new Admission(false, true, instanceId, dedupeKey, null);
+                }
+                logger.info(String.format("%s: dropping duplicate delivery %s", instanceId, dedupeKey));
+                return new Admission(false, instanceId, dedupeKey, null);
+            }
+
+            switch (kind) {
+                case LAUNCH:
+                    if (eventTime <= timeline.lastTerminateTime) {
+                        logger.info(String.format("%s: dropping launch from before the last terminate", instanceId));
+                        return new Admission(false, instanceId, dedupeKey, null);
+                    }
+
+                    timeline.lastLaunchTime = Math.max(timeline.lastLaunchTime, eventTime);
+                    CompletableFuture<Void> launch = new CompletableFuture<>();
+                    timeline.launch = launch;
+                    admission = new Admission(true, instanceId, dedupeKey, launch);
+                    break;
+                case TERMINATE:
+                    timeline.lastTerminateTime = Math.max(timeline.lastTerminateTime, eventTime);
+                    launchToCancel = timeline.launch;
+                    admission = new Admission(true, instanceId, dedupeKey, null);
+                    break;
+                default:
+                    admission = new Admission(true, instanceId, dedupeKey, null);
+                    break;
+            }
+
+            if (dedupeKey != null) {
+                timeline.running.add(dedupeKey);
+            }
+        }
+
+        if (launchToCancel != null && !launchToCancel.isDone()) {
+            // stop the bootstrap and let it unwind before removing the instance, otherwise it could
+            // register the minion again after the key was deleted
+            logger.info(String.format("%s: terminate arrived during launch, cancelling the launch", instanceId));
+            cancelLaunch.accept(instanceId);
+            try {
+                launchToCancel.get(CANCEL_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                logger.warn(String.format("%s: launch did not stop cleanly, terminating anyway", instanceId));
+            }
+        }
+
+        return admission;
+    }
+
+    private void finish(Admission admission, boolean handled) {
+        synchronized (stripeFor(admission.instanceId)) {
+            Timeline timeline = timelines.get(admission.instanceId);
+            if (timeline != null) {
+                if (admission.dedupeKey != null) {
+                    timeline.running.remove(admission.dedupeKey);
+                    if (!handled) {
+                        timeline.seen.remove(admission.dedupeKey);
+                    }
+                }
+                if (admission.launch != null && timeline.launch == admission.launch) {
+                    timeline.launch = null;
+                }
+            }
+        }
+
+        if (admission.launch != null) {
+            admission.launch.complete(null);
+        }
+    }
+
+    // Forget instances nobody has heard about in a while so the map stays bounded
+    private void prune() {
+        if (timelines.size() < MAX_TRACKED_INSTANCES) {
+            return;
+        }
+
+        long cutoff = System.currentTimeMillis() - FORGET_AFTER_MILLIS;
+        timelines.entrySet().removeIf(entry -> entry.getValue().launch == null && entry.getValue().running.isEmpty()
+                && entry.getValue().touchedAt < cutoff);
+    }
+
+    private Object stripeFor(String instanceId) {
+        return stripes[(instanceId.hashCode() & 0x7fffffff) % STRIPES];
+    }
+}
@@ -0,0 +1,160 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Runs one lifecycle step on every handler at the same time. A handler only waits for the handlers
+// it names in dependsOn(); a failure or timeout in one handler skips its dependents but never the
+// others. Once everything has settled the failures are reported together.
+class LifecycleDispatcher {
+    private static final Logger logger = LogManager.getLogger(LifecycleDispatcher.class);
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(daemonThreads("ec2-handler"));
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("ec2-handler-timer"));
+
+    void dispatch(String instanceId, String step, List<EC2Instance> handlers, Consumer<EC2Instance> action) {
+        if (handlers.isEmpty()) {
+            return;
+        }
+
+        Map<Class<?>, EC2Instance> byClass = new LinkedHashMap<>();
+        for (EC2Instance handler : handlers) {
+            byClass.put(handler.getClass(), handler);
+        }
+
+        Map<Class<?>, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+        for (EC2Instance handler : handlers) {
+            futureFor(handler, instanceId, step, action, byClass, futures, new HashSet<>());
+        }
+
+        List<Throwable> failures = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<Class<?>, CompletableFuture<Void>> entry : futures.entrySet()) {
+            try {
+                entry.getValue().join();
+            } catch (CompletionException | CancellationException e) {
+                Throwable cause = unwrap(e);
+                failures.add(cause);
+                failed.add(String.format("%s (%s)", entry.getKey().getSimpleName(), cause.getLocalizedMessage()));
+            }
+        }
+
+        if (failures.isEmpty()) {
+            return;
+        }
+
+        if (failures.stream().allMatch(failure -> failure instanceof CancellationException)) {
+            // the launch was superseded, the caller treats that as handled
+            throw (CancellationException) failures.get(0);
+        }
+
+        Throwable first = failures.get(0);
+        throw new RuntimeException(String.format("%d of %d handlers failed %s for %s: %s", failures.size(),
+                handlers.size(), step, instanceId, String.join(", ", failed)), first);
+    }
+
+    private CompletableFuture<Void> futureFor(EC2Instance handler, String instanceId, String step, Consumer<EC2Instance> action,
+                                              Map<Class<?>, EC2Instance> byClass, Map<Class<?>, CompletableFuture<Void>> futures,
+                                              Set<Class<?>> visiting) {
+        CompletableFuture<Void> existing = futures.get(handler.getClass());
+        if (existing != null) {
+            return existing;
+        }
+
+        if (!visiting.add(handler.getClass())) {
+            CompletableFuture<Void> cycle = new CompletableFuture<>();
+            cycle.completeExceptionally(new IllegalStateException(
+                    String.format("%s is part of a dependency cycle", handler.getClass().getSimpleName())));
+            return cycle;
+        }
+
+        List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+        for (Class<? extends EC2Instance> dependency : handler.dependsOn()) {
+            EC2Instance dependencyHandler = byClass.get(dependency);
+            if (dependencyHandler == null) {
+                // not registered, or not taking part in this step
+                logger.debug(String.format("%s depends on %s which isn't running %s", handler.getClass().getSimpleName(),
+                        dependency.getSimpleName(), step));
+                continue;
+            }
+            dependencies.add(futureFor(dependencyHandler, instanceId, step, action, byClass, futures, visiting));
+        }
+        visiting.remove(handler.getClass());
+
+        CompletableFuture<Void> future = dependencies.isEmpty()
+                ? run(handler, instanceId, step, action)
+                : CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[dependencies.size()]))
+                        .thenCompose(v -> run(handler, instanceId, step, action));
+        futures.put(handler.getClass(), future);
+        return future;
+    }
+
+    private CompletableFuture<Void> run(EC2Instance handler, String instanceId, String step, Consumer<EC2Instance> action) {
+        String name = handler.getClass().getSimpleName();
+        long start = System.currentTimeMillis();
+        CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Future<?> task = workers.submit(() -> {
+            try {
+                action.accept(handler);
+                result.complete(null);
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+
+        long timeout = handler.timeoutMillis();
+        ScheduledFuture<?> timer = this.timer.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException(
+                    String.format("%s did not finish %s for %s within %d ms", name, step, instanceId, timeout)))) {
+                task.cancel(true);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        result.whenComplete((v, e) -> {
+            timer.cancel(false);
+            if (e == null) {
+                logger.info(String.format("%s finished %s for %s in %d ms", name, step, instanceId, System.currentTimeMillis() - start));
+            } else if (!(e instanceof CancellationException)) {
+                logger.error(String.format("%s failed %s for %s after %d ms", name, step, instanceId, System.currentTimeMillis() - start), e);
+            }
+        });
+        return result;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, String.format("%s-%d", name, count.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,215 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.regions.Region;
+import com.gruegames.lambda_sns_ec2_scaling.helper.AWSHelper;
+import com.gruegames.lambda_sns_ec2_scaling.helper.Backoff;
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.Message;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Holds Auto Scaling lifecycle actions open while the handlers work on an instance, then completes
+// them. A single timer thread sends the heartbeats for every action in flight, so a burst of
+// launches costs no extra threads. A launch that waits for the instance's ready signal parks its
+// action, which stays open until the ready signal has been handled or its deadline passes.
+class LifecycleHooks {
+    private static final Logger logger = LogManager.getLogger(LifecycleHooks.class);
+    private static final long TICK_MILLIS = 5000;
+    private static final long COMPLETE_BACKOFF_BASE_MILLIS = 200;
+    private static final long COMPLETE_BACKOFF_MAX_MILLIS = 5000;
+    private static final long COMPLETE_TIMEOUT_MILLIS = 30000;
+    private static final long SIGNALLED_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    static class Action {
+        final Region region;
+        final String groupName;
+        final String hookName;
+        final String token;
+        final String instanceId;
+        volatile long lastHeartbeat = System.currentTimeMillis();
+        volatile long deadline = Long.MAX_VALUE;
+
+        Action(Region region, String groupName, String hookName, String token, String instanceId) {
+            this.region = region;
+            this.groupName = groupName;
+            this.hookName = hookName;
+            this.token = token;
+            this.instanceId = instanceId;
+        }
+    }
+
+    private final long heartbeatIntervalMillis;
+    private final ConcurrentHashMap<String, Action> inFlight = new ConcurrentHashMap<>();
+    // by instance id: launch actions waiting for the ready signal, and ready signals handled before
+    // their launch action was parked, with when they were handled
+    private final Map<String, Action> parked = new HashMap<>();
+    private final Map<String, Long> signalled = new HashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lifecycle-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    LifecycleHooks(long heartbeatIntervalMillis) {
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+        timer.scheduleWithFixedDelay(this::sendHeartbeats, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Start heartbeating the action a lifecycle notification describes
+    Action begin(Message message, Region region) {
+        Action action = new Action(region, message.autoScalingGroupName, message.lifecycleHookName,
+                message.lifecycleActionToken, message.EC2InstanceId);
+        inFlight.put(action.token, action);
+        return action;
+    }
+
+    // Keep heartbeating a launch action until ready() is called for its instance, at most for
+    // timeoutMillis. If the ready signal was already handled the action is completed right away.
+    void park(Action action, long timeoutMillis) {
+        synchronized (parked) {
+            if (signalled.remove(action.instanceId) == null) {
+                action.deadline = System.currentTimeMillis() + timeoutMillis;
+                parked.put(action.instanceId, action);
+                logger.info(String.format("%s: holding %s lifecycle action until the instance signals it is ready",
+                        action.instanceId, action.hookName));
+                return;
+            }
+        }
+        complete(action, true);
+    }
+
+    // The ready signal of an instance was handled, let its parked launch action continue. Without
+    // one here (the launch was handled by another process), groupName and hookName from the ready
+    // message let it be completed by instance id. Returns false when there was nothing to complete.
+    boolean ready(String instanceId, Region region, String groupName, String hookName) {
+        Action action;
+        synchronized (parked) {
+            action = parked.remove(instanceId);
+            if (action == null) {
+                // the launch action may not be parked yet
+                signalled.put(instanceId, System.currentTimeMillis());
+            }
+        }
+
+        if (action == null) {
+            if (region == null || groupName == null || hookName == null) {
+                return false;
+            }
+            action = new Action(region, groupName, hookName, null, instanceId);
+        }
+        complete(action, true);
+        return true;
+    }
+
+    // The instance is being terminated, stop heartbeating the launch action it may have left
+    void forget(String instanceId) {
+        Action action;
+        synchronized (parked) {
+            action = parked.remove(instanceId);
+            signalled.remove(instanceId);
+        }
+        if (action != null) {
+            inFlight.remove(action.token, action);
+        }
+    }
+
+    // Stop heartbeating and let the instance continue, or abandon it when the handlers failed.
+    // Throttled completions are retried for a while, the action must not be left to time out.
+    void complete(Action action, boolean succeeded) {
+        if (action.token != null) {
+            inFlight.remove(action.token, action);
+        }
+        String result = succeeded ? "CONTINUE" : "ABANDON";
+
+        Backoff backoff = new Backoff(COMPLETE_BACKOFF_BASE_MILLIS, COMPLETE_BACKOFF_MAX_MILLIS,
+                System.currentTimeMillis() + COMPLETE_TIMEOUT_MILLIS);
+        long start = Metrics.start();
+        while (true) {
+            try {
+                AWSHelper.completeLifecycleAction(action.region, action.groupName, action.hookName, action.token,
+                        action.instanceId, result);
+                Metrics.record("lifecycle.complete", start);
+                logger.info(String.format("%s: completed %s lifecycle action with %s", action.instanceId, action.hookName, result));
+                return;
+            } catch (AmazonServiceException e) {
+                if (!AWSHelper.isThrottle(e)) {
+                    // most likely the action already timed out or was completed by an earlier delivery
+                    logger.warn(String.format("%s: could not complete %s lifecycle action: %s", action.instanceId,
+                            action.hookName, e.getErrorMessage()));
+                    return;
+                }
+
+                Metrics.increment("lifecycle.throttled");
+                try {
+                    if (!backoff.sleep()) {
+                        throw new RuntimeException(String.format("%s: gave up completing %s lifecycle action, throttled",
+                                action.instanceId, action.hookName), e);
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(String.format("%s: interrupted completing lifecycle action", action.instanceId), ie);
+                }
+            }
+        }
+    }
+
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    int getParkedCount() {
+        synchronized (parked) {
+            return parked.size();
+        }
+    }
+
+    private void sendHeartbeats() {
+        long now = System.currentTimeMillis();
+        synchronized (parked) {
+            signalled.values().removeIf(handledAt -> now - handledAt > SIGNALLED_RETENTION_MILLIS);
+        }
+
+        for (Action action : inFlight.values()) {
+            if (now > action.deadline) {
+                // Auto Scaling applies the hook's default result once the heartbeat timeout passes
+                logger.warn(String.format("%s: no ready signal in time, no longer holding %s lifecycle action",
+                        action.instanceId, action.hookName));
+                inFlight.remove(action.token, action);
+                synchronized (parked) {
+                    parked.remove(action.instanceId, action);
+                }
+                continue;
+            }
+
+            if (now - action.lastHeartbeat < heartbeatIntervalMillis) {
+                continue;
+            }
+
+            try {
+                AWSHelper.recordLifecycleActionHeartbeat(action.region, action.groupName, action.hookName, action.token,
+                        action.instanceId);
+                action.lastHeartbeat = now;
+                Metrics.increment("lifecycle.heartbeat");
+            } catch (AmazonServiceException e) {
+                if (AWSHelper.isThrottle(e)) {
+                    // picked up again on the next tick
+                    Metrics.increment("lifecycle.throttled");
+                } else {
+                    logger.warn(String.format("%s: %s lifecycle action is no longer active, stopping heartbeats: %s",
+                            action.instanceId, action.hookName, e.getErrorMessage()));
+                    inFlight.remove(action.token, action);
+                }
+            } catch (RuntimeException e) {
+                logger.error(String.format("%s: lifecycle heartbeat failed", action.instanceId), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import java.util.concurrent.CompletableFuture;
+
+// How the provisioner learns that a booting instance is ready to be registered with Salt
+interface ReadinessStrategy {
+    // Completes with true once the instance can be registered now, or with false when the instance
+    // will announce itself later and registration waits for that signal
+    CompletableFuture<Boolean> awaitReady(SaltProvisioner.Provisioning p);
+}
@@ -0,0 +1,98 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import com.gruegames.lambda_sns_ec2_scaling.alerts.AlertHandler;
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+import com.gruegames.lambda_sns_ec2_scaling.helper.AWSHelper;
+import com.gruegames.lambda_sns_ec2_scaling.helper.Backoff;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Pull readiness: describe -> SSH -> poll cloud-init, recording each step in the journal as it
+// completes. Waiting for the SSH port and between cloud-init polls holds no thread.
+class SSHReadiness implements ReadinessStrategy {
+    private static final Logger logger = Logger.getLogger(SSHReadiness.class);
+    private static final long CLOUD_INIT_BACKOFF_BASE_MILLIS = 2000;
+    private static final long CLOUD_INIT_BACKOFF_MAX_MILLIS = 15000;
+
+    private final SaltEC2InstanceImpl salt;
+    private final SaltProvisioner provisioner;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler;
+
+    SSHReadiness(SaltEC2InstanceImpl salt, SaltProvisioner provisioner, ExecutorService workers, ScheduledExecutorService scheduler) {
+        this.salt = salt;
+        this.provisioner = provisioner;
+        this.workers = workers;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> awaitReady(SaltProvisioner.Provisioning p) {
+        return CompletableFuture
+                .supplyAsync(() -> provisioner.describe(p), workers)
+                .thenCompose(details -> {
+                    p.enter(SaltProvisioner.Stage.WAITING_FOR_SSH);
+                    CompletableFuture<Void> port = AWSHelper.awaitSSHPort(details.instanceIp, p.deadline);
+                    p.waitOn(port);
+                    return port
+                            .thenApplyAsync(v -> {
+                                p.ssh = salt.connectSSH(details.instanceIp, p.deadline);
+                                p.progress.record(InstanceState.REACHABLE);
+                                return p.ssh;
+                            }, workers);
+                })
+                .thenCompose(ssh -> {
+                    try {
+                        p.enter(SaltProvisioner.Stage.WAITING_FOR_CLOUD_INIT);
+                    } catch (CompletionException e) {
+                        // timed out while connecting, finish() may already have run
+                        SaltProvisioner.disconnect(p);
+                        throw e;
+                    }
+                    CompletableFuture<Boolean> cloudInit = new CompletableFuture<>();
+                    p.waitOn(cloudInit);
+                    pollCloudInit(p, new Backoff(CLOUD_INIT_BACKOFF_BASE_MILLIS, CLOUD_INIT_BACKOFF_MAX_MILLIS, p.deadline), cloudInit);
+                    return cloudInit;
+                });
+    }
+
+    // Check cloud-init on a worker, and if it isn't finished schedule the next check on the timer
+    // instead of sleeping
+    private void pollCloudInit(SaltProvisioner.Provisioning p, Backoff backoff, CompletableFuture<Boolean> done) {
+        workers.execute(() -> {
+            if (p.future.isDone()) {
+                done.completeExceptionally(new TimeoutException(String.format("%s stopped during %s", p.instanceId, p.stage)));
+                return;
+            }
+
+            try {
+                if (salt.isCloudInitFinished(p.ssh, p.instanceId)) {
+                    logger.info(String.format("%s: cloud-init is finished, moving on", p.instanceId));
+                    p.progress.record(InstanceState.CLOUD_INIT_DONE);
+                    done.complete(true);
+                } else if (backoff.isExpired()) {
+                    done.completeExceptionally(new TimeoutException(
+                            String.format("%s: cloud-init did not finish before the deadline", p.instanceId)));
+                } else {
+                    long delay = Math.min(backoff.nextDelay(), Math.max(0, backoff.remaining()));
+                    logger.info(String.format("%s: cloud-init is still working, checking again in %d ms", p.instanceId, delay));
+                    scheduler.schedule(() -> pollCloudInit(p, backoff, done), delay, TimeUnit.MILLISECONDS);
+                }
+            } catch (IOException e) {
+                // same as before: report it and still let Salt know about the instance
+                AlertHandler.alert(Level.ERROR, p.instanceId, "Could not SSH. Error: " + e.getLocalizedMessage());
+                done.complete(true);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        });
+    }
+}
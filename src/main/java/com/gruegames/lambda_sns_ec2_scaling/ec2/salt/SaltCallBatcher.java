@@ -0,0 +1,193 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+// Merges salt-api calls made within a short window into one POST of a JSON lowstate list.
+// salt-api answers with one return per chunk in the same order, which is how results are
+// matched back to each caller. A call made while no other request is out goes straight away;
+// otherwise the first caller in a window waits it out and sends for everyone.
+class SaltCallBatcher {
+    private static final Logger logger = Logger.getLogger(SaltCallBatcher.class);
+    private static final long BATCH_WINDOW_MILLIS = 50;
+    // a login, the call and one retry after a rejected token, each with the HTTP read timeout
+    private static final long WAIT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(3);
+
+    private static class Call {
+        final List<SaltPayload> payloads;
+        final BooleanSupplier stopped;
+        final CompletableFuture<List<String>> future = new CompletableFuture<>();
+
+        Call(List<SaltPayload> payloads, BooleanSupplier stopped) {
+            this.payloads = payloads;
+            this.stopped = stopped;
+        }
+    }
+
+    // The request carrying a call failed as a whole, the caller sends it again on its own
+    private static class SendAlone extends RuntimeException {
+        SendAlone(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    private final Function<List<SaltPayload>, List<String>> sender;
+    private final Function<String, String> chunkError;
+    private List<Call> pending;
+    private int sending;
+
+    // sender posts the lowstate chunks, in order, and returns one result per chunk; chunkError
+    // says what went wrong in a single chunk's result, or null if it succeeded
+    SaltCallBatcher(Function<List<SaltPayload>, List<String>> sender, Function<String, String> chunkError) {
+        this.sender = sender;
+        this.chunkError = chunkError;
+    }
+
+    // Queue the payloads for the next batch and wait for their results. Payloads from one call
+    // always go out in the same request and in the given order.
+    List<String> submit(SaltPayload... payloads) {
+        return submit(() -> false, payloads);
+    }
+
+    // As above, but the payloads are dropped with a CancellationException if stopped is true by
+    // the time the batch is sent
+    List<String> submit(BooleanSupplier stopped, SaltPayload... payloads) {
+        Call call = new Call(Arrays.asList(payloads), stopped);
+        List<Call> leaderOf = null;
+        boolean alone = false;
+
+        synchronized (this) {
+            if (pending == null) {
+                pending = new ArrayList<>();
+                leaderOf = pending;
+                // nothing out there to batch with, don't make the call wait for company
+                alone = sending == 0;
+            }
+            pending.add(call);
+        }
+
+        if (leaderOf != null) {
+            if (!alone) {
+                try {
+                    Thread.sleep(BATCH_WINDOW_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            synchronized (this) {
+                pending = null;
+                // counted before anyone can start a new batch, so they know to wait for company
+                sending++;
+            }
+            send(leaderOf);
+        }
+
+        try {
+            return await(call);
+        } catch (SendAlone e) {
+            logger.info(String.format("Salt batch failed (%s), sending %d chunks again on their own",
+                    e.getCause().getLocalizedMessage(), payloads.length));
+            Call retry = new Call(call.payloads, stopped);
+            synchronized (this) {
+                sending++;
+            }
+            send(Collections.singletonList(retry));
+            return await(retry);
+        }
+    }
+
+    private static List<String> await(Call call) {
+        try {
+            return call.future.get(WAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for Salt", e);
+        } catch (TimeoutException e) {
+            throw new RuntimeException(String.format("No answer from Salt after %d ms", WAIT_TIMEOUT_MILLIS), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Callers count the batch in sending first, it is counted out once the request is over
+    private void send(List<Call> batch) {
+        try {
+            post(batch);
+        } finally {
+            synchronized (this) {
+                sending--;
+            }
+        }
+    }
+
+    private void post(List<Call> batch) {
+        List<Call> calls = new ArrayList<>();
+        for (Call call : batch) {
+            if (call.stopped.getAsBoolean()) {
+                call.future.completeExceptionally(new CancellationException("Salt call was stopped before it was sent"));
+            } else {
+                calls.add(call);
+            }
+        }
+        if (calls.isEmpty()) {
+            return;
+        }
+
+        List<SaltPayload> payloads = new ArrayList<>();
+        calls.forEach(call -> payloads.addAll(call.payloads));
+        int chunks = payloads.size();
+        logger.info(String.format("Sending %d lowstate chunks for %d calls to Salt", chunks, calls.size()));
+
+        try {
+            complete(calls, sender.apply(payloads), chunks);
+        } catch (Throwable e) {
+            // a failure of the whole request may be down to one caller's chunks, let everyone retry
+            // on their own rather than fail them all; whatever happens, no caller is left waiting
+            Throwable failure = calls.size() > 1 && e instanceof RuntimeException ? new SendAlone(e) : e;
+            calls.forEach(call -> call.future.completeExceptionally(failure));
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+        }
+    }
+
+    private void complete(List<Call> calls, List<String> results, int chunks) {
+        if (results.size() != chunks) {
+            throw new RuntimeException(String.format("Salt returned %d results for %d chunks", results.size(), chunks));
+        }
+
+        int offset = 0;
+        for (Call call : calls) {
+            List<String> own = Collections.unmodifiableList(results.subList(offset, offset + call.payloads.size()));
+            offset += call.payloads.size();
+
+            String error = null;
+            for (int i = 0; i < own.size() && error == null; i++) {
+                error = chunkError.apply(own.get(i));
+            }
+            if (error == null) {
+                call.future.complete(own);
+            } else {
+                call.future.completeExceptionally(new RuntimeException(String.format("Salt chunk failed: %s", error)));
+            }
+        }
+    }
+}
@@ -1,37 +1,63 @@
 package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.model.*;
 import com.amazonaws.util.StringUtils;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
 import com.gruegames.lambda_sns_ec2_scaling.alerts.AlertHandler;
 import com.gruegames.lambda_sns_ec2_scaling.ec2.EC2Instance;
+import com.gruegames.lambda_sns_ec2_scaling.ec2.Fleet;
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
 import com.gruegames.lambda_sns_ec2_scaling.helper.AWSHelper;
+import com.gruegames.lambda_sns_ec2_scaling.helper.HttpTransport;
+import com.gruegames.lambda_sns_ec2_scaling.helper.SSHConnectionManager;
+import com.gruegames.lambda_sns_ec2_scaling.journal.EventProgress;
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
 import com.gruegames.lambda_sns_ec2_scaling.pojo.*;
 import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.common.IOUtils;
-import net.schmizz.sshj.connection.channel.direct.Session;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Form;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
 public class SaltEC2InstanceImpl implements EC2Instance {
     private static final Logger logger = Logger.getLogger(SaltEC2InstanceImpl.class);
 
+    // Gson is thread safe, share it across invocations. The Jersey client comes from HttpTransport
+    // on the first Salt call, so events that never reach Salt don't load it.
+    private static final Gson gson = new Gson();
+
+    private static final long BOOT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int DEFAULT_PROVISION_CONCURRENCY = 20;
+    private static final double DEFAULT_RECONCILE_MAX_DELETE_FRACTION = 0.1;
+    // batched requests serve several instances, alerts for them are raised against the API instead
+    static final String SALT_API = "salt-api";
+
     private Properties properties = new Properties();
-    private Client client = ClientBuilder.newClient();
     private String baseUrl;
     private String saltMasterMinion;
     private String ec2Username;
     private String ec2Password;
+    private SSHConnectionManager.Credentials sshCredentials;
+    private volatile SaltProvisioner provisioner;
+    private int provisionConcurrency;
+    private boolean signalReadiness;
+    private SaltKeyReconciler reconciler;
+    private final SaltTokenCache tokenCache = new SaltTokenCache(this::saltLogin);
+    private final SaltCallBatcher callBatcher = new SaltCallBatcher(this::postLowstate, SaltEC2InstanceImpl::chunkError);
 
     public SaltEC2InstanceImpl() throws IOException {
         try {
@@ -45,75 +71,155 @@ public class SaltEC2InstanceImpl implements EC2Instance {
         saltMasterMinion = properties.getProperty("salt.master.minion");
         ec2Username = properties.getProperty("ec2.username");
         ec2Password = properties.getProperty("ec2.password");
+
+        // prefer key based auth when a private key is configured
+        String privateKey = properties.getProperty("ec2.private.key");
+        sshCredentials = StringUtils.isNullOrEmpty(privateKey)
+                ? SSHConnectionManager.Credentials.password(ec2Username, ec2Password)
+                : SSHConnectionManager.Credentials.privateKey(ec2Username, privateKey.trim());
+
+        String concurrencyProperty = properties.getProperty("salt.provision.concurrency");
+        provisionConcurrency = StringUtils.isNullOrEmpty(concurrencyProperty) ? DEFAULT_PROVISION_CONCURRENCY
+                : Integer.parseInt(concurrencyProperty.trim());
+        // "signal" waits for the instance to publish ec2:INSTANCE_READY instead of polling it over SSH
+        signalReadiness = "signal".equalsIgnoreCase(properties.getProperty("salt.readiness", "ssh").trim());
+        String maxDeleteProperty = properties.getProperty("salt.reconcile.max.delete.fraction");
+        double maxDeleteFraction = StringUtils.isNullOrEmpty(maxDeleteProperty) ? DEFAULT_RECONCILE_MAX_DELETE_FRACTION
+                : Double.parseDouble(maxDeleteProperty.trim());
+        reconciler = new SaltKeyReconciler(this, Boolean.parseBoolean(properties.getProperty("salt.reconcile.dry.run")),
+                maxDeleteFraction);
     }
 
-    // Initial EC2 instance setup with Salt
+    // Initial EC2 instance setup with Salt. The bootstrap runs on the shared provisioner so many
+    // instances can be brought up at once; this call only waits for its own instance.
     @Override
     public void create(String instanceId, String availabilityZone) {
-        EC2Details details = AWSHelper.getInstanceDetails(instanceId, availabilityZone);
-        if(details.instanceName == null || details.instanceIp == null) {
-            throw new RuntimeException(String.format("Instance id %s has no name!", instanceId));
+        create(instanceId, availabilityZone, EventProgress.untracked(instanceId, "create"));
+    }
+
+    @Override
+    public void create(String instanceId, String availabilityZone, EventProgress progress) {
+        try {
+            getProvisioner().provision(instanceId, availabilityZone, progress).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
         }
+    }
 
-        // wait until we can access SSH
-        SSHClient ssh = AWSHelper.waitForEC2Instance(details.instanceIp, ec2Username, ec2Password);
+    // The instance says cloud-init is done: register it with Salt without touching SSH
+    @Override
+    public void ready(String instanceId, String availabilityZone, EventProgress progress) {
+        progress.record(InstanceState.CLOUD_INIT_DONE);
+        create(instanceId, availabilityZone, progress);
+    }
 
-        // start SSH session
-        logger.info("Starting ssh transactions");
-        Session.Command command;
+    @Override
+    public boolean awaitsReadySignal() {
+        return signalReadiness;
+    }
 
-        String fileCommand = String.format("if [ -f \"/var/lib/cloud/instances/%s/boot-finished\" ]; then echo \"true\"; else echo \"false\"; fi;", instanceId);
-        String fileExists;
+    @Override
+    public void cancel(String instanceId) {
+        // nothing can be in flight before the first launch created the provisioner
+        SaltProvisioner current = provisioner;
+        if (current != null) {
+            current.cancel(instanceId);
+        }
+    }
 
-        try {
-            do {
-                try (Session session = ssh.startSession()) {
-                    // install salt minion
-                    command = session.exec(fileCommand);
-                    fileExists = IOUtils.readFully(command.getInputStream()).toString().trim();
-
-                    if (Boolean.parseBoolean(fileExists)) {
-                        logger.info("Ok, cloud-init is finished, moving on");
-                    } else {
-                        logger.info("cloud-init is still working, sleeping");
-                        try {
-                            Thread.sleep(15000);
-                        } catch (InterruptedException e) {
-                        }
-                    }
+    // The provisioner (and with it SSH) is only set up once a launch needs it, a terminate never does
+    private SaltProvisioner getProvisioner() {
+        SaltProvisioner current = provisioner;
+        if (current == null) {
+            synchronized (this) {
+                if (provisioner == null) {
+                    provisioner = new SaltProvisioner(this, provisionConcurrency, BOOT_TIMEOUT_MILLIS, signalReadiness);
                 }
-            } while (!Boolean.parseBoolean(fileExists));
+                current = provisioner;
+            }
+        }
+        return current;
+    }
 
-            ssh.disconnect();
-        } catch (IOException e) {
-            AlertHandler.alert(Level.ERROR, instanceId, "Could not SSH. Error: "+e.getLocalizedMessage());
+    EC2Details describe(String instanceId, String availabilityZone) {
+        EC2Details details = AWSHelper.getInstanceDetails(instanceId, availabilityZone);
+        if(details.instanceName == null || details.instanceIp == null) {
+            throw new RuntimeException(String.format("Instance id %s has no name!", instanceId));
         }
+        return details;
+    }
+
+    SSHClient connectSSH(String instanceIp, long deadline) {
+        return SSHConnectionManager.acquire(instanceIp, sshCredentials, deadline);
+    }
 
-        // login to salt
-        String token = saltLogin(instanceId);
+    boolean isCloudInitFinished(SSHClient ssh, String instanceId) throws IOException {
+        String fileCommand = String.format("if [ -f \"/var/lib/cloud/instances/%s/boot-finished\" ]; then echo \"true\"; else echo \"false\"; fi;", instanceId);
+        return Boolean.parseBoolean(SSHConnectionManager.exec(ssh, fileCommand).trim());
+    }
+
+    void registerWithSalt(String instanceId) {
+        registerWithSalt(instanceId, () -> false);
+    }
+
+    // Nothing is sent once stopped is true, checked right before the request goes out
+    void registerWithSalt(String instanceId, BooleanSupplier stopped) {
         SaltPayload payload = new SaltPayload("event.send", "local", saltMasterMinion,
                 new SaltPayload.Job("arg", String.format("tag=salt/minion/ec2/%s/auth", instanceId)));
-        makeSaltCall(instanceId, token, null, payload);
+        makeSaltCall(instanceId, stopped, payload);
     }
 
     // Remove EC2 instance from Salt
     @Override
     public void terminate(String instanceId, String availabilityZone) {
-        EC2Details details = AWSHelper.getInstanceDetails(instanceId, availabilityZone);
-        Map<String, String > tags = details.tags.stream()
-                .collect(Collectors.toMap(Tag::getKey, Tag::getValue));
+        terminate(instanceId, availabilityZone, EventProgress.untracked(instanceId, "terminate"));
+    }
 
-        String tag = String.format("tag=salt/minion/ec2/%s/terminated", instanceId);
-        String data = String.format("data=%s", new Gson().toJson(tags));
+    @Override
+    public void terminate(String instanceId, String availabilityZone, EventProgress progress) {
+        long start = System.currentTimeMillis();
+        Map<String, String> tags = getTerminatedTags(instanceId, availabilityZone);
 
-        String token = saltLogin(instanceId);
+        String tag = String.format("tag=salt/minion/ec2/%s/terminated", instanceId);
+        String data = String.format("data=%s", gson.toJson(tags));
 
         SaltPayload payload = new SaltPayload("event.send", "local", saltMasterMinion, new SaltPayload.Job("arg", tag),
                 new SaltPayload.Job("arg", data));
-        makeSaltCall(instanceId, token, null, payload);
+        SaltPayload deleteKey = new SaltPayload("key.delete", "wheel", "'*'", new SaltPayload.Job("match", instanceId));
 
-        payload = new SaltPayload("key.delete", "wheel", "'*'", new SaltPayload.Job("match", instanceId));
-        makeSaltCall(instanceId, token, null, payload);
+        // both chunks go out in one request, the terminated event first
+        makeSaltCall(instanceId, payload, deleteKey);
+        progress.record(InstanceState.SALT_REMOVED);
+        Metrics.trace(instanceId, "salt.terminate", System.currentTimeMillis() - start);
+    }
+
+    // Tags for the terminated event. An instance that was never described here and is already gone
+    // from EC2 is still removed from Salt, just without its tags.
+    private Map<String, String> getTerminatedTags(String instanceId, String availabilityZone) {
+        EC2Details details;
+        try {
+            details = AWSHelper.getKnownInstanceDetails(instanceId, availabilityZone);
+        } catch (RuntimeException e) {
+            if (e instanceof AmazonClientException) {
+                // EC2 couldn't be asked, the retry may still get the tags
+                throw e;
+            }
+            logger.warn(String.format("No details for %s, sending the terminated event without tags: %s", instanceId,
+                    e.getLocalizedMessage()));
+            return Collections.emptyMap();
+        }
+
+        return details.tags == null ? Collections.emptyMap() : details.tags.stream()
+                .collect(Collectors.toMap(Tag::getKey, Tag::getValue, (a, b) -> b));
+    }
+
+    @Override
+    public long timeoutMillis() {
+        // a bootstrap has its own deadline, leave room for Salt registration after it
+        return BOOT_TIMEOUT_MILLIS + TimeUnit.MINUTES.toMillis(1);
     }
 
     @Override
@@ -122,28 +228,36 @@ public class SaltEC2InstanceImpl implements EC2Instance {
         return true;
     }
 
-    // Salt login helper
-    private String saltLogin(String instanceId) {
+    // Delete keys left behind by missed terminates and accept keys of instances whose launch was missed
+    @Override
+    public void reconcile(Fleet fleet) {
+        reconciler.reconcile(fleet);
+    }
+
+    // Salt login helper, only called by the token cache when it needs a fresh token
+    private SaltLogin.Return saltLogin(String instanceId) {
         logger.info("Starting Salt login flow");
+        long start = Metrics.start();
 
         Form form = new Form();
         form.param("username", properties.getProperty("ec2.username"));
         form.param("password", properties.getProperty("ec2.password"));
         form.param("eauth", "pam");
 
-        Response response = client.target(baseUrl)
+        Response response = HttpTransport.getClient().target(baseUrl)
                 .path("login")
                 .request(MediaType.APPLICATION_JSON_TYPE)
                 .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE));
 
         if(response.getStatus() != 200) {
+            response.close();
             String message = String.format("Can't authenicate with Salt: code %s", response.getStatus());
             AlertHandler.alert(Level.ERROR, instanceId, message);
             throw new RuntimeException(message);
         }
 
         String body = response.readEntity(String.class);
-        SaltLogin saltLogin = new Gson().fromJson(body, SaltLogin.class);
+        SaltLogin saltLogin = gson.fromJson(body, SaltLogin.class);
 
         if(saltLogin.returns.size() < 1) {
             String message = String.format("No token returned from Salt! Body: %s", body);
@@ -151,31 +265,109 @@ public class SaltEC2InstanceImpl implements EC2Instance {
             throw new UnsupportedOperationException(message);
         }
 
-        String token = saltLogin.returns.get(0).token;
         logger.info("Logged into salt successfully");
+        Metrics.record("salt.login", start);
+
+        return saltLogin.returns.get(0);
+    }
 
-        return token;
+    // Salt API helper. Calls from concurrent workers are merged into one lowstate request and
+    // the result for each payload is returned in order.
+    List<String> makeSaltCall(String instanceId, SaltPayload... payloads) {
+        return makeSaltCall(instanceId, () -> false, payloads);
     }
 
-    // Salt API helper
-    private String makeSaltCall(String instanceId, String token, String path, SaltPayload payload) {
-        if(StringUtils.isNullOrEmpty(path)) {
-            path = "/";
+    List<String> makeSaltCall(String instanceId, BooleanSupplier stopped, SaltPayload... payloads) {
+        try {
+            List<String> results = callBatcher.submit(stopped, payloads);
+            logger.debug(String.format("Event fired to Salt. Response: %s", results));
+            return results;
+        } catch (CancellationException e) {
+            logger.info(String.format("%s: Salt call stopped before it was sent", instanceId));
+            throw e;
+        } catch (RuntimeException e) {
+            AlertHandler.alert(Level.ERROR, instanceId, String.format("Failed to update Salt! %s", e.getLocalizedMessage()));
+            throw e;
         }
+    }
 
-        Response response = client.target(baseUrl)
-                .path(path)
-                .request(MediaType.APPLICATION_JSON_TYPE)
-                .header("X-Auth-Token", token)
-                .post(Entity.entity(payload.getFormFromPayload(), MediaType.APPLICATION_FORM_URLENCODED_TYPE));
+    // POST a JSON list of lowstate chunks. A 401 means the cached token was revoked or expired
+    // early, so log in again and retry once.
+    private List<String> postLowstate(List<SaltPayload> payloads) {
+        List<Map<String, Object>> lowstate = payloads.stream()
+                .map(SaltPayload::getLowstate)
+                .collect(Collectors.toList());
+        String body = gson.toJson(lowstate);
+        long start = Metrics.start();
+        Metrics.add("salt.call.chunks", payloads.size());
+
+        String token = tokenCache.getToken(SALT_API);
+        Response response = postSaltCall(token, body);
+
+        if(response.getStatus() == 401) {
+            logger.info("Salt rejected the cached token, logging in again");
+            Metrics.increment("salt.token.rejected");
+            response.close();
+            tokenCache.invalidate(token);
+            response = postSaltCall(tokenCache.getToken(SALT_API), body);
+        }
 
         if(response.getStatus() != 200) {
-            AlertHandler.alert(Level.ERROR, instanceId, String.format("Failed to update Salt! Code: %s", response.getStatus()));
-            throw new RuntimeException();
-        } else {
-            String result = response.readEntity(String.class);
-            logger.debug(String.format("Event fired to Salt. Response: %s", result));
+            int status = response.getStatus();
+            response.close();
+            throw new RuntimeException(String.format("Code: %s", status));
+        }
+
+        SaltReturn saltReturn = gson.fromJson(response.readEntity(String.class), SaltReturn.class);
+        Metrics.record("salt.call", start);
+        if(saltReturn == null || saltReturn.returns == null) {
+            throw new RuntimeException("Salt response had no return list");
+        }
+
+        return saltReturn.returns.stream()
+                .map(JsonElement::toString)
+                .collect(Collectors.toList());
+    }
+
+    // What went wrong in one chunk's return, null if it worked. Wheel functions report it in
+    // data.success, local functions map each minion to its result, false when it failed.
+    static String chunkError(String result) {
+        JsonElement element;
+        try {
+            element = gson.fromJson(result, JsonElement.class);
+        } catch (JsonSyntaxException e) {
+            // not something salt-api wraps, nothing to judge it by
+            return null;
+        }
+        if(element != null && isFalse(element)) {
             return result;
         }
+        if(element == null || !element.isJsonObject()) {
+            return null;
+        }
+
+        JsonObject object = element.getAsJsonObject();
+        JsonElement data = object.get("data");
+        if(data != null && data.isJsonObject() && data.getAsJsonObject().has("success")) {
+            return data.getAsJsonObject().get("success").getAsBoolean() ? null : result;
+        }
+        for(Map.Entry<String, JsonElement> minion : object.entrySet()) {
+            if(isFalse(minion.getValue())) {
+                return String.format("%s returned false", minion.getKey());
+            }
+        }
+        return null;
+    }
+
+    private static boolean isFalse(JsonElement element) {
+        return element.isJsonPrimitive() && element.getAsJsonPrimitive().isBoolean() && !element.getAsBoolean();
+    }
+
+    private Response postSaltCall(String token, String body) {
+        return HttpTransport.getClient().target(baseUrl)
+                .path("/")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .header("X-Auth-Token", token)
+                .post(Entity.entity(body, MediaType.APPLICATION_JSON_TYPE));
     }
 }
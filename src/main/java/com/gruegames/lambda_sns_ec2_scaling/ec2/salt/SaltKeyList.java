@@ -0,0 +1,33 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.List;
+
+// Result of the key.list_all wheel function, as wrapped by salt-api
+public class SaltKeyList {
+    public class Data {
+        @SerializedName("success")
+        public boolean success;
+
+        @SerializedName("return")
+        public Keys keys;
+    }
+
+    public class Keys {
+        @SerializedName("minions")
+        public List<String> accepted;
+
+        @SerializedName("minions_pre")
+        public List<String> pending;
+
+        @SerializedName("minions_rejected")
+        public List<String> rejected;
+
+        @SerializedName("minions_denied")
+        public List<String> denied;
+    }
+
+    @SerializedName("data")
+    public Data data;
+}
@@ -0,0 +1,132 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import com.google.gson.Gson;
+import com.gruegames.lambda_sns_ec2_scaling.alerts.AlertHandler;
+import com.gruegames.lambda_sns_ec2_scaling.ec2.Fleet;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// Compares the keys on the Salt master with what is actually running in EC2. Keys of instances
+// that no longer exist are deleted, and pending keys of InService instances are accepted. One
+// key.list_all call reads the master's state, and every change is sent in a single lowstate
+// request, with each chunk naming a few hundred keys. The keys are read before EC2 is listed, so
+// a key that shows up during the sweep is never taken for an orphan. Nothing is deleted unless the
+// listing covered every region, and at most a fraction of the accepted keys go in one sweep.
+class SaltKeyReconciler {
+    private static final Logger logger = Logger.getLogger(SaltKeyReconciler.class);
+    private static final Gson gson = new Gson();
+    // only keys named like an instance id are ours to delete, anything else was added by hand
+    private static final Pattern INSTANCE_ID = Pattern.compile("^i-([0-9a-f]{8}|[0-9a-f]{17})$");
+    private static final int KEYS_PER_CHUNK = 200;
+
+    private final SaltEC2InstanceImpl salt;
+    private final boolean dryRun;
+    private final double maxDeleteFraction;
+
+    SaltKeyReconciler(SaltEC2InstanceImpl salt, boolean dryRun, double maxDeleteFraction) {
+        this.salt = salt;
+        this.dryRun = dryRun;
+        this.maxDeleteFraction = maxDeleteFraction;
+    }
+
+    void reconcile(Fleet fleet) {
+        long start = System.currentTimeMillis();
+        SaltKeyList.Keys keys = listKeys();
+        Set<String> accepted = toSet(keys.accepted);
+        Set<String> pending = toSet(keys.pending);
+        Set<String> expected = fleet.getExpected();
+        Set<String> live = fleet.getLive();
+
+        Set<String> allKeys = new HashSet<>(accepted);
+        allKeys.addAll(pending);
+
+        List<String> orphans = new ArrayList<>();
+        for(String key : allKeys) {
+            if(INSTANCE_ID.matcher(key).matches() && !live.contains(key)) {
+                orphans.add(key);
+            }
+        }
+
+        List<String> toAccept = new ArrayList<>();
+        int unregistered = 0;
+        for(String instanceId : expected) {
+            if(accepted.contains(instanceId)) {
+                continue;
+            }
+
+            if(pending.contains(instanceId)) {
+                toAccept.add(instanceId);
+            } else {
+                unregistered++;
+            }
+        }
+
+        if(live.isEmpty() && !orphans.isEmpty()) {
+            // EC2 reported nothing at all, that is a configuration problem rather than an empty fleet
+            logger.warn(String.format("No live instances were found, not deleting %d keys", orphans.size()));
+            orphans.clear();
+        } else if(!fleet.isComplete() && !orphans.isEmpty()) {
+            logger.warn(String.format("reconcile.regions is not set, not deleting %d keys", orphans.size()));
+            orphans.clear();
+        }
+
+        int maxDeletes = Math.max(1, (int) (maxDeleteFraction * accepted.size()));
+        if(orphans.size() > maxDeletes) {
+            // more orphans than a lost notification or two explains, take the rest on the next sweeps
+            AlertHandler.alert(Level.WARN, SaltEC2InstanceImpl.SALT_API, String.format(
+                    "%d orphaned Salt keys found, only deleting %d of them this sweep (%d accepted keys)",
+                    orphans.size(), maxDeletes, accepted.size()));
+            Collections.sort(orphans);
+            orphans = new ArrayList<>(orphans.subList(0, maxDeletes));
+        }
+
+        logger.info(String.format("Salt reconcile: %d accepted and %d pending keys, %d expected instances, " +
+                "%d orphaned keys to delete, %d keys to accept, %d instances without a key%s", accepted.size(),
+                pending.size(), expected.size(), orphans.size(), toAccept.size(), unregistered, dryRun ? " (dry run)" : ""));
+
+        if(!dryRun && (!orphans.isEmpty() || !toAccept.isEmpty())) {
+            List<SaltPayload> payloads = new ArrayList<>();
+            payloads.addAll(chunk("key.delete", orphans));
+            payloads.addAll(chunk("key.accept", toAccept));
+            salt.makeSaltCall(SaltEC2InstanceImpl.SALT_API, payloads.toArray(new SaltPayload[payloads.size()]));
+        }
+
+        if(unregistered > 0) {
+            AlertHandler.alert(Level.WARN, SaltEC2InstanceImpl.SALT_API,
+                    String.format("%d InService instances have no Salt key", unregistered));
+        }
+
+        logger.info(String.format("Salt reconcile finished in %d ms", System.currentTimeMillis() - start));
+    }
+
+    private SaltKeyList.Keys listKeys() {
+        List<String> results = salt.makeSaltCall(SaltEC2InstanceImpl.SALT_API,
+                new SaltPayload("key.list_all", "wheel", "'*'"));
+        SaltKeyList keyList = gson.fromJson(results.get(0), SaltKeyList.class);
+        if(keyList == null || keyList.data == null || !keyList.data.success || keyList.data.keys == null) {
+            throw new RuntimeException(String.format("key.list_all failed: %s", results.get(0)));
+        }
+        return keyList.data.keys;
+    }
+
+    // wheel key functions accept a comma separated list of names as the match
+    private static List<SaltPayload> chunk(String function, List<String> keys) {
+        List<SaltPayload> payloads = new ArrayList<>();
+        for(int i = 0; i < keys.size(); i += KEYS_PER_CHUNK) {
+            String match = String.join(",", keys.subList(i, Math.min(i + KEYS_PER_CHUNK, keys.size())));
+            payloads.add(new SaltPayload(function, "wheel", "'*'", new SaltPayload.Job("match", match)));
+        }
+        return payloads;
+    }
+
+    private static Set<String> toSet(List<String> keys) {
+        return keys == null ? Collections.emptySet() : new HashSet<>(keys);
+    }
+}
@@ -10,10 +10,10 @@ public class SaltLogin {
         public List<String> permissions;
 
         @SerializedName("start")
-        public float start;
+        public double start;
 
         @SerializedName("expire")
-        public float expire;
+        public double expire;
 
         @SerializedName("token")
         public String token;
@@ -1,9 +1,12 @@
 package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
 
 import javax.ws.rs.core.Form;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class SaltPayload {
     public static class Job {
@@ -55,4 +58,28 @@ public class SaltPayload {
 
         return form;
     }
-}
\ No newline at end of file
+
+    // One lowstate chunk for a JSON POST to salt-api. Repeated "arg" jobs become the positional
+    // argument list, anything else is passed as a keyword argument.
+    public Map<String, Object> getLowstate() {
+        Map<String, Object> lowstate = new LinkedHashMap<>();
+        lowstate.put("client", client);
+        lowstate.put("fun", function);
+        lowstate.put("tgt", target);
+
+        List<String> args = new ArrayList<>();
+        for(Job job : jobs) {
+            if(job.command.equals("arg")) {
+                args.add(job.target);
+            } else {
+                lowstate.put(job.command, job.target);
+            }
+        }
+
+        if(!args.isEmpty()) {
+            lowstate.put("arg", args);
+        }
+
+        return lowstate;
+    }
+}
@@ -0,0 +1,323 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import com.gruegames.lambda_sns_ec2_scaling.alerts.AlertHandler;
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+import com.gruegames.lambda_sns_ec2_scaling.helper.SSHConnectionManager;
+import com.gruegames.lambda_sns_ec2_scaling.journal.EventProgress;
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.EC2Details;
+import net.schmizz.sshj.SSHClient;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs Salt bootstraps for many instances at once. Every stage (describe, readiness, Salt) is its own
+// asynchronous step, so a slow booting host only occupies a worker while a stage is actually running.
+// How readiness is detected is up to the ReadinessStrategy: polling over SSH or a signal from the instance.
+class SaltProvisioner {
+    private static final Logger logger = Logger.getLogger(SaltProvisioner.class);
+
+    enum Stage {
+        QUEUED,
+        DESCRIBING,
+        WAITING_FOR_SSH,
+        WAITING_FOR_CLOUD_INIT,
+        AWAITING_SIGNAL,
+        REGISTERING,
+        DONE,
+        FAILED
+    }
+
+    static class Provisioning {
+        final String instanceId;
+        final String availabilityZone;
+        final EventProgress progress;
+        final long startedAt = System.currentTimeMillis();
+        final long deadline;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        // completes once the stages have unwound, which can be after a cancel or the deadline
+        // decided the outcome if a stage was running on a worker at the time
+        final CompletableFuture<Void> settled = new CompletableFuture<>();
+        final Map<Stage, Long> stageStartedAt = new EnumMap<>(Stage.class);
+        volatile Stage stage = Stage.QUEUED;
+        volatile SSHClient ssh;
+        // what readiness is waiting on without holding a thread, dropped as soon as the bootstrap stops
+        private volatile CompletableFuture<?> waiting;
+        // a ready signal joined while this was in flight, so it goes on to Salt registration
+        private boolean signalled;
+        // stopped at AWAITING_SIGNAL, a ready signal has to start its own registration
+        private boolean parked;
+
+        Provisioning(String instanceId, String availabilityZone, EventProgress progress, long deadline) {
+            this.instanceId = instanceId;
+            this.availabilityZone = availabilityZone;
+            this.progress = progress;
+            this.deadline = deadline;
+        }
+
+        // True once the outcome is decided, no further Salt call may go out
+        boolean isStopped() {
+            return future.isDone();
+        }
+
+        // The outcome, delivered only after the stages observed it
+        CompletableFuture<Void> outcome() {
+            return settled.thenCompose(v -> future);
+        }
+
+        // Ask the bootstrap to register once readiness is through, false if it already stopped short of that
+        synchronized boolean signal() {
+            if (parked) {
+                return false;
+            }
+            signalled = true;
+            return true;
+        }
+
+        // Stop at AWAITING_SIGNAL unless a ready signal came in meanwhile
+        synchronized boolean park() {
+            if (signalled) {
+                return false;
+            }
+            parked = true;
+            return true;
+        }
+
+        void waitOn(CompletableFuture<?> wait) {
+            waiting = wait;
+            if (isStopped()) {
+                wait.cancel(false);
+            }
+        }
+
+        void stopWaiting() {
+            CompletableFuture<?> wait = waiting;
+            if (wait != null) {
+                wait.cancel(false);
+            }
+        }
+
+        synchronized void enter(Stage next) {
+            if (future.isDone() && next != Stage.DONE && next != Stage.FAILED) {
+                // timed out or failed elsewhere, don't start any more work
+                throw new CompletionException(new TimeoutException(String.format("%s stopped during %s", instanceId, stage)));
+            }
+            stage = next;
+            stageStartedAt.put(next, System.currentTimeMillis());
+        }
+
+        synchronized String timings() {
+            StringBuilder builder = new StringBuilder();
+            Long previous = null;
+            Stage previousStage = null;
+            for (Map.Entry<Stage, Long> entry : stageStartedAt.entrySet()) {
+                if (previous != null) {
+                    builder.append(String.format("%s=%dms ", previousStage, entry.getValue() - previous));
+                }
+                previous = entry.getValue();
+                previousStage = entry.getKey();
+            }
+            return builder.toString().trim();
+        }
+
+        // Add each finished stage to the instance's trace
+        synchronized void trace() {
+            Long previous = null;
+            Stage previousStage = null;
+            for (Map.Entry<Stage, Long> entry : stageStartedAt.entrySet()) {
+                if (previous != null) {
+                    Metrics.trace(instanceId, "salt.provision." + previousStage.name().toLowerCase(), entry.getValue() - previous);
+                }
+                previous = entry.getValue();
+                previousStage = entry.getKey();
+            }
+        }
+    }
+
+    private final SaltEC2InstanceImpl salt;
+    private final long bootTimeoutMillis;
+    private final ExecutorService workers;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ReadinessStrategy readiness;
+    private final ConcurrentHashMap<String, Provisioning> inFlight = new ConcurrentHashMap<>();
+
+    // signalReadiness picks push readiness (SignalReadiness) over polling over SSH (SSHReadiness)
+    SaltProvisioner(SaltEC2InstanceImpl salt, int concurrency, long bootTimeoutMillis, boolean signalReadiness) {
+        this.salt = salt;
+        this.bootTimeoutMillis = bootTimeoutMillis;
+        this.workers = Executors.newFixedThreadPool(concurrency, daemonThreads("salt-provisioner"));
+        this.scheduler = new ScheduledThreadPoolExecutor(1, daemonThreads("salt-provisioner-timer"));
+        // a deadline is cancelled when its bootstrap finishes, don't keep it queued until it would have fired
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.readiness = signalReadiness ? new SignalReadiness(this, workers) : new SSHReadiness(salt, this, workers, scheduler);
+    }
+
+    // Start provisioning an instance, skipping whatever progress says is already done. A second request for an instance that is already in flight
+    // shares the running bootstrap; if that one would stop at AWAITING_SIGNAL and the request is past cloud-init, it either makes
+    // the bootstrap go on to registration or registers once it has stopped. The returned future completes once no stage is running any more.
+    CompletableFuture<Void> provision(String instanceId, String availabilityZone, EventProgress progress) {
+        if (progress.isAtLeast(InstanceState.SALT_REGISTERED)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Provisioning created = new Provisioning(instanceId, availabilityZone, progress,
+                System.currentTimeMillis() + bootTimeoutMillis);
+        Provisioning existing = inFlight.putIfAbsent(instanceId, created);
+        if (existing != null) {
+            logger.info(String.format("%s is already provisioning (%s)", instanceId, existing.stage));
+            if (!progress.isAtLeast(InstanceState.CLOUD_INIT_DONE)) {
+                return existing.outcome();
+            }
+            if (existing.signal()) {
+                return existing.outcome().thenRun(() -> progress.record(InstanceState.SALT_REGISTERED));
+            }
+            // the launch is parked waiting for this very signal, register once it has left
+            return existing.outcome().thenCompose(v -> provision(instanceId, availabilityZone, progress));
+        }
+
+        start(created);
+        return created.outcome();
+    }
+
+    // Abandon an in-flight bootstrap. Stages that haven't started yet are skipped, a Salt call that
+    // hasn't gone out is dropped and the SSH connection is released. The caller's future fails with a
+    // CancellationException once a stage that was already running has returned.
+    boolean cancel(String instanceId) {
+        Provisioning provisioning = inFlight.get(instanceId);
+        if (provisioning == null) {
+            return false;
+        }
+
+        logger.info(String.format("Cancelling provisioning of %s during %s", instanceId, provisioning.stage));
+        return provisioning.future.completeExceptionally(new CancellationException(
+                String.format("%s was terminated during %s", instanceId, provisioning.stage)));
+    }
+
+    Stage getStage(String instanceId) {
+        Provisioning provisioning = inFlight.get(instanceId);
+        return provisioning == null ? null : provisioning.stage;
+    }
+
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    // Deadlines and cloud-init polls waiting on the timer
+    int getPendingTimers() {
+        return scheduler.getQueue().size();
+    }
+
+    private void start(Provisioning p) {
+        ScheduledFuture<?> deadline = scheduler.schedule(() -> p.future.completeExceptionally(new TimeoutException(
+                String.format("%s did not finish provisioning before the deadline (stuck in %s)", p.instanceId, p.stage))),
+                bootTimeoutMillis, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<Boolean> ready;
+        if (p.progress.isAtLeast(InstanceState.CLOUD_INIT_DONE)) {
+            // an earlier delivery got this far, or the instance said it is ready; only Salt is left to do
+            logger.info(String.format("%s already finished cloud-init, resuming at Salt registration", p.instanceId));
+            ready = CompletableFuture.completedFuture(true);
+        } else {
+            ready = readiness.awaitReady(p);
+        }
+
+        ready
+                .thenAcceptAsync(readyNow -> {
+                    disconnect(p);
+                    if (!readyNow && p.park()) {
+                        // the ready signal picks this up again, nothing to hold on to until then
+                        return;
+                    }
+
+                    p.enter(Stage.REGISTERING);
+                    salt.registerWithSalt(p.instanceId, p::isStopped);
+                    p.progress.record(InstanceState.SALT_REGISTERED);
+                }, workers)
+                .whenComplete((v, e) -> {
+                    if (e == null) {
+                        p.future.complete(null);
+                    } else {
+                        p.future.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    }
+                    p.settled.complete(null);
+                });
+
+        p.future.whenComplete((v, e) -> {
+            deadline.cancel(false);
+            // a wait for the port or cloud-init would otherwise keep the stages going until the deadline
+            p.stopWaiting();
+            finish(p, e);
+        });
+    }
+
+    EC2Details describe(Provisioning p) {
+        p.enter(Stage.DESCRIBING);
+        EC2Details details = salt.describe(p.instanceId, p.availabilityZone);
+        p.progress.record(InstanceState.DESCRIBED);
+        return details;
+    }
+
+    private void finish(Provisioning p, Throwable error) {
+        disconnect(p);
+        inFlight.remove(p.instanceId, p);
+
+        long total = System.currentTimeMillis() - p.startedAt;
+        if (error == null && p.stage == Stage.AWAITING_SIGNAL) {
+            p.trace();
+            logger.info(String.format("%s described in %d ms, Salt registration waits for its ready signal", p.instanceId, total));
+        } else if (error == null) {
+            p.enter(Stage.DONE);
+            p.trace();
+            Metrics.recordMillis("salt.provision", total);
+            logger.info(String.format("Provisioned %s in %d ms (%s), %d still in flight", p.instanceId, total,
+                    p.timings(), inFlight.size()));
+        } else {
+            Stage failedAt = p.stage;
+            p.enter(Stage.FAILED);
+            p.trace();
+            Metrics.increment(error instanceof CancellationException ? "salt.provision.cancelled" : "salt.provision.failed");
+            if (error instanceof CancellationException) {
+                logger.info(String.format("Provisioning %s was cancelled during %s after %d ms", p.instanceId, failedAt, total));
+                return;
+            }
+
+            logger.error(String.format("Provisioning %s failed during %s after %d ms (%s)", p.instanceId, failedAt,
+                    total, p.timings()), error);
+
+            if (error instanceof TimeoutException) {
+                AlertHandler.alert(Level.ERROR, p.instanceId, error.getLocalizedMessage());
+            }
+        }
+    }
+
+    static void disconnect(Provisioning p) {
+        SSHClient ssh = p.ssh;
+        p.ssh = null;
+        if (ssh != null) {
+            SSHConnectionManager.release(ssh);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, String.format("%s-%d", name, count.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,12 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import com.google.gson.JsonElement;
+import com.google.gson.annotations.SerializedName;
+
+import java.util.List;
+
+public class SaltReturn {
+    // one entry per lowstate chunk, in request order
+    @SerializedName("return")
+    public List<JsonElement> returns;
+}
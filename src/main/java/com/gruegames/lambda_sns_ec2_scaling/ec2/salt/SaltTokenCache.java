@@ -0,0 +1,94 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Keeps the salt-api token between calls and invocations. The token is refreshed shortly before
+// the expire time Salt hands back, and concurrent callers that find it missing share one login.
+class SaltTokenCache {
+    private static final Logger logger = Logger.getLogger(SaltTokenCache.class);
+    private static final long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // kept when Salt leaves out expire or hands back one already due, rather than logging in on every call;
+    // a token Salt drops before then is rejected and invalidated as usual
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final Function<String, SaltLogin.Return> login;
+    private String token;
+    private long expiresAt;
+    private CompletableFuture<String> pendingLogin;
+
+    // login takes the instance id the login is made on behalf of, for alerting
+    SaltTokenCache(Function<String, SaltLogin.Return> login) {
+        this.login = login;
+    }
+
+    String getToken(String instanceId) {
+        CompletableFuture<String> future;
+        boolean leader = false;
+
+        synchronized (this) {
+            if (token != null && System.currentTimeMillis() < expiresAt - REFRESH_MARGIN_MILLIS) {
+                return token;
+            }
+
+            if (pendingLogin == null) {
+                pendingLogin = new CompletableFuture<>();
+                leader = true;
+            }
+            future = pendingLogin;
+        }
+
+        if (leader) {
+            try {
+                SaltLogin.Return result = login.apply(instanceId);
+                synchronized (this) {
+                    token = result.token;
+                    expiresAt = expiresAt(result.expire, System.currentTimeMillis());
+                    pendingLogin = null;
+                }
+                logger.info(String.format("Cached Salt token, expires in %d s",
+                        (expiresAt - System.currentTimeMillis()) / 1000));
+                future.complete(result.token);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    pendingLogin = null;
+                }
+                future.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Salt reports start/expire as epoch seconds
+    static long expiresAt(double expire, long now) {
+        long expiresAt = (long) (expire * 1000);
+        if (expiresAt - REFRESH_MARGIN_MILLIS <= now) {
+            logger.warn(String.format("Salt token expire %.0f is missing or not in the future, keeping it for %d s",
+                    expire, TimeUnit.MILLISECONDS.toSeconds(DEFAULT_TTL_MILLIS)));
+            return now + DEFAULT_TTL_MILLIS;
+        }
+        return expiresAt;
+    }
+
+    // Drop the token if it is still the one that was rejected, so the next caller logs in again
+    synchronized void invalidate(String rejected) {
+        if (token != null && token.equals(rejected)) {
+            logger.info("Salt token was rejected, dropping it");
+            token = null;
+            expiresAt = 0;
+        }
+    }
+}
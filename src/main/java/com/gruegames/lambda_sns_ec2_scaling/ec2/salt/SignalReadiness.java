@@ -0,0 +1,32 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+// Push readiness: the instance publishes an ec2:INSTANCE_READY message to the scaling topic once
+// cloud-init is done. The launch only checks that the instance exists and then stops; the ready
+// message resumes the workflow at Salt registration. Nothing is held while the instance boots, no
+// SSH connection is made and no shared login is needed.
+class SignalReadiness implements ReadinessStrategy {
+    private static final Logger logger = Logger.getLogger(SignalReadiness.class);
+
+    private final SaltProvisioner provisioner;
+    private final ExecutorService workers;
+
+    SignalReadiness(SaltProvisioner provisioner, ExecutorService workers) {
+        this.provisioner = provisioner;
+        this.workers = workers;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> awaitReady(SaltProvisioner.Provisioning p) {
+        return CompletableFuture.supplyAsync(() -> {
+            provisioner.describe(p);
+            p.enter(SaltProvisioner.Stage.AWAITING_SIGNAL);
+            logger.info(String.format("%s: waiting for the instance to signal it is ready", p.instanceId));
+            return false;
+        }, workers);
+    }
+}
@@ -0,0 +1,20 @@
+package com.gruegames.lambda_sns_ec2_scaling.enums;
+
+// Progress of one scaling activity for an instance, in the order the steps complete
+public enum InstanceState {
+    RECEIVED,
+    DESCRIBED,
+    REACHABLE,
+    CLOUD_INIT_DONE,
+    SALT_REGISTERED,
+    SALT_REMOVED;
+
+    public boolean isAtLeast(InstanceState other) {
+        return compareTo(other) >= 0;
+    }
+
+    // Salt has the outcome of the activity, nothing is left to resume
+    public boolean isFinal() {
+        return isAtLeast(SALT_REGISTERED);
+    }
+}
@@ -1,116 +1,370 @@
 package com.gruegames.lambda_sns_ec2_scaling.helper;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.services.autoscaling.AmazonAutoScalingClient;
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.CompleteLifecycleActionRequest;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsResult;
+import com.amazonaws.services.autoscaling.model.RecordLifecycleActionHeartbeatRequest;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.util.StringUtils;
+import com.gruegames.lambda_sns_ec2_scaling.metadata.InstanceMetadataCache;
 import com.gruegames.lambda_sns_ec2_scaling.pojo.EC2Details;
 import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.connection.ConnectionException;
-import net.schmizz.sshj.connection.channel.direct.Session;
-import net.schmizz.sshj.transport.TransportException;
-import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
-import net.schmizz.sshj.userauth.UserAuthException;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.security.Security;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class AWSHelper {
     private static Logger logger = LogManager.getLogger(AWSHelper.class);
-    private static BasicAWSCredentials awsCredentials;
-    private static Properties properties = new Properties();
 
-    static {
-        try {
-            properties.load(AWSHelper.class.getResourceAsStream("/ec2.properties"));
-        } catch (IOException e) {
-            logger.error("Can't load properties file: ", e);
-            throw new RuntimeException();
+    // EC2 clients are thread safe, keep one per region for the life of the container
+    private static final ConcurrentHashMap<String, AmazonEC2Client> ec2Clients = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AmazonAutoScalingClient> autoScalingClients = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AmazonSQSClient> sqsClients = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AmazonDynamoDBClient> dynamoDBClients = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Region> azRegions = new ConcurrentHashMap<>();
+    private static final Pattern azRegionPattern = Pattern.compile("^([a-z]{2}(-gov)?-[a-z]+-\\d+)");
+    private static final Pattern arnRegionPattern = Pattern.compile("^arn:[^:]+:[^:]+:([^:]+):");
+    private static final long DEFAULT_LIFECYCLE_HEARTBEAT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int DEFAULT_SSH_PORT = 22;
+    private static final long INSTANCE_READY_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // page sizes are the API maximums, so a few thousand instances only take a handful of calls
+    private static final int ASG_PAGE_SIZE = 100;
+    private static final int ASG_NAMES_PER_CALL = 50;
+    private static final int INSTANCE_PAGE_SIZE = 1000;
+
+    // ec2.properties is read the first time a setting is needed, not when the class is loaded
+    private static class Config {
+        static final Properties properties = load();
+        static final BasicAWSCredentials awsCredentials = new BasicAWSCredentials(
+                properties.getProperty("aws.access.key.id"), properties.getProperty("aws.secret.access.key"));
+        static final String ec2Endpoint = properties.getProperty("aws.ec2.endpoint");
+        static final String autoScalingEndpoint = properties.getProperty("aws.autoscaling.endpoint");
+        static final int sshPort = parseSSHPort(properties.getProperty("ec2.ssh.port"));
+
+        private static Properties load() {
+            Properties properties = new Properties();
+            try {
+                properties.load(AWSHelper.class.getResourceAsStream("/ec2.properties"));
+            } catch (IOException e) {
+                logger.error("Can't load properties file: ", e);
+                throw new RuntimeException();
+            }
+            return properties;
         }
 
-        awsCredentials = new BasicAWSCredentials(properties.getProperty("aws.access.key.id"),
-                properties.getProperty("aws.secret.access.key"));
+        private static int parseSSHPort(String property) {
+            return StringUtils.isNullOrEmpty(property) ? DEFAULT_SSH_PORT : Integer.parseInt(property.trim());
+        }
     }
 
     private AWSHelper() {}
 
-    // Get EC2 instance details from AWS
+    // Get EC2 instance details from AWS. Lookups from concurrent callers are batched into one
+    // DescribeInstances call per region. The result is kept for getKnownInstanceDetails.
     public static EC2Details getInstanceDetails(String instanceId, String azone) {
-        AmazonEC2Client client = new AmazonEC2Client(awsCredentials);
-        client.setRegion(AWSHelper.getRegionFromAZ(client, azone));
+        EC2Details details = InstanceDetailsBatcher.getInstanceDetails(instanceId, getRegionFromAZ(azone));
+        InstanceMetadataCache.remember(instanceId, details);
+        return details;
+    }
 
-        DescribeInstancesRequest request = new DescribeInstancesRequest();
-        request.setInstanceIds(Collections.singletonList(instanceId));
-        DescribeInstancesResult result = client.describeInstances(request);
+    // Details captured when the instance was last described, only calling EC2 if it never was.
+    // Meant for terminating instances, which EC2 may no longer return.
+    public static EC2Details getKnownInstanceDetails(String instanceId, String azone) {
+        EC2Details details = InstanceMetadataCache.get(instanceId);
+        return details == null ? getInstanceDetails(instanceId, azone) : details;
+    }
 
-        if(result == null) {
-            throw new RuntimeException(String.format("Instance id %s was not found!", instanceId));
+    // Test the SSH connection and back off until it is ready
+    public static SSHClient waitForEC2Instance(String instanceIp, String username, String password) {
+        return waitForEC2Instance(instanceIp, username, password, System.currentTimeMillis() + INSTANCE_READY_TIMEOUT_MILLIS);
+    }
+
+    public static SSHClient waitForEC2Instance(String instanceIp, String username, String password, long deadline) {
+        // see if machine is up yet, without holding this thread in a connect loop
+        logger.info(String.format("Trying to reach %s", instanceIp));
+        CompletableFuture<Void> reachable = awaitSSHPort(instanceIp, deadline);
+        try {
+            reachable.get();
+        } catch (InterruptedException e) {
+            reachable.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(String.format("Interrupted waiting for %s", instanceIp), e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(String.format("%s is not reachable", instanceIp), e.getCause());
         }
 
-        Instance instance = result.getReservations().get(0).getInstances().get(0);
-        logger.info(String.format("Found EC2 instance: %s", instance.getInstanceId()));
+        return connectSSH(instanceIp, username, password, deadline);
+    }
 
-        String ip = instance.getPrivateIpAddress();
-        String instanceName = instance.getPrivateDnsName();
-        List<Tag> tags  = instance.getTags();
+    // Completes once the SSH port accepts connections, without tying up the calling thread
+    public static CompletableFuture<Void> awaitSSHPort(String instanceIp, long deadline) {
+        return ReadinessProbe.getInstance().awaitPort(instanceIp, Config.sshPort, deadline);
+    }
 
-        logger.info(String.format("Found instance ip %s and name %s", ip, instanceName));
-        return new EC2Details(ip, instanceName, tags);
+    // Open an authenticated SSH connection to a host that is already accepting connections,
+    // backing off while sshd is still coming up. The connection is shared through SSHConnectionManager.
+    public static SSHClient connectSSH(String instanceIp, String username, String password, long deadline) {
+        return SSHConnectionManager.acquire(instanceIp, SSHConnectionManager.Credentials.password(username, password), deadline);
     }
 
-    // Test the SSH connection and sleep until it is ready
-    public static SSHClient waitForEC2Instance(String instanceIp, String username, String password) {
-        // see if machine is up yet
-        logger.info(String.format("Trying to reach %s", instanceIp));
-        while (!AWSHelper.isReachable(instanceIp)) {
-            try {
-                logger.info("Sleeping...");
-                Thread.sleep(5000);
-            } catch (InterruptedException e) { }
+    // Port sshd listens on, 22 unless ec2.ssh.port says otherwise
+    public static int getSSHPort() {
+        return Config.sshPort;
+    }
+
+    // Get the shared EC2 client for a region
+    public static AmazonEC2Client getEC2Client(Region region) {
+        return ec2Clients.computeIfAbsent(region.getName(), name -> {
+            AmazonEC2Client client = new AmazonEC2Client(Config.awsCredentials);
+            client.setRegion(region);
+            if(!StringUtils.isNullOrEmpty(Config.ec2Endpoint)) {
+                client.setEndpoint(Config.ec2Endpoint);
+            }
+
+            logger.info(String.format("Created EC2 client for region %s", name));
+            return client;
+        });
+    }
+
+    // How often in-flight lifecycle actions are heartbeated, keep it well under the hook's heartbeat timeout
+    public static long getLifecycleHeartbeatMillis() {
+        String property = Config.properties.getProperty("autoscaling.lifecycle.heartbeat.seconds");
+        return StringUtils.isNullOrEmpty(property) ? DEFAULT_LIFECYCLE_HEARTBEAT_MILLIS
+                : TimeUnit.SECONDS.toMillis(Long.parseLong(property.trim()));
+    }
+
+    // Keep a lifecycle hook's wait state open for another heartbeat timeout
+    public static void recordLifecycleActionHeartbeat(Region region, String groupName, String hookName, String token,
+                                                      String instanceId) {
+        getAutoScalingClient(region).recordLifecycleActionHeartbeat(new RecordLifecycleActionHeartbeatRequest()
+                .withAutoScalingGroupName(groupName)
+                .withLifecycleHookName(hookName)
+                .withLifecycleActionToken(token)
+                .withInstanceId(instanceId));
+    }
+
+    // Let the instance leave the lifecycle wait state, result is CONTINUE or ABANDON
+    public static void completeLifecycleAction(Region region, String groupName, String hookName, String token,
+                                               String instanceId, String result) {
+        getAutoScalingClient(region).completeLifecycleAction(new CompleteLifecycleActionRequest()
+                .withAutoScalingGroupName(groupName)
+                .withLifecycleHookName(hookName)
+                .withLifecycleActionToken(token)
+                .withInstanceId(instanceId)
+                .withLifecycleActionResult(result));
+    }
+
+    // Region name from an ARN such as a topic ARN (arn:aws:sns:us-east-1:123456789012:topic)
+    public static String getRegionNameFromArn(String arn) {
+        if(arn == null) {
+            return null;
         }
 
-        Security.addProvider(new BouncyCastleProvider());
-        SSHClient ssh = null;
-        while(true) {
-            try {
-                ssh = new SSHClient();
-                ssh.addHostKeyVerifier(new PromiscuousVerifier());
-                ssh.setConnectTimeout(5000);
+        Matcher matcher = arnRegionPattern.matcher(arn);
+        return matcher.find() && !matcher.group(1).isEmpty() ? matcher.group(1) : null;
+    }
+
+    // Regions swept by reconcile, from reconcile.regions (defaults to the SDK default region, see
+    // isReconcileRegionsConfigured)
+    public static List<Region> getReconcileRegions() {
+        List<Region> regions = new ArrayList<>();
+        for(String name : splitProperty("reconcile.regions")) {
+            regions.add(Region.getRegion(Regions.fromName(name)));
+        }
+
+        if(regions.isEmpty()) {
+            regions.add(Region.getRegion(Regions.DEFAULT_REGION));
+        }
+        return regions;
+    }
+
+    // True when reconcile.regions names the regions to sweep. Without it only the default region is
+    // listed, which can't show that an instance is gone.
+    public static boolean isReconcileRegionsConfigured() {
+        return !splitProperty("reconcile.regions").isEmpty();
+    }
+
+    // Auto Scaling groups swept by reconcile, empty means every group in the region
+    public static List<String> getReconcileGroupNames() {
+        return splitProperty("reconcile.autoscaling.groups");
+    }
+
+    private static List<String> splitProperty(String name) {
+        List<String> values = new ArrayList<>();
+        String property = Config.properties.getProperty(name);
+        if(StringUtils.isNullOrEmpty(property)) {
+            return values;
+        }
+
+        for(String value : property.split(",")) {
+            if(!value.trim().isEmpty()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    // Get the shared Auto Scaling client for a region
+    public static AmazonAutoScalingClient getAutoScalingClient(Region region) {
+        return autoScalingClients.computeIfAbsent(region.getName(), name -> {
+            AmazonAutoScalingClient client = new AmazonAutoScalingClient(Config.awsCredentials);
+            client.setRegion(region);
+            if(!StringUtils.isNullOrEmpty(Config.autoScalingEndpoint)) {
+                client.setEndpoint(Config.autoScalingEndpoint);
+            }
+
+            logger.info(String.format("Created Auto Scaling client for region %s", name));
+            return client;
+        });
+    }
+
+    // Get the shared SQS client for a region
+    public static AmazonSQSClient getSQSClient(Region region) {
+        return sqsClients.computeIfAbsent(region.getName(), name -> {
+            AmazonSQSClient client = new AmazonSQSClient(Config.awsCredentials);
+            client.setRegion(region);
+
+            logger.info(String.format("Created SQS client for region %s", name));
+            return client;
+        });
+    }
+
+    // Get the shared DynamoDB client for a region
+    public static AmazonDynamoDBClient getDynamoDBClient(Region region) {
+        return dynamoDBClients.computeIfAbsent(region.getName(), name -> {
+            AmazonDynamoDBClient client = new AmazonDynamoDBClient(Config.awsCredentials);
+            client.setRegion(region);
 
-                logger.info(String.format("Trying to SSH into %s", instanceIp));
-                ssh.connect(instanceIp);
-                ssh.authPassword(username, password);
+            logger.info(String.format("Created DynamoDB client for region %s", name));
+            return client;
+        });
+    }
 
-                try(Session session = ssh.startSession()) {
-                    logger.info("SSH Session able to start");
-                    return ssh;
+    // Ids of every InService instance in the given groups, or in all groups of the region when
+    // groupNames is empty
+    public static Set<String> getAutoScalingInstanceIds(Region region, Collection<String> groupNames) {
+        AmazonAutoScalingClient client = getAutoScalingClient(region);
+        Set<String> instanceIds = new HashSet<>();
+
+        List<List<String>> nameChunks = new ArrayList<>();
+        if(groupNames == null || groupNames.isEmpty()) {
+            nameChunks.add(null);
+        } else {
+            List<String> names = new ArrayList<>(groupNames);
+            for(int i = 0; i < names.size(); i += ASG_NAMES_PER_CALL) {
+                nameChunks.add(names.subList(i, Math.min(i + ASG_NAMES_PER_CALL, names.size())));
+            }
+        }
+
+        for(List<String> names : nameChunks) {
+            String nextToken = null;
+            do {
+                DescribeAutoScalingGroupsRequest request = new DescribeAutoScalingGroupsRequest()
+                        .withMaxRecords(ASG_PAGE_SIZE)
+                        .withNextToken(nextToken);
+                if(names != null) {
+                    request.setAutoScalingGroupNames(names);
+                }
+
+                DescribeAutoScalingGroupsResult result = client.describeAutoScalingGroups(request);
+                for(AutoScalingGroup group : result.getAutoScalingGroups()) {
+                    group.getInstances().stream()
+                            .filter(instance -> "InService".equals(instance.getLifecycleState()))
+                            .forEach(instance -> instanceIds.add(instance.getInstanceId()));
+                }
+                nextToken = result.getNextToken();
+            } while(!StringUtils.isNullOrEmpty(nextToken));
+        }
+
+        return instanceIds;
+    }
+
+    // Ids of every instance in the region that hasn't been terminated or begun shutting down
+    public static Set<String> getLiveInstanceIds(Region region) {
+        AmazonEC2Client client = getEC2Client(region);
+        Set<String> instanceIds = new HashSet<>();
+
+        String nextToken = null;
+        do {
+            DescribeInstancesRequest request = new DescribeInstancesRequest()
+                    .withFilters(new Filter("instance-state-name").withValues("pending", "running", "stopping", "stopped"))
+                    .withMaxResults(INSTANCE_PAGE_SIZE)
+                    .withNextToken(nextToken);
+
+            DescribeInstancesResult result = client.describeInstances(request);
+            for(Reservation reservation : result.getReservations()) {
+                for(Instance instance : reservation.getInstances()) {
+                    instanceIds.add(instance.getInstanceId());
                 }
-            } catch (ConnectionException | UserAuthException e) {
-                logger.info(String.format("%s ssh is not ready, sleeping", instanceIp));
-
-                try {
-                    ssh.disconnect();
-                } catch (IOException ee) {}
-
-                try {
-                    Thread.sleep(10000);
-                } catch (InterruptedException ee) {}
-            } catch (TransportException e) {
-                logger.error("SSH Transport Exception", e);
-                throw new RuntimeException(e);
-            } catch (IOException e) {
-                logger.error("SSH IO Exception", e);
-                throw new RuntimeException(e);
             }
+            nextToken = result.getNextToken();
+        } while(!StringUtils.isNullOrEmpty(nextToken));
+
+        return instanceIds;
+    }
+
+    // Get AWS EC2 region from availability zone, memoized for the life of the container. A bare
+    // region name resolves to itself.
+    public static Region getRegionFromAZ(String azone) {
+        if(azone == null) {
+            throw new IllegalArgumentException("No availability zone or region to resolve");
+        }
+
+        Region region = azRegions.get(azone);
+        if(region != null) {
+            return region;
+        }
+
+        region = getRegionFromAZName(azone);
+        if(region == null) {
+            // unknown naming scheme, ask EC2; outside the map so its lock isn't held for the call
+            region = getRegionFromAZ(getEC2Client(Region.getRegion(Regions.DEFAULT_REGION)), azone);
+        }
+        Region existing = azRegions.putIfAbsent(azone, region);
+        return existing == null ? region : existing;
+    }
+
+    // AZ names are the region name plus a zone suffix (us-east-1a, us-west-2-lax-1a),
+    // so the region can usually be worked out without calling EC2
+    public static Region getRegionFromAZName(String azone) {
+        if(azone == null) {
+            return null;
+        }
+
+        Matcher matcher = azRegionPattern.matcher(azone);
+        if(!matcher.find()) {
+            return null;
+        }
+
+        try {
+            return Region.getRegion(Regions.fromName(matcher.group(1)));
+        } catch (IllegalArgumentException e) {
+            return null;
         }
     }
 
@@ -133,9 +387,19 @@ public class AWSHelper {
         return region;
     }
 
+    // True when AWS turned a call down for exceeding the request rate
+    public static boolean isThrottle(Exception e) {
+        if(!(e instanceof AmazonServiceException)) {
+            return false;
+        }
+
+        String code = ((AmazonServiceException) e).getErrorCode();
+        return code != null && (code.equals("RequestLimitExceeded") || code.startsWith("Throttling"));
+    }
+
     // from http://stackoverflow.com/a/34228756
     public static boolean isReachable(String addr) {
-        int openPort = 22;
+        int openPort = Config.sshPort;
         int timeOutMillis = 2000;
 
         try {
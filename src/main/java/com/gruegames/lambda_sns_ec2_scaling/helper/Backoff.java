@@ -0,0 +1,47 @@
+package com.gruegames.lambda_sns_ec2_scaling.helper;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Exponential backoff with jitter bounded by an overall deadline
+public class Backoff {
+    private final long baseMillis;
+    private final long maxMillis;
+    private final long deadline;
+    private int attempt = 0;
+
+    public Backoff(long baseMillis, long maxMillis, long deadline) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.deadline = deadline;
+    }
+
+    // Half of the exponential step is fixed, the other half is random so hosts don't retry in lockstep
+    public long nextDelay() {
+        long step = Math.min(maxMillis, baseMillis << Math.min(attempt++, 20));
+        long half = step / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public long remaining() {
+        return deadline - System.currentTimeMillis();
+    }
+
+    public boolean isExpired() {
+        return remaining() <= 0;
+    }
+
+    // Sleep for the next delay, never past the deadline. Returns false once the deadline has passed.
+    public boolean sleep() throws InterruptedException {
+        long remaining = remaining();
+        if (remaining <= 0) {
+            return false;
+        }
+
+        Thread.sleep(Math.min(nextDelay(), remaining));
+        return !isExpired();
+    }
+}
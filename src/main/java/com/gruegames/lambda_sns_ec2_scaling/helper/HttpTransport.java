@@ -0,0 +1,144 @@
+package com.gruegames.lambda_sns_ec2_scaling.helper;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shared HTTP transport for salt-api and Slack. One Jersey client on a bounded, keep-alive
+// connection pool instead of the default HttpURLConnection connector, with pool metrics.
+// Callers must close (or fully read) every Response so its connection goes back to the pool.
+public class HttpTransport {
+    private static final Logger logger = LogManager.getLogger(HttpTransport.class);
+    private static final int MAX_CONNECTIONS = 50;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 20;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    public static class Stats {
+        public final long requests;
+        public final long connectionsCreated;
+        public final long connectionsReused;
+        public final long totalWaitMillis;
+        public final long maxWaitMillis;
+        public final int leased;
+        public final int available;
+        public final int pending;
+
+        Stats(long requests, long connectionsCreated, long totalWaitMillis, long maxWaitMillis, PoolStats pool) {
+            this.requests = requests;
+            this.connectionsCreated = connectionsCreated;
+            this.connectionsReused = Math.max(0, requests - connectionsCreated);
+            this.totalWaitMillis = totalWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+            this.leased = pool.getLeased();
+            this.available = pool.getAvailable();
+            this.pending = pool.getPending();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d created=%d reused=%d wait=%dms maxWait=%dms leased=%d available=%d pending=%d",
+                    requests, connectionsCreated, connectionsReused, totalWaitMillis, maxWaitMillis, leased, available, pending);
+        }
+    }
+
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong connectionsCreated = new AtomicLong();
+    private static final AtomicLong waitNanos = new AtomicLong();
+    private static final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private static volatile boolean created = false;
+
+    // Jersey and the Apache pool are built on first use, so an invocation that never makes an
+    // HTTP call doesn't pay for loading them
+    private static class Pool {
+        static final PoolingHttpClientConnectionManager connectionManager = new InstrumentedConnectionManager();
+        static final Client client;
+
+        static {
+            connectionManager.setMaxTotal(MAX_CONNECTIONS);
+            connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+            // drop keep-alive connections the server may have closed while the container was frozen
+            connectionManager.setValidateAfterInactivity(2000);
+
+            ClientConfig config = new ClientConfig()
+                    .connectorProvider(new ApacheConnectorProvider())
+                    .property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager)
+                    .property(ClientProperties.CONNECT_TIMEOUT, CONNECT_TIMEOUT_MILLIS)
+                    .property(ClientProperties.READ_TIMEOUT, READ_TIMEOUT_MILLIS);
+            client = ClientBuilder.newClient(config);
+            created = true;
+        }
+    }
+
+    private HttpTransport() {}
+
+    public static Client getClient() {
+        return Pool.client;
+    }
+
+    public static Stats getStats() {
+        return new Stats(requests.get(), connectionsCreated.get(), TimeUnit.NANOSECONDS.toMillis(waitNanos.get()),
+                TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()), Pool.connectionManager.getTotalStats());
+    }
+
+    public static void logStats() {
+        if (!created) {
+            // nothing was sent, don't build the pool just to report on it
+            return;
+        }
+        logger.info(String.format("HTTP pool: %s", getStats()));
+    }
+
+    // Counts new connections and times how long each request waits for a pooled one
+    private static class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+        InstrumentedConnectionManager() {
+            super((HttpRoute route, ConnectionConfig config) -> {
+                connectionsCreated.incrementAndGet();
+                return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+            });
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            ConnectionRequest request = super.requestConnection(route, state);
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit unit)
+                        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    long start = System.nanoTime();
+                    try {
+                        return request.get(timeout, unit);
+                    } finally {
+                        long waited = System.nanoTime() - start;
+                        requests.incrementAndGet();
+                        waitNanos.addAndGet(waited);
+                        maxWaitNanos.accumulateAndGet(waited, Math::max);
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return request.cancel();
+                }
+            };
+        }
+    }
+}
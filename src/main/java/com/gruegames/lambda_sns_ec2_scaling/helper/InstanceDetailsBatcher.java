@@ -0,0 +1,161 @@
+package com.gruegames.lambda_sns_ec2_scaling.helper;
+
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.*;
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.EC2Details;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Collects DescribeInstances lookups that arrive within a short window and resolves them with one
+// call per region. A lookup made while no describe is running goes straight away; otherwise the
+// first caller for a region waits out the window and runs the call for everyone.
+class InstanceDetailsBatcher {
+    private static final Logger logger = LogManager.getLogger(InstanceDetailsBatcher.class);
+    private static final long BATCH_WINDOW_MILLIS = 50;
+    // a describe the caller still cares about is long over by then, whatever the SDK retries
+    private static final long WAIT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    // EC2 caps the number of values in a single filter
+    private static final int MAX_FILTER_VALUES = 200;
+
+    private static class Batch {
+        final Region region;
+        final Map<String, CompletableFuture<EC2Details>> requests = new HashMap<>();
+
+        Batch(Region region) {
+            this.region = region;
+        }
+    }
+
+    private static final Map<String, Batch> pending = new HashMap<>();
+    // describes running now, guarded by pending
+    private static int describing;
+
+    private InstanceDetailsBatcher() {}
+
+    static EC2Details getInstanceDetails(String instanceId, Region region) {
+        CompletableFuture<EC2Details> future;
+        Batch leaderOf = null;
+        boolean alone = false;
+
+        synchronized (pending) {
+            Batch batch = pending.get(region.getName());
+            if (batch == null) {
+                batch = new Batch(region);
+                pending.put(region.getName(), batch);
+                leaderOf = batch;
+                // nothing else is being looked up, don't make this one wait for company
+                alone = describing == 0;
+            }
+            future = batch.requests.computeIfAbsent(instanceId, id -> new CompletableFuture<>());
+        }
+
+        if (leaderOf != null) {
+            if (!alone) {
+                try {
+                    Thread.sleep(BATCH_WINDOW_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            synchronized (pending) {
+                pending.remove(region.getName(), leaderOf);
+                describing++;
+            }
+            try {
+                resolve(leaderOf);
+            } finally {
+                synchronized (pending) {
+                    describing--;
+                }
+            }
+        }
+
+        // interruptible and bounded, so a caller whose own timeout went off isn't stuck behind a slow describe
+        try {
+            return future.get(WAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(String.format("Interrupted looking up %s", instanceId), e);
+        } catch (TimeoutException e) {
+            throw new RuntimeException(String.format("No details for %s after %d ms", instanceId, WAIT_TIMEOUT_MILLIS), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static void resolve(Batch batch) {
+        // batch is no longer reachable from pending, so no one else touches its request map
+        List<String> instanceIds = new ArrayList<>(batch.requests.keySet());
+        logger.info(String.format("Describing %d instances in %s", instanceIds.size(), batch.region.getName()));
+
+        long start = Metrics.start();
+        try {
+            AmazonEC2Client client = AWSHelper.getEC2Client(batch.region);
+            Map<String, EC2Details> found = new HashMap<>();
+
+            for (int i = 0; i < instanceIds.size(); i += MAX_FILTER_VALUES) {
+                List<String> chunk = instanceIds.subList(i, Math.min(i + MAX_FILTER_VALUES, instanceIds.size()));
+                describe(client, chunk, found);
+            }
+
+            for (Map.Entry<String, CompletableFuture<EC2Details>> request : batch.requests.entrySet()) {
+                EC2Details details = found.get(request.getKey());
+                if (details == null) {
+                    request.getValue().completeExceptionally(new RuntimeException(
+                            String.format("Instance id %s was not found!", request.getKey())));
+                } else {
+                    request.getValue().complete(details);
+                }
+            }
+            Metrics.record("ec2.describe", start);
+            Metrics.add("ec2.describe.instances", instanceIds.size());
+        } catch (RuntimeException e) {
+            if (AWSHelper.isThrottle(e)) {
+                Metrics.increment("ec2.throttled");
+            }
+            logger.error(String.format("DescribeInstances failed in %s", batch.region.getName()), e);
+            batch.requests.values().forEach(future -> future.completeExceptionally(e));
+        }
+    }
+
+    // An instance-id filter (rather than InstanceIds) keeps one unknown id from failing the whole batch
+    private static void describe(AmazonEC2Client client, List<String> instanceIds, Map<String, EC2Details> found) {
+        DescribeInstancesRequest request = new DescribeInstancesRequest()
+                .withFilters(new Filter("instance-id", instanceIds));
+
+        String nextToken = null;
+        do {
+            request.setNextToken(nextToken);
+            DescribeInstancesResult result = client.describeInstances(request);
+            if (result == null) {
+                return;
+            }
+
+            for (Reservation reservation : result.getReservations()) {
+                for (Instance instance : reservation.getInstances()) {
+                    logger.info(String.format("Found EC2 instance %s with ip %s and name %s", instance.getInstanceId(),
+                            instance.getPrivateIpAddress(), instance.getPrivateDnsName()));
+                    found.put(instance.getInstanceId(), new EC2Details(instance.getPrivateIpAddress(),
+                            instance.getPrivateDnsName(), instance.getTags()));
+                }
+            }
+
+            nextToken = result.getNextToken();
+        } while (nextToken != null && !nextToken.isEmpty());
+    }
+}
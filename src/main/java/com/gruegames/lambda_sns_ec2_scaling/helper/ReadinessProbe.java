@@ -0,0 +1,270 @@
+package com.gruegames.lambda_sns_ec2_scaling.helper;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+
+// Waits for TCP ports to accept connections using non-blocking connects. A single selector thread
+// drives every pending probe, so waiting on hundreds of booting hosts costs one thread in total.
+// Failed attempts are retried with jittered exponential backoff until the probe's deadline.
+public class ReadinessProbe {
+    private static final Logger logger = LogManager.getLogger(ReadinessProbe.class);
+    private static final long CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long BACKOFF_BASE_MILLIS = 500;
+    private static final long BACKOFF_MAX_MILLIS = 10000;
+
+    private static class Probe {
+        final InetSocketAddress address;
+        final Backoff backoff;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        long nextAttemptAt;
+        long attemptDeadline;
+        SocketChannel channel;
+
+        Probe(InetSocketAddress address, long deadline) {
+            this.address = address;
+            this.backoff = new Backoff(BACKOFF_BASE_MILLIS, BACKOFF_MAX_MILLIS, deadline);
+        }
+    }
+
+    private static ReadinessProbe instance;
+
+    private final ConcurrentLinkedQueue<Probe> submitted = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Probe> scheduled = new PriorityQueue<>((a, b) -> Long.compare(a.nextAttemptAt, b.nextAttemptAt));
+    private final List<Probe> connecting = new ArrayList<>();
+    private final Selector selector;
+    // set once the selector thread gave up, a probe submitted after that fails straight away
+    private volatile Exception broken;
+
+    private ReadinessProbe() throws IOException {
+        selector = Selector.open();
+
+        Thread thread = new Thread(this::run, "readiness-probe");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized ReadinessProbe getInstance() {
+        if (instance == null) {
+            try {
+                instance = new ReadinessProbe();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not open readiness selector", e);
+            }
+        }
+        return instance;
+    }
+
+    // Completes once host:port accepts a connection, or exceptionally with a TimeoutException at the
+    // deadline. Cancelling the returned future stops probing.
+    public CompletableFuture<Void> awaitPort(String host, int port, long deadline) {
+        Probe probe = new Probe(new InetSocketAddress(host, port), deadline);
+        submitted.add(probe);
+        if (broken != null) {
+            failSubmitted(broken);
+        } else {
+            selector.wakeup();
+        }
+        return probe.future;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                drainSubmitted(now);
+                startDueAttempts(now);
+                expireAttempts(now);
+
+                selector.select(nextWakeup(System.currentTimeMillis()));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    finishConnect((Probe) key.attachment());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Readiness selector failed", e);
+            abandon(e);
+        }
+    }
+
+    // The selector thread is gone: the next getInstance starts a fresh one and every probe waiting
+    // here fails now instead of at its caller's deadline
+    private void abandon(Exception e) {
+        broken = e;
+        synchronized (ReadinessProbe.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+
+        Exception error = new IOException("Readiness selector failed", e);
+        for (Probe probe : connecting) {
+            close(probe);
+            probe.future.completeExceptionally(error);
+        }
+        connecting.clear();
+        for (Probe probe : scheduled) {
+            close(probe);
+            probe.future.completeExceptionally(error);
+        }
+        scheduled.clear();
+        failSubmitted(e);
+
+        try {
+            selector.close();
+        } catch (IOException | ClosedSelectorException ignored) {
+            // already broken
+        }
+    }
+
+    private void failSubmitted(Exception e) {
+        Probe probe;
+        while ((probe = submitted.poll()) != null) {
+            probe.future.completeExceptionally(new IOException("Readiness selector failed", e));
+        }
+    }
+
+    // Stop the selector thread as if select() had failed
+    void breakSelector() throws IOException {
+        selector.close();
+    }
+
+    private void drainSubmitted(long now) {
+        Probe probe;
+        while ((probe = submitted.poll()) != null) {
+            probe.nextAttemptAt = now;
+            scheduled.add(probe);
+        }
+    }
+
+    private void startDueAttempts(long now) {
+        while (!scheduled.isEmpty() && scheduled.peek().nextAttemptAt <= now) {
+            Probe probe = scheduled.poll();
+            if (probe.future.isDone()) {
+                continue;
+            }
+            if (probe.backoff.isExpired()) {
+                timeout(probe);
+                continue;
+            }
+
+            try {
+                probe.channel = SocketChannel.open();
+                probe.channel.configureBlocking(false);
+                if (probe.channel.connect(probe.address)) {
+                    succeed(probe);
+                } else {
+                    probe.attemptDeadline = now + CONNECT_TIMEOUT_MILLIS;
+                    probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+                    connecting.add(probe);
+                }
+            } catch (IOException e) {
+                retry(probe, now);
+            } catch (RuntimeException e) {
+                // e.g. an unresolvable host, retrying won't help and must not stop the other probes
+                connecting.remove(probe);
+                fail(probe, e);
+            }
+        }
+    }
+
+    private void finishConnect(Probe probe) {
+        try {
+            if (probe.channel.finishConnect()) {
+                connecting.remove(probe);
+                succeed(probe);
+            }
+        } catch (IOException e) {
+            connecting.remove(probe);
+            retry(probe, System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            connecting.remove(probe);
+            fail(probe, e);
+        }
+    }
+
+    // Drop attempts that timed out or whose caller cancelled
+    private void expireAttempts(long now) {
+        Iterator<Probe> it = connecting.iterator();
+        while (it.hasNext()) {
+            Probe probe = it.next();
+            if (probe.future.isDone()) {
+                it.remove();
+                close(probe);
+            } else if (now >= probe.attemptDeadline) {
+                it.remove();
+                retry(probe, now);
+            }
+        }
+    }
+
+    private long nextWakeup(long now) {
+        long wakeup = Long.MAX_VALUE;
+        if (!scheduled.isEmpty()) {
+            wakeup = scheduled.peek().nextAttemptAt;
+        }
+        for (Probe probe : connecting) {
+            wakeup = Math.min(wakeup, probe.attemptDeadline);
+        }
+
+        // select(0) blocks forever, so never hand it zero
+        return wakeup == Long.MAX_VALUE ? 0 : Math.max(1, wakeup - now);
+    }
+
+    private void retry(Probe probe, long now) {
+        close(probe);
+        if (probe.backoff.isExpired()) {
+            timeout(probe);
+            return;
+        }
+
+        probe.nextAttemptAt = now + Math.min(probe.backoff.nextDelay(), Math.max(0, probe.backoff.remaining()));
+        scheduled.add(probe);
+    }
+
+    private void succeed(Probe probe) {
+        close(probe);
+        logger.info(String.format("%s is accepting connections", probe.address));
+        probe.future.complete(null);
+    }
+
+    private void fail(Probe probe, RuntimeException e) {
+        close(probe);
+        logger.warn(String.format("Probing %s failed: %s", probe.address, e));
+        probe.future.completeExceptionally(e);
+    }
+
+    private void timeout(Probe probe) {
+        close(probe);
+        probe.future.completeExceptionally(new TimeoutException(
+                String.format("%s did not accept connections before the deadline", probe.address)));
+    }
+
+    private static void close(Probe probe) {
+        if (probe.channel != null) {
+            try {
+                probe.channel.close();
+            } catch (IOException e) {
+                // nothing useful to do
+            }
+            probe.channel = null;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.gruegames.lambda_sns_ec2_scaling.helper;
+
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.transport.TransportException;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import net.schmizz.sshj.userauth.UserAuthException;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.IOException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Keeps one authenticated SSH transport per user@host and runs every command for that host as a
+// separate channel over it, instead of reconnecting and re-authenticating for each check.
+public class SSHConnectionManager {
+    private static final Logger logger = LogManager.getLogger(SSHConnectionManager.class);
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long BACKOFF_BASE_MILLIS = 1000;
+    private static final long BACKOFF_MAX_MILLIS = 10000;
+    private static final long COMMAND_TIMEOUT_SECONDS = 60;
+
+    public static class Credentials {
+        final String username;
+        final String password;
+        final String privateKeyPath;
+
+        private Credentials(String username, String password, String privateKeyPath) {
+            this.username = username;
+            this.password = password;
+            this.privateKeyPath = privateKeyPath;
+        }
+
+        public static Credentials password(String username, String password) {
+            return new Credentials(username, password, null);
+        }
+
+        public static Credentials privateKey(String username, String privateKeyPath) {
+            return new Credentials(username, null, privateKeyPath);
+        }
+    }
+
+    private static final ConcurrentHashMap<String, SSHClient> connections = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Object> connectLocks = new ConcurrentHashMap<>();
+
+    static {
+        // only needs registering once per JVM
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    private SSHConnectionManager() {}
+
+    // Get the open connection to a host, or connect and authenticate, backing off while sshd is
+    // still coming up
+    public static SSHClient acquire(String host, Credentials credentials, long deadline) {
+        String key = key(host, credentials);
+        SSHClient existing = connections.get(key);
+        if (isUsable(existing)) {
+            return existing;
+        }
+
+        synchronized (connectLocks.computeIfAbsent(key, k -> new Object())) {
+            existing = connections.get(key);
+            if (isUsable(existing)) {
+                return existing;
+            }
+            if (existing != null) {
+                connections.remove(key, existing);
+                disconnectQuietly(existing);
+            }
+
+            SSHClient ssh = connect(host, credentials, deadline);
+            connections.put(key, ssh);
+            return ssh;
+        }
+    }
+
+    // Run a command on its own channel and return its output
+    public static String exec(SSHClient ssh, String command) throws IOException {
+        try (Session session = ssh.startSession()) {
+            Session.Command cmd = session.exec(command);
+            String output = IOUtils.readFully(cmd.getInputStream()).toString();
+            cmd.join(COMMAND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return output;
+        }
+    }
+
+    // Run commands one after another over a single connection, stopping at the first one that fails
+    public static List<String> runAll(String host, Credentials credentials, long deadline, List<String> commands)
+            throws IOException {
+        SSHClient ssh = acquire(host, credentials, deadline);
+        List<String> outputs = new ArrayList<>();
+
+        for (String command : commands) {
+            try (Session session = ssh.startSession()) {
+                Session.Command cmd = session.exec(command);
+                outputs.add(IOUtils.readFully(cmd.getInputStream()).toString());
+                cmd.join(COMMAND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+                Integer status = cmd.getExitStatus();
+                if (status != null && status != 0) {
+                    throw new IOException(String.format("'%s' on %s exited with %d", command, host, status));
+                }
+            }
+        }
+
+        return outputs;
+    }
+
+    // Close and forget the connection to a host
+    public static void release(String host, Credentials credentials) {
+        SSHClient ssh = connections.remove(key(host, credentials));
+        if (ssh != null) {
+            disconnectQuietly(ssh);
+        }
+    }
+
+    public static void release(SSHClient ssh) {
+        connections.values().remove(ssh);
+        disconnectQuietly(ssh);
+    }
+
+    public static void closeAll() {
+        for (String key : connections.keySet()) {
+            SSHClient ssh = connections.remove(key);
+            if (ssh != null) {
+                disconnectQuietly(ssh);
+            }
+        }
+    }
+
+    private static SSHClient connect(String host, Credentials credentials, long deadline) {
+        Backoff backoff = new Backoff(BACKOFF_BASE_MILLIS, BACKOFF_MAX_MILLIS, deadline);
+        long start = Metrics.start();
+        while(true) {
+            SSHClient ssh = new SSHClient();
+            try {
+                ssh.addHostKeyVerifier(new PromiscuousVerifier());
+                ssh.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+
+                logger.info(String.format("Trying to SSH into %s", host));
+                ssh.connect(host, AWSHelper.getSSHPort());
+                if (credentials.privateKeyPath != null) {
+                    ssh.authPublickey(credentials.username, ssh.loadKeys(credentials.privateKeyPath));
+                } else {
+                    ssh.authPassword(credentials.username, credentials.password);
+                }
+
+                logger.info(String.format("SSH connection to %s is ready", host));
+                Metrics.record("ssh.connect", start);
+                return ssh;
+            } catch (ConnectionException | UserAuthException e) {
+                logger.info(String.format("%s ssh is not ready, backing off", host));
+                Metrics.increment("ssh.connect.retries");
+                disconnectQuietly(ssh);
+
+                try {
+                    if (!backoff.sleep()) {
+                        throw new RuntimeException(String.format("%s ssh was not ready before the deadline", host), e);
+                    }
+                } catch (InterruptedException ee) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(String.format("Interrupted waiting for %s", host), ee);
+                }
+            } catch (TransportException e) {
+                logger.error("SSH Transport Exception", e);
+                disconnectQuietly(ssh);
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                logger.error("SSH IO Exception", e);
+                disconnectQuietly(ssh);
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static boolean isUsable(SSHClient ssh) {
+        return ssh != null && ssh.isConnected() && ssh.isAuthenticated();
+    }
+
+    private static String key(String host, Credentials credentials) {
+        return String.format("%s@%s", credentials.username, host);
+    }
+
+    private static void disconnectQuietly(SSHClient ssh) {
+        try {
+            ssh.disconnect();
+        } catch (IOException e) {}
+    }
+}
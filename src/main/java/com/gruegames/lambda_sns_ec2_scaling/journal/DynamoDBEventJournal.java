@@ -0,0 +1,88 @@
+package com.gruegames.lambda_sns_ec2_scaling.journal;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Journal kept in a DynamoDB table with the string hash key "Key", one item per activity, so a
+// redelivery landing in another container resumes where the last one stopped. An item is only
+// overwritten by a later state, which keeps two containers racing on one activity from winding it
+// back. ExpiresAt holds the epoch second an activity can be forgotten; with TTL enabled on it the
+// table prunes itself.
+public class DynamoDBEventJournal implements EventJournal {
+    private static final Logger logger = LogManager.getLogger(DynamoDBEventJournal.class);
+    private static final String ADVANCES = "attribute_not_exists(#key) OR #rank < :rank";
+
+    private final AmazonDynamoDB client;
+    private final String table;
+    private final long retentionMillis;
+
+    public DynamoDBEventJournal(AmazonDynamoDB client, String table, long retentionMillis) {
+        this.client = client;
+        this.table = table;
+        this.retentionMillis = retentionMillis;
+    }
+
+    @Override
+    public void append(JournalEntry entry) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("Key", new AttributeValue(entry.key));
+        item.put("State", new AttributeValue(entry.state.name()));
+        // states compare in declaration order, the condition needs them as numbers
+        item.put("Rank", number(entry.state.ordinal()));
+        item.put("Time", number(entry.time));
+        item.put("ExpiresAt", number(TimeUnit.MILLISECONDS.toSeconds(entry.expiresAt(retentionMillis))));
+        if (entry.instanceId != null) {
+            item.put("InstanceId", new AttributeValue(entry.instanceId));
+        }
+        if (entry.event != null) {
+            item.put("Event", new AttributeValue(entry.event));
+        }
+
+        Map<String, String> names = new HashMap<>();
+        names.put("#key", "Key");
+        names.put("#rank", "Rank");
+
+        try {
+            client.putItem(new PutItemRequest()
+                    .withTableName(table)
+                    .withItem(item)
+                    .withConditionExpression(ADVANCES)
+                    .withExpressionAttributeNames(names)
+                    .withExpressionAttributeValues(Collections.singletonMap(":rank", number(entry.state.ordinal()))));
+        } catch (ConditionalCheckFailedException e) {
+            logger.info(String.format("%s %s: %s or later was already recorded", entry.instanceId, entry.event, entry.state));
+        }
+    }
+
+    @Override
+    public InstanceState latest(String key) {
+        GetItemResult result = client.getItem(new GetItemRequest()
+                .withTableName(table)
+                .withKey(Collections.singletonMap("Key", new AttributeValue(key)))
+                .withProjectionExpression("#state")
+                .withExpressionAttributeNames(Collections.singletonMap("#state", "State"))
+                .withConsistentRead(true));
+
+        Map<String, AttributeValue> item = result.getItem();
+        if (item == null || !item.containsKey("State")) {
+            return null;
+        }
+        return InstanceState.valueOf(item.get("State").getS());
+    }
+
+    private static AttributeValue number(long value) {
+        return new AttributeValue().withN(Long.toString(value));
+    }
+}
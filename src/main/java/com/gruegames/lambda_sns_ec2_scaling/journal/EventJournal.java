@@ -0,0 +1,12 @@
+package com.gruegames.lambda_sns_ec2_scaling.journal;
+
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+
+// Append-only record of how far each scaling activity got. Implementations must make an appended
+// entry visible to every later latest() call for the same key.
+public interface EventJournal {
+    void append(JournalEntry entry);
+
+    // The furthest state recorded for a key, or null if nothing was recorded
+    InstanceState latest(String key);
+}
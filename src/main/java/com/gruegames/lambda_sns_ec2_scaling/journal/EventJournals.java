@@ -0,0 +1,81 @@
+package com.gruegames.lambda_sns_ec2_scaling.journal;
+
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.util.StringUtils;
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+import com.gruegames.lambda_sns_ec2_scaling.helper.AWSHelper;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Holds the journal in use. With EVENT_JOURNAL_TABLE set it is the DynamoDB table of that name, in
+// EVENT_JOURNAL_REGION (or the function's own region), shared by every container. Otherwise it is
+// a file under EVENT_JOURNAL_DIR (or /tmp), which only lets a retry resume when it lands in the same
+// container. Another backend can be plugged in with setJournal before the first event is handled.
+public class EventJournals {
+    private static final Logger logger = LogManager.getLogger(EventJournals.class);
+    private static final String DEFAULT_DIR = "/tmp";
+    static final long DEFAULT_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private static EventJournal journal;
+
+    private EventJournals() {}
+
+    public static synchronized EventJournal getJournal() {
+        if (journal == null) {
+            String table = System.getenv("EVENT_JOURNAL_TABLE");
+            journal = StringUtils.isNullOrEmpty(table) ? openFileJournal() : openTableJournal(table);
+        }
+        return journal;
+    }
+
+    public static synchronized void setJournal(EventJournal eventJournal) {
+        journal = eventJournal;
+    }
+
+    // Start (or resume) tracking an activity. The key is the autoscaling ActivityId, falling back
+    // to the RequestId; without either the progress is not persisted.
+    public static EventProgress begin(String key, String instanceId, String event) {
+        if (StringUtils.isNullOrEmpty(key)) {
+            return EventProgress.untracked(instanceId, event);
+        }
+
+        EventProgress progress = new EventProgress(getJournal(), key, instanceId, event);
+        progress.record(InstanceState.RECEIVED);
+        return progress;
+    }
+
+    private static EventJournal openFileJournal() {
+        String dir = System.getenv("EVENT_JOURNAL_DIR");
+        File file = new File(StringUtils.isNullOrEmpty(dir) ? DEFAULT_DIR : dir, "events.journal");
+        try {
+            return new FileEventJournal(file, getRetentionMillis());
+        } catch (IOException e) {
+            logger.error(String.format("Could not open journal %s", file), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static EventJournal openTableJournal(String table) {
+        String region = System.getenv("EVENT_JOURNAL_REGION");
+        if (StringUtils.isNullOrEmpty(region)) {
+            region = System.getenv("AWS_REGION");
+        }
+
+        Region journalRegion = StringUtils.isNullOrEmpty(region) ? Region.getRegion(Regions.DEFAULT_REGION)
+                : Region.getRegion(Regions.fromName(region));
+        logger.info(String.format("Journaling to DynamoDB table %s in %s", table, journalRegion.getName()));
+        return new DynamoDBEventJournal(AWSHelper.getDynamoDBClient(journalRegion), table, getRetentionMillis());
+    }
+
+    // How long a finished activity is remembered, EVENT_JOURNAL_RETENTION_HOURS (default 24)
+    private static long getRetentionMillis() {
+        String hours = System.getenv("EVENT_JOURNAL_RETENTION_HOURS");
+        return StringUtils.isNullOrEmpty(hours) ? DEFAULT_RETENTION_MILLIS
+                : TimeUnit.HOURS.toMillis(Long.parseLong(hours.trim()));
+    }
+}
@@ -0,0 +1,54 @@
+package com.gruegames.lambda_sns_ec2_scaling.journal;
+
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+// Where one scaling activity for one instance stands. Handlers check it to skip steps a previous
+// delivery already finished and record each step as it completes.
+public class EventProgress {
+    private static final Logger logger = LogManager.getLogger(EventProgress.class);
+
+    private final EventJournal journal;
+    private final String key;
+    private final String instanceId;
+    private final String event;
+    private volatile InstanceState state;
+
+    EventProgress(EventJournal journal, String key, String instanceId, String event) {
+        this(journal, key, instanceId, event, journal.latest(key));
+    }
+
+    // Progress that is never persisted, for callers without a journal key
+    public static EventProgress untracked(String instanceId, String event) {
+        return new EventProgress(null, null, instanceId, event, null);
+    }
+
+    private EventProgress(EventJournal journal, String key, String instanceId, String event, InstanceState state) {
+        this.journal = journal;
+        this.key = key;
+        this.instanceId = instanceId;
+        this.event = event;
+        this.state = state;
+    }
+
+    public InstanceState getState() {
+        return state;
+    }
+
+    public boolean isAtLeast(InstanceState other) {
+        return state != null && state.isAtLeast(other);
+    }
+
+    public synchronized void record(InstanceState next) {
+        if (isAtLeast(next)) {
+            return;
+        }
+
+        if (journal != null) {
+            journal.append(new JournalEntry(key, instanceId, event, next, System.currentTimeMillis()));
+        }
+        logger.info(String.format("%s %s: %s -> %s", instanceId, event, state, next));
+        state = next;
+    }
+}
@@ -0,0 +1,207 @@
+package com.gruegames.lambda_sns_ec2_scaling.journal;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Journal kept as a file of JSON lines, one entry per line, with the latest entry per key indexed
+// in memory. Every append is synced to disk before it returns. Activities past their retention are
+// dropped from the index, and once the file holds mostly stale lines it is rewritten with one line
+// per activity that is left.
+public class FileEventJournal implements EventJournal {
+    private static final Logger logger = LogManager.getLogger(FileEventJournal.class);
+    private static final Gson gson = new Gson();
+    private static final long PRUNE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // the file is left alone below this many lines, and above it until it is this many times the live ones
+    private static final int COMPACT_MIN_LINES = 1000;
+    private static final int COMPACT_RATIO = 2;
+
+    private final File file;
+    private final long retentionMillis;
+    private final Map<String, JournalEntry> latest = new HashMap<>();
+    private FileOutputStream out;
+    private Writer writer;
+    private int lines;
+    private long nextPruneAt;
+
+    public FileEventJournal(File file) throws IOException {
+        this(file, EventJournals.DEFAULT_RETENTION_MILLIS);
+    }
+
+    public FileEventJournal(File file, long retentionMillis) throws IOException {
+        this.file = file;
+        this.retentionMillis = retentionMillis;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException(String.format("Could not create journal directory %s", parent));
+        }
+
+        boolean tornTail = replay();
+        long now = System.currentTimeMillis();
+        int pruned = prune(now);
+        if (pruned > 0 || isWorthCompacting()) {
+            // rewriting the file also drops a torn last line
+            compact();
+            return;
+        }
+
+        open();
+        if (tornTail) {
+            // terminate the partial line so the next entry starts on a line of its own
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    @Override
+    public synchronized void append(JournalEntry entry) {
+        try {
+            writer.write(gson.toJson(entry));
+            writer.write('\n');
+            writer.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Could not append to journal %s", file), e);
+        }
+
+        lines++;
+        index(entry);
+
+        long now = System.currentTimeMillis();
+        if (now >= nextPruneAt) {
+            prune(now);
+        }
+        if (isWorthCompacting()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // the entry is already synced, keep appending to the uncompacted file
+                logger.warn(String.format("Could not compact journal %s", file), e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized InstanceState latest(String key) {
+        JournalEntry entry = latest.get(key);
+        return entry == null ? null : entry.state;
+    }
+
+    // Activities currently indexed
+    synchronized int size() {
+        return latest.size();
+    }
+
+    // Lines currently in the file
+    synchronized int lines() {
+        return lines;
+    }
+
+    private void index(JournalEntry entry) {
+        latest.merge(entry.key, entry, (a, b) -> a.state.isAtLeast(b.state) ? a : b);
+    }
+
+    // Forget activities past their retention. They stay in the file until the next compaction.
+    private int prune(long now) {
+        nextPruneAt = now + PRUNE_INTERVAL_MILLIS;
+        int before = latest.size();
+        latest.values().removeIf(entry -> entry.expiresAt(retentionMillis) <= now);
+
+        int pruned = before - latest.size();
+        if (pruned > 0) {
+            logger.info(String.format("Pruned %d expired activities from journal %s, %d left", pruned, file, latest.size()));
+        }
+        return pruned;
+    }
+
+    private boolean isWorthCompacting() {
+        return lines >= COMPACT_MIN_LINES && lines > COMPACT_RATIO * latest.size();
+    }
+
+    // Write the indexed entries to a new file and move it over the old one, so a crash leaves
+    // either the old file or the compacted one
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".compact");
+        try (FileOutputStream compactedOut = new FileOutputStream(compacted);
+             Writer compactedWriter = new BufferedWriter(new OutputStreamWriter(compactedOut, StandardCharsets.UTF_8))) {
+            for (JournalEntry entry : latest.values()) {
+                compactedWriter.write(gson.toJson(entry));
+                compactedWriter.write('\n');
+            }
+            compactedWriter.flush();
+            compactedOut.getFD().sync();
+        }
+
+        try {
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(compacted.toPath());
+            throw e;
+        }
+
+        if (writer != null) {
+            writer.close();
+        }
+        open();
+        logger.info(String.format("Compacted journal %s from %d to %d lines", file, lines, latest.size()));
+        lines = latest.size();
+    }
+
+    private void open() throws IOException {
+        out = new FileOutputStream(file, true);
+        writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    }
+
+    // Rebuild the index from the file. Returns true when the file ends in a partial line.
+    private boolean replay() throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return false;
+        }
+
+        int entries = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                lines++;
+                try {
+                    JournalEntry entry = gson.fromJson(line, JournalEntry.class);
+                    if (entry != null && entry.key != null && entry.state != null) {
+                        index(entry);
+                        entries++;
+                    }
+                } catch (JsonParseException e) {
+                    // a torn last line from a crash mid-write, everything before it is still good
+                    logger.warn(String.format("Skipping unreadable journal line in %s", file));
+                }
+            }
+        }
+
+        logger.info(String.format("Replayed %d journal entries for %d activities from %s", entries, latest.size(), file));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(raf.length() - 1);
+            return raf.read() != '\n';
+        }
+    }
+}
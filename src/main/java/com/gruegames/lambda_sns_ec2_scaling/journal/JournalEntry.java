@@ -0,0 +1,37 @@
+package com.gruegames.lambda_sns_ec2_scaling.journal;
+
+import com.google.gson.annotations.SerializedName;
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+
+public class JournalEntry {
+    // an activity that never finished is kept this many retention periods, for late redeliveries
+    private static final int UNFINISHED_RETENTION_FACTOR = 7;
+
+    @SerializedName("Key")
+    public String key;
+
+    @SerializedName("InstanceId")
+    public String instanceId;
+
+    @SerializedName("Event")
+    public String event;
+
+    @SerializedName("State")
+    public InstanceState state;
+
+    @SerializedName("Time")
+    public long time;
+
+    public JournalEntry(String key, String instanceId, String event, InstanceState state, long time) {
+        this.key = key;
+        this.instanceId = instanceId;
+        this.event = event;
+        this.state = state;
+        this.time = time;
+    }
+
+    // When the entry can be forgotten, counted from the time it was recorded
+    long expiresAt(long retentionMillis) {
+        return time + (state.isFinal() ? retentionMillis : retentionMillis * UNFINISHED_RETENTION_FACTOR);
+    }
+}
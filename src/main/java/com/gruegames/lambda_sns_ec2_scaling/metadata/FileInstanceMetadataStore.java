@@ -0,0 +1,92 @@
+package com.gruegames.lambda_sns_ec2_scaling.metadata;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// One small JSON file per instance. Files are written next to their final name and moved into
+// place, so a reader never sees half a file. Entries of instances whose terminate was never seen
+// are dropped once they are older than MAX_AGE_MILLIS.
+public class FileInstanceMetadataStore implements InstanceMetadataStore {
+    private static final Logger logger = LogManager.getLogger(FileInstanceMetadataStore.class);
+    private static final Gson gson = new Gson();
+    private static final Pattern INSTANCE_ID = Pattern.compile("^i-[0-9a-f]+$");
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    private final File dir;
+
+    public FileInstanceMetadataStore(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("Could not create metadata directory %s", dir));
+        }
+        this.dir = dir;
+        prune();
+    }
+
+    @Override
+    public void put(String instanceId, InstanceMetadata metadata) {
+        File file = fileFor(instanceId);
+        File tmp = new File(dir, String.format("%s.%d.tmp", instanceId, Thread.currentThread().getId()));
+        try {
+            Files.write(tmp.toPath(), gson.toJson(metadata).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Could not store metadata of %s", instanceId), e);
+        }
+    }
+
+    @Override
+    public InstanceMetadata get(String instanceId) {
+        try {
+            byte[] bytes = Files.readAllBytes(fileFor(instanceId).toPath());
+            return gson.fromJson(new String(bytes, StandardCharsets.UTF_8), InstanceMetadata.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | JsonParseException e) {
+            logger.warn(String.format("Could not read metadata of %s", instanceId), e);
+            return null;
+        }
+    }
+
+    @Override
+    public void remove(String instanceId) {
+        try {
+            Files.deleteIfExists(fileFor(instanceId).toPath());
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Could not remove metadata of %s", instanceId), e);
+        }
+    }
+
+    private File fileFor(String instanceId) {
+        // the id ends up in a path, don't let anything but an instance id in
+        if (instanceId == null || !INSTANCE_ID.matcher(instanceId).matches()) {
+            throw new IllegalArgumentException(String.format("Not an instance id: %s", instanceId));
+        }
+        return new File(dir, instanceId + ".json");
+    }
+
+    private void prune() {
+        long cutoff = System.currentTimeMillis() - MAX_AGE_MILLIS;
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".json") || name.endsWith(".tmp"));
+        int pruned = 0;
+        for (File file : files == null ? new File[0] : files) {
+            if (file.lastModified() < cutoff && file.delete()) {
+                pruned++;
+            }
+        }
+
+        if (pruned > 0) {
+            logger.info(String.format("Pruned %d stale instance metadata files from %s", pruned, dir));
+        }
+    }
+}
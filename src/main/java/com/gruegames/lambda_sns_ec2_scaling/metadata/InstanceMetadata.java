@@ -0,0 +1,40 @@
+package com.gruegames.lambda_sns_ec2_scaling.metadata;
+
+import com.amazonaws.services.ec2.model.Tag;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.EC2Details;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// What terminate needs to know about an instance, captured while it was still running. Tags are
+// kept as a plain map so the stored form stays small.
+public class InstanceMetadata {
+    public String instanceIp;
+    public String instanceName;
+    public Map<String, String> tags;
+    public long capturedAt;
+
+    public static InstanceMetadata from(EC2Details details) {
+        InstanceMetadata metadata = new InstanceMetadata();
+        metadata.instanceIp = details.instanceIp;
+        metadata.instanceName = details.instanceName;
+        metadata.tags = new LinkedHashMap<>();
+        if (details.tags != null) {
+            for (Tag tag : details.tags) {
+                metadata.tags.put(tag.getKey(), tag.getValue());
+            }
+        }
+        metadata.capturedAt = System.currentTimeMillis();
+        return metadata;
+    }
+
+    public EC2Details toDetails() {
+        List<Tag> tagList = new ArrayList<>();
+        if (tags != null) {
+            tags.forEach((key, value) -> tagList.add(new Tag(key, value)));
+        }
+        return new EC2Details(instanceIp, instanceName, tagList);
+    }
+}
@@ -0,0 +1,104 @@
+package com.gruegames.lambda_sns_ec2_scaling.metadata;
+
+import com.amazonaws.util.StringUtils;
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.EC2Details;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Instance details captured when an instance is described at launch, so terminate doesn't have to
+// describe an instance that may already be gone. Recently used entries are kept in memory (LRU) in
+// front of the store. Defaults to a file store under INSTANCE_METADATA_DIR (or /tmp); another
+// backend can be plugged in with setStore before the first event is handled.
+public class InstanceMetadataCache {
+    private static final Logger logger = LogManager.getLogger(InstanceMetadataCache.class);
+    private static final String DEFAULT_DIR = "/tmp/lambda_sns_ec2_scaling/metadata";
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final Map<String, InstanceMetadata> recent = new LinkedHashMap<String, InstanceMetadata>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, InstanceMetadata> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static InstanceMetadataStore store;
+
+    private InstanceMetadataCache() {}
+
+    public static synchronized InstanceMetadataStore getStore() {
+        if (store == null) {
+            String dir = System.getenv("INSTANCE_METADATA_DIR");
+            File file = new File(StringUtils.isNullOrEmpty(dir) ? DEFAULT_DIR : dir);
+            try {
+                store = new FileInstanceMetadataStore(file);
+            } catch (IOException e) {
+                logger.error(String.format("Could not open metadata store %s", file), e);
+                throw new RuntimeException(e);
+            }
+        }
+        return store;
+    }
+
+    public static synchronized void setStore(InstanceMetadataStore metadataStore) {
+        store = metadataStore;
+    }
+
+    // Keep what a describe returned. A store failure only costs a describe at terminate, so it is
+    // logged rather than thrown.
+    public static void remember(String instanceId, EC2Details details) {
+        InstanceMetadata metadata = InstanceMetadata.from(details);
+        synchronized (recent) {
+            recent.put(instanceId, metadata);
+        }
+
+        try {
+            getStore().put(instanceId, metadata);
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Could not persist metadata of %s", instanceId), e);
+        }
+    }
+
+    // The details captured at launch, or null if they were never captured
+    public static EC2Details get(String instanceId) {
+        InstanceMetadata metadata;
+        synchronized (recent) {
+            metadata = recent.get(instanceId);
+        }
+
+        if (metadata == null) {
+            try {
+                metadata = getStore().get(instanceId);
+            } catch (RuntimeException e) {
+                logger.warn(String.format("Could not read metadata of %s", instanceId), e);
+            }
+
+            if (metadata != null) {
+                synchronized (recent) {
+                    recent.put(instanceId, metadata);
+                }
+            }
+        }
+
+        Metrics.increment(metadata == null ? "metadata.miss" : "metadata.hit");
+        return metadata == null ? null : metadata.toDetails();
+    }
+
+    // The instance is gone for good, nothing will ask for it again
+    public static void forget(String instanceId) {
+        synchronized (recent) {
+            recent.remove(instanceId);
+        }
+
+        try {
+            getStore().remove(instanceId);
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Could not remove metadata of %s", instanceId), e);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.gruegames.lambda_sns_ec2_scaling.metadata;
+
+// Persistent home of instance metadata, so it outlives the container that saw the launch.
+// Implementations must be safe to call from several threads.
+public interface InstanceMetadataStore {
+    void put(String instanceId, InstanceMetadata metadata);
+
+    // The stored metadata, or null if nothing was stored for the instance
+    InstanceMetadata get(String instanceId);
+
+    void remove(String instanceId);
+}
@@ -0,0 +1,91 @@
+package com.gruegames.lambda_sns_ec2_scaling.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear latency histogram in the style of HdrHistogram. Every power of two is split into 32
+// buckets, which keeps every value within about 3% of the bucket it is reported as across the
+// whole long range. record() is a few atomic increments and never allocates.
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    static class Snapshot {
+        final long count;
+        final long max;
+        final long sum;
+        private final long[] counts;
+
+        private Snapshot(long count, long max, long sum, long[] counts) {
+            this.count = count;
+            this.max = max;
+            this.sum = sum;
+            this.counts = counts;
+        }
+
+        // Every bucket that holds values, lowest first, as { highest value of the bucket (capped at
+        // the max), number of values }
+        List<long[]> buckets() {
+            List<long[]> buckets = new ArrayList<>();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    buckets.add(new long[] { Math.min(max, highestEquivalentValue(i)), counts[i] });
+                }
+            }
+            return buckets;
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // another thread raised the max, try again against the new value
+        }
+    }
+
+    // Copy the recorded values and start over for the next interval
+    Snapshot snapshotAndReset() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.getAndSet(i, 0);
+        }
+        return new Snapshot(count.getAndSet(0), max.getAndSet(0), sum.getAndSet(0), copy);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS * 2) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,233 @@
+package com.gruegames.lambda_sns_ec2_scaling.metrics;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Stage latencies, counters and per-instance traces for one invocation. Recording is cheap enough
+// for hot paths: a map lookup on a constant name and a few atomic increments. emit() writes
+// everything to the log in CloudWatch Embedded Metric Format, so CloudWatch builds the metrics
+// from the log stream and nothing extra goes over the network, then starts over. A latency goes
+// out as the histogram's buckets, a Values array with a Counts array next to it, so CloudWatch has
+// the distribution and any percentile can be taken across invocations and containers.
+public class Metrics {
+    // logs through its own appender with a bare %m layout, EMF lines must be plain JSON
+    private static final Logger emfLogger = LogManager.getLogger("com.gruegames.lambda_sns_ec2_scaling.metrics.EMF");
+    private static final String NAMESPACE = "LambdaSNSEC2Scaling";
+    // CloudWatch accepts at most 100 metrics per EMF document and 100 values per metric
+    private static final int MAX_METRICS_PER_DOCUMENT = 100;
+    private static final int MAX_VALUES_PER_METRIC = 100;
+    private static final int MAX_TRACED_INSTANCES = 1000;
+
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static class Span {
+        final String stage;
+        final long millis;
+
+        Span(String stage, long millis) {
+            this.stage = stage;
+            this.millis = millis;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, List<Span>> traces = new ConcurrentHashMap<>();
+
+    private static class Metric {
+        final String name;
+        final String unit;
+        final JsonElement value;
+
+        Metric(String name, String unit, JsonElement value) {
+            this.name = name;
+            this.unit = unit;
+            this.value = value;
+        }
+    }
+
+    private Metrics() {}
+
+    // Start timing a stage, pass the result to record()
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    // Record the time since start() under a stage name
+    public static void record(String stage, long startNanos) {
+        histogram(stage).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public static void recordMillis(String stage, long millis) {
+        histogram(stage).record(TimeUnit.MILLISECONDS.toMicros(millis));
+    }
+
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public static void add(String counter, long amount) {
+        LongAdder adder = counters.get(counter);
+        if (adder == null) {
+            adder = counters.computeIfAbsent(counter, name -> new LongAdder());
+        }
+        adder.add(amount);
+    }
+
+    // Add a step to an instance's trace and to the stage histogram
+    public static void trace(String instanceId, String stage, long millis) {
+        recordMillis(stage, millis);
+        if (instanceId == null || (traces.size() >= MAX_TRACED_INSTANCES && !traces.containsKey(instanceId))) {
+            return;
+        }
+
+        List<Span> spans = traces.computeIfAbsent(instanceId, id -> new ArrayList<>());
+        synchronized (spans) {
+            spans.add(new Span(stage, millis));
+        }
+    }
+
+    // Write everything recorded since the last call as EMF, then reset
+    public static void emit(String functionName) {
+        long timestamp = System.currentTimeMillis();
+        List<Metric> metrics = new ArrayList<>();
+
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            List<long[]> buckets = entry.getValue().snapshotAndReset().buckets();
+            // a wide spread has more buckets than one metric may carry, the rest go in further documents
+            for (int i = 0; i < buckets.size(); i += MAX_VALUES_PER_METRIC) {
+                metrics.add(new Metric(entry.getKey(), "Milliseconds",
+                        distribution(buckets.subList(i, Math.min(i + MAX_VALUES_PER_METRIC, buckets.size())))));
+            }
+        }
+
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            long count = entry.getValue().sumThenReset();
+            if (count != 0) {
+                metrics.add(new Metric(entry.getKey(), "Count", new JsonPrimitive(count)));
+            }
+        }
+
+        for (List<Metric> document : pack(metrics)) {
+            emfLogger.info(document(functionName, timestamp, document));
+        }
+
+        for (Map.Entry<String, List<Span>> entry : traces.entrySet()) {
+            traces.remove(entry.getKey());
+            emfLogger.info(trace(functionName, timestamp, entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private static Histogram histogram(String stage) {
+        Histogram histogram = histograms.get(stage);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(stage, name -> new Histogram());
+        }
+        return histogram;
+    }
+
+    private static JsonObject distribution(List<long[]> buckets) {
+        JsonArray values = new JsonArray();
+        JsonArray counts = new JsonArray();
+        for (long[] bucket : buckets) {
+            values.add(toMillis(bucket[0]));
+            counts.add(bucket[1]);
+        }
+
+        JsonObject distribution = new JsonObject();
+        distribution.add("Values", values);
+        distribution.add("Counts", counts);
+        return distribution;
+    }
+
+    // Split the metrics into documents of at most 100, never putting one name twice into a document
+    private static List<List<Metric>> pack(List<Metric> metrics) {
+        List<List<Metric>> documents = new ArrayList<>();
+        List<Set<String>> names = new ArrayList<>();
+        for (Metric metric : metrics) {
+            int i = 0;
+            while (i < documents.size() && (documents.get(i).size() >= MAX_METRICS_PER_DOCUMENT
+                    || names.get(i).contains(metric.name))) {
+                i++;
+            }
+            if (i == documents.size()) {
+                documents.add(new ArrayList<>());
+                names.add(new HashSet<>());
+            }
+            documents.get(i).add(metric);
+            names.get(i).add(metric.name);
+        }
+        return documents;
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static String document(String functionName, long timestamp, List<Metric> metrics) {
+        JsonArray definitions = new JsonArray();
+        JsonObject document = new JsonObject();
+        for (Metric metric : metrics) {
+            JsonObject definition = new JsonObject();
+            definition.addProperty("Name", metric.name);
+            definition.addProperty("Unit", metric.unit);
+            definitions.add(definition);
+            document.add(metric.name, metric.value);
+        }
+
+        JsonArray dimensionSet = new JsonArray();
+        dimensionSet.add("Function");
+        JsonArray dimensions = new JsonArray();
+        dimensions.add(dimensionSet);
+
+        JsonObject directive = new JsonObject();
+        directive.addProperty("Namespace", NAMESPACE);
+        directive.add("Dimensions", dimensions);
+        directive.add("Metrics", definitions);
+
+        JsonArray directives = new JsonArray();
+        directives.add(directive);
+
+        JsonObject aws = new JsonObject();
+        aws.addProperty("Timestamp", timestamp);
+        aws.add("CloudWatchMetrics", directives);
+
+        document.add("_aws", aws);
+        document.addProperty("Function", functionName);
+        return document.toString();
+    }
+
+    // Traces carry no metric definitions, they show up in Logs Insights as plain properties
+    private static String trace(String functionName, long timestamp, String instanceId, List<Span> spans) {
+        JsonArray stages = new JsonArray();
+        long total = 0;
+        synchronized (spans) {
+            for (Span span : spans) {
+                JsonObject stage = new JsonObject();
+                stage.addProperty("Stage", span.stage);
+                stage.addProperty("Millis", span.millis);
+                stages.add(stage);
+                total += span.millis;
+            }
+        }
+
+        JsonObject trace = new JsonObject();
+        trace.addProperty("Function", functionName);
+        trace.addProperty("Timestamp", timestamp);
+        trace.addProperty("InstanceId", instanceId);
+        trace.addProperty("TotalMillis", total);
+        trace.add("Trace", stages);
+        return trace.toString();
+    }
+}
@@ -1,7 +1,11 @@
 package com.gruegames.lambda_sns_ec2_scaling.pojo;
 
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.annotations.SerializedName;
 
+// The parts of an Auto Scaling notification the handlers read, decoded by MessageTypeAdapter.
+// Anything else in the notification is skipped, so a field added here needs a case there too.
+@JsonAdapter(MessageTypeAdapter.class)
 public class Message {
     public class Details {
         @SerializedName("Subnet ID")
@@ -11,54 +15,48 @@ public class Message {
         public String availabilityZone;
     }
 
-    @SerializedName("Progress")
-    public String progress;
-
-    @SerializedName("AccountId")
-    public String accountId;
-
-    @SerializedName("Description")
-    public String description;
-
     @SerializedName("RequestId")
     public String requestId;
 
-    @SerializedName("EndTime")
-    public String endTime;
-
-    @SerializedName("AutoScalingGroupARN")
-    public String autoScalingGroupARN;
-
     @SerializedName("ActivityId")
     public String activityId;
 
     @SerializedName("StartTime")
     public String startTime;
 
-    @SerializedName("Service")
-    public String service;
-
     @SerializedName("Time")
     public String time;
 
     @SerializedName("EC2InstanceId")
     public String EC2InstanceId;
 
-    @SerializedName("StatusCode")
-    public String statusCode;
-
-    @SerializedName("StatusMessage")
-    public String statusMessage;
-
     @SerializedName("AutoScalingGroupName")
     public String autoScalingGroupName;
 
-    @SerializedName("Cause")
-    public String cause;
-
     @SerializedName("Event")
     public String event;
 
     @SerializedName("Details")
     public Details details;
+
+    // set instead of Event by lifecycle hook notifications
+    @SerializedName("LifecycleTransition")
+    public String lifecycleTransition;
+
+    @SerializedName("LifecycleHookName")
+    public String lifecycleHookName;
+
+    @SerializedName("LifecycleActionToken")
+    public String lifecycleActionToken;
+
+    // region the notification came from, taken from the topic ARN rather than the message
+    public transient String region;
+
+    public String getEvent() {
+        return event != null ? event : lifecycleTransition;
+    }
+
+    public boolean isLifecycleAction() {
+        return lifecycleActionToken != null && lifecycleHookName != null;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,143 @@
+package com.gruegames.lambda_sns_ec2_scaling.pojo;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+// Streams an Auto Scaling notification and keeps only the fields the handlers use. Every other
+// value is skipped by the reader without being turned into a string or an object, and no
+// reflection is involved.
+public class MessageTypeAdapter extends TypeAdapter<Message> {
+    private static final MessageTypeAdapter instance = new MessageTypeAdapter();
+
+    public static MessageTypeAdapter getInstance() {
+        return instance;
+    }
+
+    public static Message parse(String json) throws IOException {
+        if (json == null || json.trim().isEmpty()) {
+            return null;
+        }
+
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        return instance.read(reader);
+    }
+
+    @Override
+    public Message read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        Message message = new Message();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "Event":
+                    message.event = nextString(in);
+                    break;
+                case "EC2InstanceId":
+                    message.EC2InstanceId = nextString(in);
+                    break;
+                case "ActivityId":
+                    message.activityId = nextString(in);
+                    break;
+                case "RequestId":
+                    message.requestId = nextString(in);
+                    break;
+                case "StartTime":
+                    message.startTime = nextString(in);
+                    break;
+                case "Time":
+                    message.time = nextString(in);
+                    break;
+                case "Details":
+                    message.details = readDetails(in, message);
+                    break;
+                case "LifecycleTransition":
+                    message.lifecycleTransition = nextString(in);
+                    break;
+                case "LifecycleHookName":
+                    message.lifecycleHookName = nextString(in);
+                    break;
+                case "LifecycleActionToken":
+                    message.lifecycleActionToken = nextString(in);
+                    break;
+                case "AutoScalingGroupName":
+                    message.autoScalingGroupName = nextString(in);
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return message;
+    }
+
+    private static Message.Details readDetails(JsonReader in, Message message) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return null;
+        }
+
+        Message.Details details = message.new Details();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "Availability Zone":
+                    details.availabilityZone = nextString(in);
+                    break;
+                case "Subnet ID":
+                    details.subnetId = nextString(in);
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return details;
+    }
+
+    private static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    @Override
+    public void write(JsonWriter out, Message message) throws IOException {
+        if (message == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        out.name("Event").value(message.event);
+        out.name("EC2InstanceId").value(message.EC2InstanceId);
+        out.name("ActivityId").value(message.activityId);
+        out.name("RequestId").value(message.requestId);
+        out.name("StartTime").value(message.startTime);
+        out.name("Time").value(message.time);
+        out.name("AutoScalingGroupName").value(message.autoScalingGroupName);
+        out.name("LifecycleTransition").value(message.lifecycleTransition);
+        out.name("LifecycleHookName").value(message.lifecycleHookName);
+        out.name("LifecycleActionToken").value(message.lifecycleActionToken);
+        if (message.details != null) {
+            out.name("Details").beginObject();
+            out.name("Subnet ID").value(message.details.subnetId);
+            out.name("Availability Zone").value(message.details.availabilityZone);
+            out.endObject();
+        }
+        out.endObject();
+    }
+}
@@ -3,11 +3,50 @@ package com.gruegames.lambda_sns_ec2_scaling.pojo;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class Response {
+    public static class RecordResult {
+        @SerializedName("MessageId")
+        @Expose
+        private String messageId;
+
+        @SerializedName("Status")
+        @Expose
+        private String status;
+
+        @SerializedName("Error")
+        @Expose
+        private String error;
+
+        public RecordResult(String messageId, String status, String error) {
+            this.messageId = messageId;
+            this.status = status;
+            this.error = error;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
     @SerializedName("Status")
     @Expose
     private String status;
 
+    @SerializedName("Records")
+    @Expose
+    private List<RecordResult> records = new ArrayList<>();
+
     public Response(String status) {
         this.status = status;
     }
@@ -19,4 +58,12 @@ public class Response {
     public void setStatus(String status) {
         this.status = status;
     }
+
+    public List<RecordResult> getRecords() {
+        return records;
+    }
+
+    public void addRecord(RecordResult record) {
+        records.add(record);
+    }
 }
@@ -0,0 +1,82 @@
+package com.gruegames.lambda_sns_ec2_scaling.sns;
+
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import org.joda.time.format.ISODateTimeFormat;
+
+// The JSON document SNS delivers to an SQS (or HTTP) subscriber. It carries the same fields as a
+// Lambda SNS record, so the signature can still be checked once it is turned into one.
+// Raw message delivery strips the envelope and must be left off for the subscription.
+public class SNSEnvelope {
+    private static final Gson gson = new Gson();
+
+    @SerializedName("Type")
+    String type;
+    @SerializedName("MessageId")
+    String messageId;
+    @SerializedName("TopicArn")
+    String topicArn;
+    @SerializedName("Subject")
+    String subject;
+    @SerializedName("Message")
+    String message;
+    @SerializedName("Timestamp")
+    String timestamp;
+    @SerializedName("SignatureVersion")
+    String signatureVersion;
+    @SerializedName("Signature")
+    String signature;
+    @SerializedName("SigningCertURL")
+    String signingCertUrl;
+    @SerializedName("UnsubscribeURL")
+    String unsubscribeUrl;
+    // only on SubscriptionConfirmation and UnsubscribeConfirmation, both are part of what SNS signs
+    @SerializedName("SubscribeURL")
+    String subscribeUrl;
+    @SerializedName("Token")
+    String token;
+
+    public static SNSEvent.SNS parse(String body) {
+        return read(body).toSNS();
+    }
+
+    public static SNSEnvelope read(String body) {
+        SNSEnvelope envelope;
+        try {
+            envelope = gson.fromJson(body, SNSEnvelope.class);
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Queue message is not an SNS notification", e);
+        }
+
+        if(envelope == null || envelope.type == null || envelope.timestamp == null) {
+            throw new IllegalArgumentException("Queue message is not an SNS notification, is raw message delivery on?");
+        }
+        return envelope;
+    }
+
+    public String getSubscribeUrl() {
+        return subscribeUrl;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public SNSEvent.SNS toSNS() {
+        SNSEvent.SNS sns = new SNSEvent.SNS();
+        sns.setType(type);
+        sns.setMessageId(messageId);
+        sns.setTopicArn(topicArn);
+        sns.setSubject(subject);
+        sns.setMessage(message);
+        // kept in UTC, the string to sign prints the timestamp back out in its own zone
+        sns.setTimestamp(ISODateTimeFormat.dateTimeParser().withZoneUTC().parseDateTime(timestamp));
+        sns.setSignatureVersion(signatureVersion);
+        sns.setSignature(signature);
+        sns.setSigningCertUrl(signingCertUrl);
+        sns.setUnsubscribeUrl(unsubscribeUrl);
+        return sns;
+    }
+}
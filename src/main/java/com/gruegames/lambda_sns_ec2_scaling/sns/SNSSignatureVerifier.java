@@ -0,0 +1,102 @@
+package com.gruegames.lambda_sns_ec2_scaling.sns;
+
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import org.apache.commons.codec.binary.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+// Verifies SNS message signatures. Signature objects are reused per thread since building them
+// goes through the provider lookup every time.
+public class SNSSignatureVerifier {
+    private static final ThreadLocal<Signature> sha1Verifier = ThreadLocal.withInitial(() -> newSignature("SHA1withRSA"));
+    private static final ThreadLocal<Signature> sha256Verifier = ThreadLocal.withInitial(() -> newSignature("SHA256withRSA"));
+
+    private SNSSignatureVerifier() {}
+
+    public static boolean isSupportedVersion(String signatureVersion) {
+        return "1".equals(signatureVersion) || "2".equals(signatureVersion);
+    }
+
+    public static boolean isMessageSignatureValid(SNSEvent.SNS msg) {
+        return verify(msg, sig -> StringToSignWriter.get().writeNotification(sig, msg));
+    }
+
+    // A Lambda SNS record has no SubscribeURL or Token, so a confirmation delivered that way never verifies
+    public static boolean isConfirmationSignatureValid(SNSEvent.SNS msg, String subscribeUrl, String token) {
+        if (subscribeUrl == null || token == null) {
+            return false;
+        }
+        return verify(msg, sig -> StringToSignWriter.get().writeConfirmation(sig, msg, subscribeUrl, token));
+    }
+
+    private static boolean verify(SNSEvent.SNS msg, StringToSign stringToSign) {
+        try {
+            X509Certificate cert = SigningCertCache.getInstance().get(msg.getSigningCertUrl());
+
+            Signature sig = getVerifier(msg.getSignatureVersion());
+            sig.initVerify(cert.getPublicKey());
+            stringToSign.write(sig);
+            return sig.verify(Base64.decodeBase64(msg.getSignature()));
+        } catch (Exception e) {
+            throw new SecurityException("Verify method failed.", e);
+        }
+    }
+
+    private interface StringToSign {
+        void write(Signature sig) throws SignatureException;
+    }
+
+    // Sign and verify a sample notification with a throwaway key, so the providers, the RSA code and
+    // the string to sign writer are loaded before the first real notification. Fetching the signing
+    // certificate is left to the first notification.
+    public static void prime(SNSEvent.SNS sample) {
+        try {
+            CertificateFactory.getInstance("X.509");
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(1024);
+            KeyPair keyPair = generator.generateKeyPair();
+
+            for (String version : new String[] { "1", "2" }) {
+                Signature signer = newSignature("1".equals(version) ? "SHA1withRSA" : "SHA256withRSA");
+                signer.initSign(keyPair.getPrivate());
+                StringToSignWriter.get().writeNotification(signer, sample);
+                byte[] signature = signer.sign();
+
+                Signature verifier = getVerifier(version);
+                verifier.initVerify(keyPair.getPublic());
+                StringToSignWriter.get().writeNotification(verifier, sample);
+                if (!verifier.verify(signature)) {
+                    throw new IllegalStateException(String.format("Priming signature version %s did not verify", version));
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not prime signature verification", e);
+        }
+    }
+
+    private static Signature getVerifier(String signatureVersion) {
+        switch (signatureVersion) {
+            case "1":
+                return sha1Verifier.get();
+            case "2":
+                return sha256Verifier.get();
+            default:
+                throw new SecurityException(String.format("Unexpected signature version %s", signatureVersion));
+        }
+    }
+
+    private static Signature newSignature(String algorithm) {
+        try {
+            return Signature.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
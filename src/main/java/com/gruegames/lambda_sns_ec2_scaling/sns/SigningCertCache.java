@@ -0,0 +1,196 @@
+package com.gruegames.lambda_sns_ec2_scaling.sns;
+
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// SNS signing certificates keyed by SigningCertUrl. Lives for the life of the container so warm
+// invocations skip the download; concurrent misses for the same URL share a single fetch. The URL
+// comes from the message itself, so only https URLs on an SNS endpoint are fetched.
+public class SigningCertCache {
+    private static final Logger logger = LogManager.getLogger(SigningCertCache.class);
+    private static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int READ_TIMEOUT_MILLIS = 3000;
+    // SNS rotates its certificate now and then, a handful of URLs per region is all a container sees
+    private static final int MAX_ENTRIES = 32;
+    private static final Pattern SNS_HOST = Pattern.compile("sns\\.[a-z0-9-]+\\.amazonaws\\.com(\\.cn)?");
+    // URLs trusted as they are, for stand-ins of SNS in tests and local runs
+    private static final Set<String> allowedUrls = ConcurrentHashMap.newKeySet();
+
+    private static class Entry {
+        final X509Certificate certificate;
+        final long fetchedAt;
+
+        Entry(X509Certificate certificate, long fetchedAt) {
+            this.certificate = certificate;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static final SigningCertCache instance = new SigningCertCache(DEFAULT_TTL_MILLIS);
+
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> cache = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+
+    SigningCertCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public static SigningCertCache getInstance() {
+        return instance;
+    }
+
+    // Trust a certificate URL that isn't on an SNS endpoint, e.g. a file: URL served by a test signer
+    public static void allowCertUrl(String certUrl) {
+        allowedUrls.add(certUrl);
+    }
+
+    public X509Certificate get(String certUrl) throws CertificateException {
+        checkCertUrl(certUrl);
+        while (true) {
+            CompletableFuture<Entry> future = cache.get(certUrl);
+            boolean owner = false;
+
+            if (future == null) {
+                evictIfFull();
+                CompletableFuture<Entry> created = new CompletableFuture<>();
+                future = cache.putIfAbsent(certUrl, created);
+                if (future == null) {
+                    future = created;
+                    owner = true;
+                }
+            }
+
+            // only the thread that installed the future downloads, everyone else waits on it
+            if (owner) {
+                try {
+                    future.complete(new Entry(fetch(certUrl), System.currentTimeMillis()));
+                } catch (CertificateException | RuntimeException e) {
+                    cache.remove(certUrl, future);
+                    future.completeExceptionally(e);
+                    throw e;
+                }
+            }
+
+            Entry entry;
+            try {
+                entry = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CertificateException("Interrupted while fetching signing certificate", e);
+            } catch (ExecutionException e) {
+                throw new CertificateException(String.format("Could not fetch signing certificate %s", certUrl), e.getCause());
+            }
+
+            if (isFresh(entry)) {
+                return entry.certificate;
+            }
+
+            // stale or expired: drop it and go round again so exactly one caller refetches
+            logger.info(String.format("Signing certificate %s is stale, refetching", certUrl));
+            cache.remove(certUrl, future);
+        }
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    static void checkCertUrl(String certUrl) throws CertificateException {
+        if (certUrl == null) {
+            throw new CertificateException("Missing signing certificate URL");
+        }
+        if (allowedUrls.contains(certUrl)) {
+            return;
+        }
+
+        URL url;
+        try {
+            url = new URL(certUrl);
+        } catch (MalformedURLException e) {
+            throw new CertificateException(String.format("Invalid signing certificate URL %s", certUrl), e);
+        }
+        if (!"https".equals(url.getProtocol()) || !SNS_HOST.matcher(url.getHost()).matches()) {
+            throw new CertificateException(String.format("Signing certificate URL %s is not an SNS endpoint", certUrl));
+        }
+    }
+
+    // Make room for one more URL: stale entries go first, then whichever settled entry comes up
+    private void evictIfFull() {
+        if (cache.size() < MAX_ENTRIES) {
+            return;
+        }
+
+        for (Iterator<Map.Entry<String, CompletableFuture<Entry>>> it = cache.entrySet().iterator(); it.hasNext(); ) {
+            CompletableFuture<Entry> future = it.next().getValue();
+            if (future.isDone() && !future.isCompletedExceptionally() && !isFresh(future.join())) {
+                it.remove();
+            }
+        }
+        for (Iterator<Map.Entry<String, CompletableFuture<Entry>>> it = cache.entrySet().iterator();
+             cache.size() >= MAX_ENTRIES && it.hasNext(); ) {
+            // a fetch still in flight has callers waiting on it, leave it be
+            if (it.next().getValue().isDone()) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean isFresh(Entry entry) {
+        if (System.currentTimeMillis() - entry.fetchedAt > ttlMillis) {
+            return false;
+        }
+
+        try {
+            entry.certificate.checkValidity();
+            return true;
+        } catch (CertificateExpiredException | CertificateNotYetValidException e) {
+            return false;
+        }
+    }
+
+    private static X509Certificate fetch(String certUrl) throws CertificateException {
+        logger.info(String.format("Fetching signing certificate %s", certUrl));
+        long start = Metrics.start();
+
+        try {
+            // callers joining the fetch wait for it, don't let a slow endpoint hold them all
+            URLConnection connection = new URL(certUrl).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            try (InputStream inStream = connection.getInputStream()) {
+                CertificateFactory cf = CertificateFactory.getInstance("X.509");
+                X509Certificate cert = (X509Certificate) cf.generateCertificate(inStream);
+                cert.checkValidity();
+                Metrics.record("sns.cert.fetch", start);
+                return cert;
+            }
+        } catch (IOException e) {
+            throw new CertificateException(String.format("Could not download signing certificate %s", certUrl), e);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.gruegames.lambda_sns_ec2_scaling.sns;
+
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.Signature;
+import java.security.SignatureException;
+
+// Streams the SNS canonical string to sign straight into a Signature. Field values are encoded
+// to UTF-8 through a reused buffer, so the message body is never copied into an intermediate String.
+// The name/value pairs are sorted by name in byte order and separated by newline characters.
+public class StringToSignWriter {
+    private static final int BUFFER_SIZE = 8192;
+    private static final DateTimeFormatter timestampFormat = ISODateTimeFormat.dateTime();
+
+    private static final byte[] MESSAGE = fieldName("Message");
+    private static final byte[] MESSAGE_ID = fieldName("MessageId");
+    private static final byte[] SUBJECT = fieldName("Subject");
+    private static final byte[] SUBSCRIBE_URL = fieldName("SubscribeURL");
+    private static final byte[] TIMESTAMP = fieldName("Timestamp");
+    private static final byte[] TOKEN = fieldName("Token");
+    private static final byte[] TOPIC_ARN = fieldName("TopicArn");
+    private static final byte[] TYPE = fieldName("Type");
+    private static final byte NEWLINE = '\n';
+
+    private static final ThreadLocal<StringToSignWriter> writers = ThreadLocal.withInitial(StringToSignWriter::new);
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final StringBuilder timestamp = new StringBuilder(32);
+
+    private StringToSignWriter() {}
+
+    public static StringToSignWriter get() {
+        return writers.get();
+    }
+
+    // Notification: Message, MessageId, Subject (only when present), Timestamp, TopicArn, Type
+    public void writeNotification(Signature sig, SNSEvent.SNS msg) throws SignatureException {
+        writeField(sig, MESSAGE, msg.getMessage());
+        writeField(sig, MESSAGE_ID, msg.getMessageId());
+        if (msg.getSubject() != null) {
+            writeField(sig, SUBJECT, msg.getSubject());
+        }
+        writeField(sig, TIMESTAMP, formatTimestamp(msg));
+        writeField(sig, TOPIC_ARN, msg.getTopicArn());
+        writeField(sig, TYPE, msg.getType());
+    }
+
+    // SubscriptionConfirmation and UnsubscribeConfirmation: Message, MessageId, SubscribeURL, Timestamp,
+    // Token, TopicArn, Type. The Lambda SNS record does not carry SubscribeURL or Token, so callers pass them.
+    public void writeConfirmation(Signature sig, SNSEvent.SNS msg, String subscribeUrl, String token)
+            throws SignatureException {
+        writeField(sig, MESSAGE, msg.getMessage());
+        writeField(sig, MESSAGE_ID, msg.getMessageId());
+        writeField(sig, SUBSCRIBE_URL, subscribeUrl);
+        writeField(sig, TIMESTAMP, formatTimestamp(msg));
+        writeField(sig, TOKEN, token);
+        writeField(sig, TOPIC_ARN, msg.getTopicArn());
+        writeField(sig, TYPE, msg.getType());
+    }
+
+    private CharSequence formatTimestamp(SNSEvent.SNS msg) {
+        timestamp.setLength(0);
+        if (msg.getTimestamp() != null) {
+            try {
+                timestampFormat.printTo(timestamp, msg.getTimestamp());
+            } catch (IOException e) {
+                // StringBuilder never throws
+                throw new IllegalStateException(e);
+            }
+        }
+        return timestamp;
+    }
+
+    private void writeField(Signature sig, byte[] name, CharSequence value) throws SignatureException {
+        sig.update(name);
+        if (value != null) {
+            writeValue(sig, value);
+        }
+        sig.update(NEWLINE);
+    }
+
+    // UTF-8 by hand: a CharsetEncoder over a wrapped String takes its slow per character path and
+    // loses to String.getBytes, this keeps the copy free version at least as fast. Unpaired
+    // surrogates become '?' like String.getBytes does.
+    private void writeValue(Signature sig, CharSequence value) throws SignatureException {
+        byte[] out = buffer;
+        int pos = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (pos > BUFFER_SIZE - 4) {
+                sig.update(out, 0, pos);
+                pos = 0;
+            }
+
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xc0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    out[pos++] = (byte) (0xf0 | (cp >> 18));
+                    out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    out[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    out[pos++] = '?';
+                }
+            } else {
+                out[pos++] = (byte) (0xe0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        if (pos > 0) {
+            sig.update(out, 0, pos);
+        }
+    }
+
+    private static byte[] fieldName(String name) {
+        return (name + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,118 @@
+package com.gruegames.lambda_sns_ec2_scaling.worker;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Stand-in for SQS when running the worker locally: every *.json file in the directory is one SNS
+// notification. A received file is renamed to *.inflight so it is only handed out once, deleted
+// when acknowledged and renamed back when released. A released file is held back for a while,
+// using its modification time as the time it becomes visible again. An in-flight file never times
+// out, so there is nothing to extend.
+public class DirectoryMessageQueue implements MessageQueue {
+    private static final Logger logger = LogManager.getLogger(DirectoryMessageQueue.class);
+    private static final String READY = ".json";
+    private static final String IN_FLIGHT = ".inflight";
+    private static final long POLL_MILLIS = 500;
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final File dir;
+
+    public DirectoryMessageQueue(File dir) {
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException(String.format("Could not create queue directory %s", dir));
+        }
+        this.dir = dir;
+
+        // anything still in flight belongs to a worker that died, hand it out again
+        File[] stale = dir.listFiles((d, name) -> name.endsWith(IN_FLIGHT));
+        for(File file : stale == null ? new File[0] : stale) {
+            rename(file, READY);
+        }
+    }
+
+    @Override
+    public List<QueueMessage> receive(int maxMessages, int waitSeconds) {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(waitSeconds);
+        while(true) {
+            List<QueueMessage> received = take(maxMessages);
+            if(!received.isEmpty() || System.currentTimeMillis() >= deadline) {
+                return received;
+            }
+
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return received;
+            }
+        }
+    }
+
+    @Override
+    public void delete(QueueMessage message) {
+        File file = new File(message.handle);
+        if(!file.delete() && file.exists()) {
+            logger.warn(String.format("Could not delete %s", file));
+        }
+    }
+
+    @Override
+    public void release(QueueMessage message) {
+        File file = rename(new File(message.handle), READY);
+        if(file != null && !file.setLastModified(System.currentTimeMillis() + RETRY_DELAY_MILLIS)) {
+            logger.warn(String.format("Could not delay retry of %s", file));
+        }
+    }
+
+    private synchronized List<QueueMessage> take(int maxMessages) {
+        long now = System.currentTimeMillis();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(READY));
+        List<QueueMessage> received = new ArrayList<>();
+        if(files == null) {
+            return received;
+        }
+
+        // oldest first, roughly the order they were published in
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for(File file : files) {
+            if(received.size() >= maxMessages) {
+                break;
+            }
+            if(file.lastModified() > now) {
+                continue;
+            }
+
+            File inFlight = rename(file, IN_FLIGHT);
+            if(inFlight == null) {
+                continue;
+            }
+
+            try {
+                String body = new String(Files.readAllBytes(inFlight.toPath()), StandardCharsets.UTF_8);
+                received.add(new QueueMessage(file.getName(), inFlight.getPath(), body, 1));
+            } catch (IOException e) {
+                logger.error(String.format("Could not read %s", inFlight), e);
+                rename(inFlight, READY);
+            }
+        }
+        return received;
+    }
+
+    // Swap the file's suffix, returning the renamed file or null if someone else got to it first
+    private static File rename(File file, String suffix) {
+        String name = file.getName();
+        String base = name.substring(0, name.lastIndexOf('.'));
+        File renamed = new File(file.getParentFile(), base + suffix);
+        return file.renameTo(renamed) ? renamed : null;
+    }
+}
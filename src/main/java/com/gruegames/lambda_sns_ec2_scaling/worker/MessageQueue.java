@@ -0,0 +1,21 @@
+package com.gruegames.lambda_sns_ec2_scaling.worker;
+
+import java.util.List;
+
+// A source of SNS notifications for the worker. Messages are acknowledged one at a time, so a
+// failed message is redelivered on its own without holding back the rest of its batch.
+public interface MessageQueue {
+    // Wait up to waitSeconds for at least one message and return at most maxMessages
+    List<QueueMessage> receive(int maxMessages, int waitSeconds);
+
+    // The message was handled, remove it for good
+    void delete(QueueMessage message);
+
+    // The message failed, make it visible again so it is retried
+    void release(QueueMessage message);
+
+    // Still working on the message, keep it from being handed out again for another timeoutSeconds
+    default void extend(QueueMessage message, int timeoutSeconds) {}
+
+    default void close() {}
+}
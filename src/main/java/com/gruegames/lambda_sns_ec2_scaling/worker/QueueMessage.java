@@ -0,0 +1,17 @@
+package com.gruegames.lambda_sns_ec2_scaling.worker;
+
+// One message taken from a queue. The handle is whatever the queue needs to acknowledge or
+// release it (an SQS receipt handle, a file path).
+public class QueueMessage {
+    public final String id;
+    public final String handle;
+    public final String body;
+    public final int receiveCount;
+
+    public QueueMessage(String id, String handle, String body, int receiveCount) {
+        this.id = id;
+        this.handle = handle;
+        this.body = body;
+        this.receiveCount = receiveCount;
+    }
+}
@@ -0,0 +1,85 @@
+package com.gruegames.lambda_sns_ec2_scaling.worker;
+
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.gruegames.lambda_sns_ec2_scaling.helper.AWSHelper;
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// An SQS queue subscribed to the Auto Scaling topic. Receives use long polling so an idle worker
+// makes one request every 20 seconds instead of spinning.
+public class SQSMessageQueue implements MessageQueue {
+    private static final Logger logger = LogManager.getLogger(SQSMessageQueue.class);
+    private static final Pattern queueRegionPattern = Pattern.compile("^https?://sqs\\.([a-z0-9-]+)\\.amazonaws\\.com");
+    // SQS caps a receive at 10 messages and a long poll at 20 seconds
+    static final int MAX_MESSAGES = 10;
+    static final int MAX_WAIT_SECONDS = 20;
+    private static final int RETRY_DELAY_SECONDS = 30;
+    private static final int MAX_RETRY_DELAY_SECONDS = 900;
+
+    private final String queueUrl;
+    private final AmazonSQSClient client;
+
+    public SQSMessageQueue(String queueUrl) {
+        this.queueUrl = queueUrl;
+        this.client = AWSHelper.getSQSClient(getRegion(queueUrl));
+    }
+
+    @Override
+    public List<QueueMessage> receive(int maxMessages, int waitSeconds) {
+        long start = Metrics.start();
+        List<Message> messages = client.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                .withMaxNumberOfMessages(Math.min(maxMessages, MAX_MESSAGES))
+                .withWaitTimeSeconds(Math.min(waitSeconds, MAX_WAIT_SECONDS))
+                .withAttributeNames("ApproximateReceiveCount"))
+                .getMessages();
+        Metrics.record("sqs.receive", start);
+
+        List<QueueMessage> received = new ArrayList<>(messages.size());
+        for(Message message : messages) {
+            String count = message.getAttributes().get("ApproximateReceiveCount");
+            received.add(new QueueMessage(message.getMessageId(), message.getReceiptHandle(), message.getBody(),
+                    count == null ? 1 : Integer.parseInt(count)));
+        }
+        return received;
+    }
+
+    @Override
+    public void delete(QueueMessage message) {
+        client.deleteMessage(new DeleteMessageRequest(queueUrl, message.handle));
+    }
+
+    // Shorten the visibility timeout so the retry doesn't wait out the full timeout, backing off with
+    // every receive. The queue's redrive policy decides when a message is given up on.
+    @Override
+    public void release(QueueMessage message) {
+        int delaySeconds = Math.min(MAX_RETRY_DELAY_SECONDS, RETRY_DELAY_SECONDS * message.receiveCount);
+        client.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl, message.handle, delaySeconds));
+    }
+
+    @Override
+    public void extend(QueueMessage message, int timeoutSeconds) {
+        client.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl, message.handle, timeoutSeconds));
+    }
+
+    private static Region getRegion(String queueUrl) {
+        Matcher matcher = queueRegionPattern.matcher(queueUrl);
+        if(matcher.find()) {
+            return Region.getRegion(Regions.fromName(matcher.group(1)));
+        }
+
+        logger.warn(String.format("No region in queue url %s, using %s", queueUrl, Regions.DEFAULT_REGION.getName()));
+        return Region.getRegion(Regions.DEFAULT_REGION);
+    }
+}
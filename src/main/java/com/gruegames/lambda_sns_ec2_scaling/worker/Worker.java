@@ -0,0 +1,248 @@
+package com.gruegames.lambda_sns_ec2_scaling.worker;
+
+import com.amazonaws.util.StringUtils;
+import com.gruegames.lambda_sns_ec2_scaling.NotificationProcessor;
+import com.gruegames.lambda_sns_ec2_scaling.helper.Backoff;
+import com.gruegames.lambda_sns_ec2_scaling.metrics.Metrics;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.Response;
+import com.gruegames.lambda_sns_ec2_scaling.sns.SNSEnvelope;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Long running alternative to LambdaFunction for fleets that keep a host up anyway. Notifications
+// are read from a queue subscribed to the Auto Scaling topic instead of being pushed by SNS, and go
+// through the same NotificationProcessor. Run it with
+//   java -cp lambda_sns_ec2_scaling.jar com.gruegames.lambda_sns_ec2_scaling.worker.Worker
+// and either WORKER_SQS_QUEUE_URL or WORKER_QUEUE_DIR set.
+public class Worker {
+    private static final Logger logger = LogManager.getLogger(Worker.class);
+    private static final int DEFAULT_CONCURRENCY = 10;
+    private static final int WAIT_SECONDS = 20;
+    private static final long FLUSH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final String METRICS_SOURCE = "worker";
+    // while a message is handled it is kept invisible for this long, renewed every heartbeat
+    private static final int VISIBILITY_TIMEOUT_SECONDS = 180;
+    private static final long VISIBILITY_HEARTBEAT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private final MessageQueue queue;
+    private final int concurrency;
+    // one permit per message being handled, the worker only receives as many as it has room for
+    private final Semaphore permits;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService flusher;
+    private final ScheduledExecutorService heartbeats;
+    private final long heartbeatMillis;
+    private volatile boolean running = true;
+
+    public Worker(MessageQueue queue, int concurrency) {
+        this(queue, concurrency, VISIBILITY_HEARTBEAT_MILLIS);
+    }
+
+    Worker(MessageQueue queue, int concurrency, long heartbeatMillis) {
+        this.queue = queue;
+        this.heartbeatMillis = heartbeatMillis;
+        this.concurrency = concurrency;
+        this.permits = new Semaphore(concurrency);
+        this.workers = Executors.newFixedThreadPool(concurrency, daemonThreads("queue-worker"));
+        this.flusher = Executors.newSingleThreadScheduledExecutor(daemonThreads("queue-worker-flush"));
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(daemonThreads("queue-worker-heartbeat"));
+    }
+
+    public static void main(String[] args) {
+        MessageQueue queue = createQueue();
+        String concurrencyEnv = System.getenv("WORKER_CONCURRENCY");
+        int concurrency = StringUtils.isNullOrEmpty(concurrencyEnv) ? DEFAULT_CONCURRENCY
+                : Integer.parseInt(concurrencyEnv.trim());
+
+        if(NotificationProcessor.isPrimeOnInit()) {
+            NotificationProcessor.prime();
+        } else {
+            NotificationProcessor.initialize();
+        }
+        Worker worker = new Worker(queue, concurrency);
+        Runtime.getRuntime().addShutdownHook(new Thread(worker::stop, "queue-worker-shutdown"));
+        worker.run();
+    }
+
+    private static MessageQueue createQueue() {
+        String queueUrl = System.getenv("WORKER_SQS_QUEUE_URL");
+        if(!StringUtils.isNullOrEmpty(queueUrl)) {
+            logger.info(String.format("Reading notifications from %s", queueUrl));
+            return new SQSMessageQueue(queueUrl.trim());
+        }
+
+        String dir = System.getenv("WORKER_QUEUE_DIR");
+        if(!StringUtils.isNullOrEmpty(dir)) {
+            logger.info(String.format("Reading notifications from files in %s", dir));
+            return new DirectoryMessageQueue(new File(dir.trim()));
+        }
+
+        throw new IllegalStateException("Set WORKER_SQS_QUEUE_URL or WORKER_QUEUE_DIR");
+    }
+
+    public void run() {
+        flusher.scheduleWithFixedDelay(() -> NotificationProcessor.flush(METRICS_SOURCE),
+                FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        logger.info(String.format("Worker started, handling up to %d notifications at once", concurrency));
+
+        Backoff backoff = null;
+        while(running) {
+            int reserved = reserve();
+            if(reserved == 0) {
+                break;
+            }
+
+            List<QueueMessage> messages;
+            try {
+                messages = queue.receive(reserved, WAIT_SECONDS);
+                backoff = null;
+            } catch (RuntimeException e) {
+                permits.release(reserved);
+                if(backoff == null) {
+                    backoff = new Backoff(1000, 30000, Long.MAX_VALUE);
+                }
+                long delay = backoff.nextDelay();
+                logger.error(String.format("Could not receive from the queue, retrying in %d ms", delay), e);
+                sleep(delay);
+                continue;
+            }
+
+            // hand back the room the receive didn't use
+            permits.release(reserved - messages.size());
+            for(QueueMessage message : messages) {
+                workers.execute(() -> handle(message));
+            }
+        }
+    }
+
+    // Stop receiving and wait for the messages already taken to be handled, then push out what was collected
+    public void stop() {
+        if(!running) {
+            return;
+        }
+
+        running = false;
+        logger.info("Worker stopping, waiting for in-flight notifications");
+        try {
+            if(!permits.tryAcquire(concurrency, SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.warn(String.format("%d notifications were still in flight at shutdown, the queue will redeliver them",
+                        concurrency - permits.availablePermits()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        flusher.shutdownNow();
+        heartbeats.shutdownNow();
+        queue.close();
+        NotificationProcessor.flush(METRICS_SOURCE);
+    }
+
+    // Block until there is room for at least one message, then take as much room as is free (up to a full batch)
+    private int reserve() {
+        try {
+            while(running) {
+                if(permits.tryAcquire(1, TimeUnit.SECONDS)) {
+                    int extra = permits.drainPermits();
+                    int max = SQSMessageQueue.MAX_MESSAGES - 1;
+                    if(extra > max) {
+                        permits.release(extra - max);
+                        extra = max;
+                    }
+                    return 1 + extra;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    // Every message is acknowledged on its own: a success is deleted, a failure is released for a retry.
+    // A launch can take longer than the queue's visibility timeout, so while it runs the message's
+    // timeout is pushed back every minute; otherwise the queue would hand it to another worker.
+    private void handle(QueueMessage message) {
+        long start = Metrics.start();
+        AtomicBoolean finished = new AtomicBoolean();
+        ScheduledFuture<?> heartbeat = heartbeats.scheduleWithFixedDelay(() -> extendVisibility(message, finished),
+                heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        try {
+            Response.RecordResult result;
+            try {
+                SNSEnvelope envelope = SNSEnvelope.read(message.body);
+                result = NotificationProcessor.process(envelope.toSNS(), envelope.getSubscribeUrl(), envelope.getToken());
+            } catch (IllegalArgumentException e) {
+                result = new Response.RecordResult(message.id, "Failed", e.getLocalizedMessage());
+            } finally {
+                // no heartbeat may land after the release below and undo its retry delay
+                heartbeat.cancel(false);
+                synchronized (finished) {
+                    finished.set(true);
+                }
+            }
+
+            if("Success".equals(result.getStatus())) {
+                queue.delete(message);
+            } else {
+                logger.warn(String.format("Queue message %s failed (receive %d): %s", message.id,
+                        message.receiveCount, result.getError()));
+                Metrics.increment("records.failed");
+                queue.release(message);
+            }
+        } catch (RuntimeException e) {
+            // the message stays invisible until its timeout runs out and then comes back on its own
+            logger.error(String.format("Could not acknowledge queue message %s", message.id), e);
+        } finally {
+            Metrics.record("worker.message", start);
+            Metrics.increment("records");
+            permits.release();
+        }
+    }
+
+    private void extendVisibility(QueueMessage message, AtomicBoolean finished) {
+        synchronized (finished) {
+            if(finished.get()) {
+                return;
+            }
+
+            try {
+                queue.extend(message, VISIBILITY_TIMEOUT_SECONDS);
+                Metrics.increment("worker.heartbeat");
+            } catch (RuntimeException e) {
+                // tried again on the next heartbeat, well before the timeout runs out
+                logger.warn(String.format("Could not extend the visibility of queue message %s: %s", message.id,
+                        e.getLocalizedMessage()));
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, String.format("%s-%d", name, count.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
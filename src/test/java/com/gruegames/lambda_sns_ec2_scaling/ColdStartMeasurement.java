@@ -0,0 +1,157 @@
+package com.gruegames.lambda_sns_ec2_scaling;
+
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.Response;
+import com.gruegames.lambda_sns_ec2_scaling.sns.SigningCertCache;
+import com.gruegames.lambda_sns_ec2_scaling.testing.SNSSigner;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+// Cold against warm invocations of the Lambda handler. Every run is a fresh JVM that builds
+// LambdaFunction, handles one signed test notification cold and then the same one warm a few more
+// times, with and without PRIME_ON_INIT. The test notification is verified and decoded but stops
+// before EC2, so this is the fixed cost every invocation pays. The Lambda runtime's own start and
+// event deserialization are not part of it.
+//
+//   mvn test-compile exec:exec -Drun.main=com.gruegames.lambda_sns_ec2_scaling.ColdStartMeasurement -Drun.args=10
+public class ColdStartMeasurement {
+    private static final String RESULT = "coldstart ";
+    private static final int WARM_INVOCATIONS = 50;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && "invoke".equals(args[0])) {
+            invoke(args[1]);
+            return;
+        }
+
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        File event = writeEvent();
+        for (boolean prime : new boolean[] { false, true }) {
+            List<long[]> results = new ArrayList<>();
+            for (int i = 0; i < runs; i++) {
+                results.add(run(event, prime));
+            }
+            System.out.println(String.format("PRIME_ON_INIT=%s, %d JVMs: init %s ms, first invocation %s ms, " +
+                    "warm invocation p50 %s us", prime, runs, median(results, 0), median(results, 1),
+                    median(results, 2)));
+        }
+    }
+
+    // one signed test notification, written as plain properties so reading it loads nothing the
+    // handler would otherwise load first
+    private static File writeEvent() throws Exception {
+        SNSSigner signer = new SNSSigner();
+        SNSEvent.SNS sns = signer.notification("{\"Event\":\"autoscaling:TEST_NOTIFICATION\"," +
+                "\"AccountId\":\"000000000000\",\"AutoScalingGroupName\":\"scaling\"," +
+                "\"RequestId\":\"cold-start\",\"Time\":\"2016-01-01T00:00:00.000Z\"}", "1");
+
+        Properties properties = new Properties();
+        properties.setProperty("type", sns.getType());
+        properties.setProperty("messageId", sns.getMessageId());
+        properties.setProperty("topicArn", sns.getTopicArn());
+        properties.setProperty("subject", sns.getSubject());
+        properties.setProperty("message", sns.getMessage());
+        properties.setProperty("timestamp", String.valueOf(sns.getTimestamp().getMillis()));
+        properties.setProperty("signatureVersion", sns.getSignatureVersion());
+        properties.setProperty("signature", sns.getSignature());
+        properties.setProperty("signingCertUrl", sns.getSigningCertUrl());
+
+        File file = File.createTempFile("cold-start", ".properties");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, null);
+        }
+        return file;
+    }
+
+    private static long[] run(File event, boolean prime) throws Exception {
+        ProcessBuilder builder = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), ColdStartMeasurement.class.getName(),
+                "invoke", event.getPath());
+        builder.environment().put("PRIME_ON_INIT", String.valueOf(prime));
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+
+        long[] result = null;
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line).append('\n');
+                if (line.startsWith(RESULT)) {
+                    result = Arrays.stream(line.substring(RESULT.length()).split(" ")).mapToLong(Long::parseLong).toArray();
+                }
+            }
+        }
+        if (process.waitFor() != 0 || result == null) {
+            throw new IllegalStateException("Cold start run failed:\n" + output);
+        }
+        return result;
+    }
+
+    // runs in the fresh JVM: init, first and warm median, printed on one line for the parent
+    private static void invoke(String eventFile) throws Exception {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(eventFile)) {
+            properties.load(in);
+        }
+        SNSEvent.SNS sns = new SNSEvent.SNS();
+        sns.setType(properties.getProperty("type"));
+        sns.setMessageId(properties.getProperty("messageId"));
+        sns.setTopicArn(properties.getProperty("topicArn"));
+        sns.setSubject(properties.getProperty("subject"));
+        sns.setMessage(properties.getProperty("message"));
+        sns.setTimestamp(new DateTime(Long.parseLong(properties.getProperty("timestamp")), DateTimeZone.UTC));
+        sns.setSignatureVersion(properties.getProperty("signatureVersion"));
+        sns.setSignature(properties.getProperty("signature"));
+        sns.setSigningCertUrl(properties.getProperty("signingCertUrl"));
+        SigningCertCache.allowCertUrl(properties.getProperty("signingCertUrl"));
+        SNSEvent.SNSRecord record = new SNSEvent.SNSRecord();
+        record.setSns(sns);
+        SNSEvent event = new SNSEvent();
+        event.setRecords(Collections.singletonList(record));
+
+        LambdaFunction function = new LambdaFunction();
+        long init = ManagementFactory.getRuntimeMXBean().getUptime();
+
+        long start = System.nanoTime();
+        check(function.handleRequest(event, null));
+        long first = (System.nanoTime() - start) / 1000000;
+
+        long[] warm = new long[WARM_INVOCATIONS];
+        for (int i = 0; i < warm.length; i++) {
+            start = System.nanoTime();
+            check(function.handleRequest(event, null));
+            warm[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(warm);
+
+        System.out.println(String.format("%s%d %d %d", RESULT, init, first, warm[warm.length / 2]));
+        System.exit(0);
+    }
+
+    private static void check(Response response) {
+        if (!"Success".equals(response.getStatus())) {
+            throw new IllegalStateException(String.format("Invocation failed: %s", response.getStatus()));
+        }
+    }
+
+    private static long median(List<long[]> results, int index) {
+        long[] values = results.stream().mapToLong(result -> result[index]).sorted().toArray();
+        return values[values.length / 2];
+    }
+}
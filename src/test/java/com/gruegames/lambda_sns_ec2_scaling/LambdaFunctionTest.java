@@ -0,0 +1,63 @@
+package com.gruegames.lambda_sns_ec2_scaling;
+
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.Response;
+import com.gruegames.lambda_sns_ec2_scaling.testing.SNSSigner;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Records are fanned out and reported back in order; one failed record fails the invocation so SNS retries it
+public class LambdaFunctionTest {
+    private static final String TEST_NOTIFICATION = "{\"Event\":\"autoscaling:TEST_NOTIFICATION\"}";
+
+    private static SNSSigner signer;
+
+    @BeforeClass
+    public static void createSigner() throws Exception {
+        signer = new SNSSigner();
+    }
+
+    @Test
+    public void reportsEveryRecordInOrder() throws Exception {
+        SNSEvent event = event(5);
+        Response response = new LambdaFunction().handleRequest(event, null);
+
+        assertEquals("Success", response.getStatus());
+        assertEquals(5, response.getRecords().size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(event.getRecords().get(i).getSNS().getMessageId(), response.getRecords().get(i).getMessageId());
+        }
+    }
+
+    @Test
+    public void failedRecordFailsTheInvocation() throws Exception {
+        SNSEvent event = event(3);
+        SNSEvent.SNS tampered = event.getRecords().get(1).getSNS();
+        tampered.setMessage("{\"Event\":\"autoscaling:EC2_INSTANCE_TERMINATE\"}");
+
+        try {
+            new LambdaFunction().handleRequest(event, null);
+            fail("a record failed verification");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("1 of 3 SNS records failed"));
+            assertTrue(e.getMessage(), e.getMessage().contains(tampered.getMessageId()));
+        }
+    }
+
+    private static SNSEvent event(int records) throws Exception {
+        List<SNSEvent.SNSRecord> list = new ArrayList<>();
+        for (int i = 0; i < records; i++) {
+            list.add(signer.record(signer.notification(TEST_NOTIFICATION, "2")));
+        }
+        SNSEvent event = new SNSEvent();
+        event.setRecords(list);
+        return event;
+    }
+}
@@ -0,0 +1,244 @@
+package com.gruegames.lambda_sns_ec2_scaling;
+
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.gruegames.lambda_sns_ec2_scaling.helper.SSHConnectionManager;
+import com.gruegames.lambda_sns_ec2_scaling.journal.EventJournals;
+import com.gruegames.lambda_sns_ec2_scaling.journal.FileEventJournal;
+import com.gruegames.lambda_sns_ec2_scaling.metadata.FileInstanceMetadataStore;
+import com.gruegames.lambda_sns_ec2_scaling.metadata.InstanceMetadataCache;
+import com.gruegames.lambda_sns_ec2_scaling.testing.SNSSigner;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubEC2Server;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubSSHServer;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubSaltApi;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Bursts of signed launch and terminate notifications through LambdaFunction.handleRequest, so the
+// record fan-out, the Response and the alert flush are part of what is measured, against stub EC2,
+// salt-api and an sshd whose instances take a while to boot. Each burst is cut into SNSEvents of a
+// few records. Some deliveries are repeated the way SNS redelivers, and the order is shuffled so a
+// terminate can overtake its launch. Prints p50/p99 per invocation and per event kind, where an
+// event takes as long as the invocation that carried it, and the events per second over the whole
+// run. An invocation with a failed record throws, naming the MessageIds that failed; only those
+// records are counted as failed. When both copies of a repeated notification run at once,
+// whichever comes second fails so it is retried once the outcome is known; those are counted
+// under the kind of that copy.
+//
+//   mvn test-compile exec:exec -Drun.main=com.gruegames.lambda_sns_ec2_scaling.LoadTest -Drun.args="200 2000"
+//
+// The arguments are instances (200), boot delay in ms (2000), concurrent invocations (50), burst
+// size in records (50), the pause between bursts in ms (100) and records per invocation (10).
+public class LoadTest {
+    private static final double TERMINATED_FRACTION = 0.5;
+    private static final double DUPLICATE_FRACTION = 0.2;
+    private static final long SEED = 42;
+
+    private static class Outcome {
+        final long micros;
+        // what handleRequest threw, null when every record succeeded
+        final String failure;
+
+        Outcome(long micros, String failure) {
+            this.micros = micros;
+            this.failure = failure;
+        }
+
+        boolean failed(Delivery delivery) {
+            return failure != null && failure.contains(delivery.sns.getMessageId());
+        }
+    }
+
+    private static class Delivery {
+        final String kind;
+        final SNSEvent.SNS sns;
+
+        Delivery(String kind, SNSEvent.SNS sns) {
+            this.kind = kind;
+            this.sns = sns;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // exec:exec passes run.args as a single argument
+        String[] options = String.join(" ", args).trim().split("\\s+");
+        int instances = option(options, 0, 200);
+        long bootDelayMillis = option(options, 1, 2000);
+        int concurrency = option(options, 2, 50);
+        int burstSize = option(options, 3, 50);
+        long burstPauseMillis = option(options, 4, 100);
+        int recordsPerInvocation = option(options, 5, 10);
+
+        // a line per event and stage would swamp the report
+        Logger.getRootLogger().setLevel(Level.WARN);
+        Logger.getLogger("com.gruegames.lambda_sns_ec2_scaling.metrics.EMF").setLevel(Level.OFF);
+
+        File state = Files.createTempDirectory("load-test").toFile();
+        EventJournals.setJournal(new FileEventJournal(new File(state, "events.journal")));
+        InstanceMetadataCache.setStore(new FileInstanceMetadataStore(new File(state, "metadata")));
+
+        try (StubEC2Server ec2 = new StubEC2Server();
+             StubSaltApi salt = new StubSaltApi();
+             StubSSHServer sshd = new StubSSHServer()) {
+            sshd.setBootDelayMillis(bootDelayMillis);
+            SNSSigner signer = new SNSSigner();
+            List<Delivery> deliveries = deliveries(ec2, signer, instances);
+            LambdaFunction function = new LambdaFunction();
+            NotificationProcessor.initialize();
+
+            ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+            Map<String, List<Long>> latencies = new LinkedHashMap<>();
+            Map<String, Integer> failures = new LinkedHashMap<>();
+            List<List<Delivery>> invocations = new ArrayList<>();
+            List<Future<Outcome>> results = new ArrayList<>();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < deliveries.size(); i += burstSize) {
+                for (List<Delivery> batch : batches(deliveries.subList(i, Math.min(i + burstSize, deliveries.size())),
+                        recordsPerInvocation)) {
+                    invocations.add(batch);
+                    results.add(pool.submit(() -> invoke(function, signer, batch)));
+                }
+                Thread.sleep(burstPauseMillis);
+            }
+            for (int i = 0; i < results.size(); i++) {
+                Outcome outcome = results.get(i).get();
+                record(latencies, failures, "invocation", outcome.failure != null, outcome.micros);
+                for (Delivery delivery : invocations.get(i)) {
+                    record(latencies, failures, delivery.kind, outcome.failed(delivery), outcome.micros);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            pool.shutdown();
+
+            System.out.println(String.format("%d instances, boot delay %d ms, %d concurrent invocations of up to %d records, " +
+                    "bursts of %d every %d ms", instances, bootDelayMillis, concurrency, recordsPerInvocation, burstSize,
+                    burstPauseMillis));
+            for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+                List<Long> values = entry.getValue();
+                Collections.sort(values);
+                int failed = failures.getOrDefault(entry.getKey(), 0);
+                System.out.println(String.format("%-10s %5d total, %4d failed, p50 %8.1f ms, p99 %8.1f ms",
+                        entry.getKey(), values.size() + failed, failed, percentile(values, 50) / 1000.0,
+                        percentile(values, 99) / 1000.0));
+            }
+            System.out.println(String.format("%d events in %.1f s, %.1f events/sec, %d salt-api requests, %d SSH sessions",
+                    deliveries.size(), seconds, deliveries.size() / seconds, salt.getRequests().size(),
+                    sshd.getSessions()));
+        } finally {
+            SSHConnectionManager.closeAll();
+        }
+        System.exit(0);
+    }
+
+    // A launch for every instance and a terminate for some, a repeat of some of both, shuffled
+    private static List<Delivery> deliveries(StubEC2Server ec2, SNSSigner signer, int instances) throws Exception {
+        Random random = new Random(SEED);
+        Instant activityStart = Instant.now();
+        List<Delivery> deliveries = new ArrayList<>();
+        for (int i = 0; i < instances; i++) {
+            String instanceId = String.format("i-0f%06d", i);
+            // every instance answers on its own loopback address
+            ec2.addInstance(instanceId, String.format("127.0.%d.%d", 1 + i / 250, 1 + i % 250), "load-" + i);
+
+            deliveries.add(new Delivery("launch", signer.notification(
+                    message("autoscaling:EC2_INSTANCE_LAUNCH", instanceId, "launch-" + i, activityStart), "1")));
+            if (random.nextDouble() < TERMINATED_FRACTION) {
+                deliveries.add(new Delivery("terminate", signer.notification(message("autoscaling:EC2_INSTANCE_TERMINATE",
+                        instanceId, "terminate-" + i, activityStart.plusSeconds(60)), "1")));
+            }
+        }
+
+        // SNS redelivers the same notification, MessageId and all
+        int unique = deliveries.size();
+        for (int i = 0; i < unique; i++) {
+            if (random.nextDouble() < DUPLICATE_FRACTION) {
+                deliveries.add(new Delivery("duplicate", deliveries.get(i).sns));
+            }
+        }
+        Collections.shuffle(deliveries, random);
+        return deliveries;
+    }
+
+    private static String message(String event, String instanceId, String activityId, Instant startTime) {
+        return String.format("{\"Event\":\"%s\",\"EC2InstanceId\":\"%s\",\"ActivityId\":\"%s\",\"StartTime\":\"%s\"," +
+                "\"Time\":\"%s\",\"AutoScalingGroupName\":\"load\",\"Details\":{\"Availability Zone\":\"us-east-1a\"}}",
+                event, instanceId, activityId, startTime, startTime);
+    }
+
+    // Cut a burst into invocations of up to size records. SNS never puts one message in an event
+    // twice, so a repeat that would land next to its original starts the next invocation.
+    private static List<List<Delivery>> batches(List<Delivery> burst, int size) {
+        List<List<Delivery>> batches = new ArrayList<>();
+        List<Delivery> batch = new ArrayList<>();
+        Set<String> messageIds = new HashSet<>();
+        for (Delivery delivery : burst) {
+            if (batch.size() == size || messageIds.contains(delivery.sns.getMessageId())) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                messageIds.clear();
+            }
+            batch.add(delivery);
+            messageIds.add(delivery.sns.getMessageId());
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private static Outcome invoke(LambdaFunction function, SNSSigner signer, List<Delivery> batch) {
+        List<SNSEvent.SNSRecord> records = new ArrayList<>();
+        for (Delivery delivery : batch) {
+            records.add(signer.record(delivery.sns));
+        }
+        SNSEvent event = new SNSEvent();
+        event.setRecords(records);
+
+        long start = System.nanoTime();
+        String failure = null;
+        try {
+            function.handleRequest(event, null);
+        } catch (RuntimeException e) {
+            failure = String.valueOf(e.getMessage());
+        }
+        return new Outcome((System.nanoTime() - start) / 1000, failure);
+    }
+
+    private static void record(Map<String, List<Long>> latencies, Map<String, Integer> failures, String kind,
+                               boolean failed, long micros) {
+        List<Long> values = latencies.computeIfAbsent(kind, k -> new ArrayList<>());
+        if (failed) {
+            failures.merge(kind, 1, Integer::sum);
+        } else {
+            values.add(micros);
+        }
+    }
+
+    private static int option(String[] options, int index, int defaultValue) {
+        return options.length > index && !options[index].isEmpty() ? Integer.parseInt(options[index]) : defaultValue;
+    }
+
+    // 0 when nothing succeeded
+    private static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(sorted.size() * percentile / 100.0);
+        return sorted.get(Math.max(0, rank - 1));
+    }
+}
@@ -0,0 +1,31 @@
+package com.gruegames.lambda_sns_ec2_scaling;
+
+import java.lang.management.ManagementFactory;
+
+// Loads the entry points and primes the shaded jar, in a JVM with nothing else on its class path
+// but the test configuration. A class minimizeJar left out fails the build here instead of a cold
+// start in production. Runs in the verify phase:
+//
+//   mvn verify
+public class ShadedJarSmoke {
+    private static final String[] ENTRY_POINTS = {
+            "com.gruegames.lambda_sns_ec2_scaling.LambdaFunction",
+            "com.gruegames.lambda_sns_ec2_scaling.ReconcileFunction",
+            "com.gruegames.lambda_sns_ec2_scaling.worker.Worker"
+    };
+
+    public static void main(String[] args) throws Exception {
+        for (String entryPoint : ENTRY_POINTS) {
+            Class.forName(entryPoint);
+        }
+
+        long start = System.nanoTime();
+        NotificationProcessor.prime();
+        long primeMillis = (System.nanoTime() - start) / 1000000;
+
+        System.out.println(String.format("smoke: primed in %d ms, %d classes loaded, JVM up %d ms", primeMillis,
+                ManagementFactory.getClassLoadingMXBean().getLoadedClassCount(),
+                ManagementFactory.getRuntimeMXBean().getUptime()));
+        System.exit(0);
+    }
+}
@@ -0,0 +1,185 @@
+package com.gruegames.lambda_sns_ec2_scaling.alerts;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AlertDispatcherTest {
+    private static class Sent {
+        final Level level;
+        final String subject;
+        final String error;
+
+        Sent(Level level, String subject, String error) {
+            this.level = level;
+            this.subject = subject;
+            this.error = error;
+        }
+    }
+
+    private final List<Sent> sent = new CopyOnWriteArrayList<>();
+    private final Alert recording = (level, subject, error) -> sent.add(new Sent(level, subject, error));
+
+    @Test
+    public void errorsDifferingOnlyByInstanceMergeIntoOne() {
+        AlertDispatcher dispatcher = new AlertDispatcher(() -> Collections.singletonList(recording));
+        for (int i = 0; i < 12; i++) {
+            dispatcher.submit(Level.ERROR, String.format("i-0a%06d", i), String.format(
+                    "i-0a%06d: cloud-init did not finish on ip-10-0-0-%d.ec2.internal (10.0.0.%d:22) after %d s",
+                    i, i, i, 300 + i));
+        }
+        assertTrue(dispatcher.flush(5, TimeUnit.SECONDS));
+
+        assertEquals(1, sent.size());
+        Sent alert = sent.get(0);
+        assertEquals(Level.ERROR, alert.level);
+        assertTrue(alert.subject, alert.subject.startsWith("12 instances (i-0a000000, "));
+        assertTrue(alert.subject, alert.subject.endsWith(", +2 more)"));
+        assertTrue(alert.error, alert.error.startsWith(
+                "<instance>: cloud-init did not finish on <host> (<address>) after <n> s (first: i-0a000000:"));
+        assertTrue(alert.error, alert.error.endsWith("i-0a000010, i-0a000011"));
+    }
+
+    @Test
+    public void identicalErrorsKeepTheirText() {
+        AlertDispatcher dispatcher = new AlertDispatcher(() -> Collections.singletonList(recording));
+        dispatcher.submit(Level.WARN, "i-0b000001", "Instance scaling issue: autoscaling:EC2_INSTANCE_LAUNCH_ERROR");
+        dispatcher.submit(Level.WARN, "i-0b000002", "Instance scaling issue: autoscaling:EC2_INSTANCE_LAUNCH_ERROR");
+        assertTrue(dispatcher.flush(5, TimeUnit.SECONDS));
+
+        assertEquals(1, sent.size());
+        assertEquals("2 instances (i-0b000001, i-0b000002)", sent.get(0).subject);
+        assertEquals("Instance scaling issue: autoscaling:EC2_INSTANCE_LAUNCH_ERROR\nInstances: i-0b000001, i-0b000002",
+                sent.get(0).error);
+    }
+
+    @Test
+    public void differentLevelsAndTemplatesStaySeparate() {
+        AlertDispatcher dispatcher = new AlertDispatcher(() -> Collections.singletonList(recording));
+        dispatcher.submit(Level.ERROR, "i-0c000001", "Could not SSH. Error: Connection refused");
+        dispatcher.submit(Level.WARN, "i-0c000002", "Could not SSH. Error: Connection refused");
+        dispatcher.submit(Level.ERROR, "i-0c000003", "Failed to update Salt! Code: 500");
+        assertTrue(dispatcher.flush(5, TimeUnit.SECONDS));
+
+        assertEquals(3, sent.size());
+        assertEquals("i-0c000001", sent.get(0).subject);
+        assertEquals("Could not SSH. Error: Connection refused", sent.get(0).error);
+    }
+
+    @Test
+    public void flushWaitsOneTimeoutInTotal() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Alert slow = (level, subject, error) -> {
+            try {
+                // the first send hangs until released, every later one is slow
+                if (!release.await(0, TimeUnit.MILLISECONDS)) {
+                    release.await();
+                } else {
+                    Thread.sleep(400);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        AlertDispatcher dispatcher = new AlertDispatcher(() -> Collections.singletonList(slow));
+        try {
+            dispatcher.submit(Level.ERROR, "i-0d000000", "stuck");
+            dispatcher.flush(0, TimeUnit.MILLISECONDS);
+            Thread.sleep(200);
+            // fill the queue with alerts that don't merge, so queueing the flush has to wait as well
+            for (int i = 1; i <= 1000; i++) {
+                dispatcher.submit(Level.ERROR, String.format("i-0d%06d", i), "filler " + letters(i));
+            }
+
+            new Thread(() -> {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                release.countDown();
+            }).start();
+
+            long start = System.nanoTime();
+            assertFalse(dispatcher.flush(500, TimeUnit.MILLISECONDS));
+            long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(String.format("flush took %d ms", took), took < 750);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void floodOfDroppedAlertsLogsOnce() throws Exception {
+        List<String> warnings = new CopyOnWriteArrayList<>();
+        AppenderSkeleton appender = new AppenderSkeleton() {
+            @Override
+            protected void append(LoggingEvent event) {
+                if (event.getLevel().equals(Level.WARN)) {
+                    warnings.add(event.getRenderedMessage());
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean requiresLayout() {
+                return false;
+            }
+        };
+        Logger logger = Logger.getLogger(AlertDispatcher.class);
+        logger.addAppender(appender);
+
+        CountDownLatch release = new CountDownLatch(1);
+        Alert stuck = (level, subject, error) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sent.add(new Sent(level, subject, error));
+        };
+        AlertDispatcher dispatcher = new AlertDispatcher(() -> Collections.singletonList(stuck));
+        try {
+            dispatcher.submit(Level.ERROR, "i-0e000000", "stuck");
+            dispatcher.flush(0, TimeUnit.MILLISECONDS);
+            Thread.sleep(200);
+            // the queue holds 1000, the other 500 are dropped
+            for (int i = 1; i <= 1500; i++) {
+                dispatcher.submit(Level.ERROR, String.format("i-0e%06d", i), "filler " + letters(i));
+            }
+            assertEquals(1, warnings.size());
+
+            release.countDown();
+            assertTrue(dispatcher.flush(10, TimeUnit.SECONDS));
+            assertEquals(warnings.toString(), 2, warnings.size());
+            assertEquals("Dropped 500 alerts since the last batch, the alert queue was full", warnings.get(1));
+            assertEquals(1, sent.stream().filter(alert -> alert.error.equals("Dropped 500 alerts, the alert queue was full")).count());
+        } finally {
+            release.countDown();
+            logger.removeAppender(appender);
+        }
+    }
+
+    private static String letters(int value) {
+        StringBuilder letters = new StringBuilder();
+        for (char digit : Integer.toString(value).toCharArray()) {
+            letters.append((char) ('a' + digit - '0'));
+        }
+        return letters.toString();
+    }
+}
@@ -0,0 +1,215 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2;
+
+import com.gruegames.lambda_sns_ec2_scaling.helper.AWSHelper;
+import com.gruegames.lambda_sns_ec2_scaling.metadata.FileInstanceMetadataStore;
+import com.gruegames.lambda_sns_ec2_scaling.metadata.InstanceMetadataCache;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.Message;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubEC2Server;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// How many EC2 calls each Auto Scaling event costs, counted by a stub EC2 endpoint. The handler
+// makes the same lookups the Salt handler does: describe on launch, the remembered details on terminate.
+public class EC2ApiCallsTest {
+    private static StubEC2Server ec2;
+
+    public static class DescribingInstance implements EC2Instance {
+        @Override
+        public void create(String instanceId, String availabilityZone) {
+            AWSHelper.getInstanceDetails(instanceId, availabilityZone);
+        }
+
+        @Override
+        public void terminate(String instanceId, String availabilityZone) {
+            AWSHelper.getKnownInstanceDetails(instanceId, availabilityZone);
+        }
+
+        @Override
+        public boolean processTerminateOnFail() {
+            return false;
+        }
+    }
+
+    @BeforeClass
+    public static void startEC2() throws Exception {
+        ec2 = new StubEC2Server();
+        InstanceMetadataCache.setStore(new FileInstanceMetadataStore(
+                Files.createTempDirectory("metadata").toFile()));
+        EC2InstanceHandler.register(DescribingInstance.class);
+    }
+
+    @AfterClass
+    public static void stopEC2() {
+        ec2.close();
+    }
+
+    @Before
+    public void resetCalls() {
+        ec2.resetCalls();
+        ec2.setLatencyMillis(0);
+    }
+
+    @Test
+    public void launchDescribesOnce() {
+        ec2.addInstance("i-0a000001", "10.0.0.1", "web-1");
+        EC2InstanceHandler.processEvent(message("autoscaling:EC2_INSTANCE_LAUNCH", "i-0a000001", "us-east-1a"));
+
+        assertEquals(1, ec2.getCalls("DescribeInstances"));
+        assertEquals(0, ec2.getCalls("DescribeAvailabilityZones"));
+    }
+
+    @Test
+    public void terminateUsesDetailsFromLaunch() {
+        ec2.addInstance("i-0a000002", "10.0.0.2", "web-2");
+        EC2InstanceHandler.processEvent(message("autoscaling:EC2_INSTANCE_LAUNCH", "i-0a000002", "us-east-1b"));
+        // EC2 no longer returns it by the time the terminate arrives
+        ec2.removeInstance("i-0a000002");
+        EC2InstanceHandler.processEvent(message("autoscaling:EC2_INSTANCE_TERMINATE", "i-0a000002", "us-east-1b"));
+
+        assertEquals(1, ec2.getCalls("DescribeInstances"));
+    }
+
+    @Test
+    public void concurrentLaunchesShareOneDescribe() throws Exception {
+        int launches = 20;
+        // the first lookup goes out on its own, the rest arrive while it is still out
+        ec2.setLatencyMillis(200);
+        ExecutorService pool = Executors.newFixedThreadPool(launches);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < launches; i++) {
+            String instanceId = String.format("i-0b%06d", i);
+            ec2.addInstance(instanceId, "10.0.1." + i, "worker-" + i);
+            futures.add(pool.submit(() -> {
+                start.await();
+                EC2InstanceHandler.processEvent(message("autoscaling:EC2_INSTANCE_LAUNCH", instanceId, "us-east-1c"));
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+
+        // the first lookup and one batch window, a slow thread may still miss it and start another
+        int calls = ec2.getCalls("DescribeInstances");
+        assertTrue(String.format("%d launches took %d DescribeInstances calls", launches, calls), calls <= 3);
+    }
+
+    @Test
+    public void loneLookupIsNotHeldForTheWindow() {
+        int lookups = 5;
+        for (int i = 0; i <= lookups; i++) {
+            ec2.addInstance(String.format("i-0d00000%d", i), "10.0.3." + i, "lone-" + i);
+        }
+        AWSHelper.getInstanceDetails("i-0d000000", "us-east-1a");
+
+        // the stub takes a while to answer anyway, compare with describing directly
+        long[] direct = new long[lookups];
+        long[] batched = new long[lookups];
+        for (int i = 0; i < lookups; i++) {
+            long start = System.nanoTime();
+            AWSHelper.getEC2Client(AWSHelper.getRegionFromAZ("us-east-1a")).describeInstances();
+            direct[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            AWSHelper.getInstanceDetails(String.format("i-0d00000%d", i + 1), "us-east-1a");
+            batched[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(direct);
+        Arrays.sort(batched);
+        long extra = TimeUnit.NANOSECONDS.toMillis(batched[lookups / 2] - direct[lookups / 2]);
+        assertTrue(String.format("a lone lookup took %d ms more than a describe", extra), extra < 30);
+    }
+
+    @Test
+    public void interruptedLookupStopsWaiting() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            ec2.addInstance(String.format("i-0e00000%d", i), "10.0.4." + i, "slow-" + i);
+        }
+        // the client is built by the first lookup, keep that out of the timings
+        lookUp("i-0e000003");
+        ec2.setLatencyMillis(1500);
+        // the first describe is out, the next two share a second one: one leads, the other follows
+        Thread first = new Thread(() -> lookUp("i-0e000000"));
+        first.start();
+        Thread.sleep(200);
+        Thread leader = new Thread(() -> lookUp("i-0e000001"));
+        leader.start();
+        Thread.sleep(25);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Thread follower = new Thread(() -> {
+            try {
+                lookUp("i-0e000002");
+            } catch (RuntimeException e) {
+                failure.set(e);
+            }
+        });
+        follower.start();
+        Thread.sleep(200);
+
+        long interruptedAt = System.nanoTime();
+        follower.interrupt();
+        follower.join(TimeUnit.SECONDS.toMillis(5));
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - interruptedAt);
+
+        // don't leave describes running into the next test
+        first.join();
+        leader.join();
+        assertTrue(String.format("still waiting %d ms after the interrupt", waited), waited < 500);
+        assertTrue(String.valueOf(failure.get()), failure.get() != null);
+    }
+
+    private static void lookUp(String instanceId) {
+        AWSHelper.getInstanceDetails(instanceId, "us-east-1a");
+    }
+
+    @Test
+    public void unknownInstanceDescribesOnceAndFails() {
+        try {
+            EC2InstanceHandler.processEvent(message("autoscaling:EC2_INSTANCE_LAUNCH", "i-0c000001", "us-east-1a"));
+            fail("launch of an unknown instance should fail");
+        } catch (RuntimeException e) {
+            assertEquals(1, ec2.getCalls("DescribeInstances"));
+        }
+    }
+
+    @Test
+    public void missingZoneAndRegionFailsWithoutCallingEC2() {
+        try {
+            AWSHelper.getRegionFromAZ(null);
+            fail("there is nothing to resolve");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, ec2.getCalls("DescribeAvailabilityZones"));
+        }
+        assertEquals("us-east-1", AWSHelper.getRegionFromAZ("us-east-1a").getName());
+    }
+
+    private static Message message(String event, String instanceId, String availabilityZone) {
+        Message message = new Message();
+        message.event = event;
+        message.EC2InstanceId = instanceId;
+        message.details = message.new Details();
+        message.details.availabilityZone = availabilityZone;
+        return message;
+    }
+}
@@ -0,0 +1,122 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2;
+
+import com.gruegames.lambda_sns_ec2_scaling.journal.EventJournals;
+import com.gruegames.lambda_sns_ec2_scaling.journal.FileEventJournal;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.Message;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubEC2Server;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Lifecycle notifications against a stub Auto Scaling endpoint: one that fails before its handlers
+// run still releases its admission, and with a handler that waits for the ready signal a launch
+// action is only completed once the INSTANCE_READY message has been handled
+public class EC2InstanceHandlerTest {
+    private static StubEC2Server ec2;
+
+    public static class SignalledInstance implements EC2Instance {
+        @Override
+        public void create(String instanceId, String availabilityZone) {}
+
+        @Override
+        public void terminate(String instanceId, String availabilityZone) {}
+
+        @Override
+        public boolean processTerminateOnFail() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitsReadySignal() {
+            return true;
+        }
+    }
+
+    @BeforeClass
+    public static void startEC2() throws Exception {
+        ec2 = new StubEC2Server();
+        EventJournals.setJournal(new FileEventJournal(Files.createTempFile("events", ".journal").toFile()));
+        EC2InstanceHandler.register(SignalledInstance.class);
+    }
+
+    @AfterClass
+    public static void stopEC2() {
+        ec2.close();
+    }
+
+    @Before
+    public void resetCalls() {
+        ec2.resetCalls();
+    }
+
+    @Test
+    public void failedRegionLookupLetsTheRedeliveryThrough() {
+        // EC2 doesn't know the zone, so the region lookup throws before the action is begun
+        for (int delivery = 0; delivery < 2; delivery++) {
+            try {
+                EC2InstanceHandler.processEvent(lifecycleMessage("i-0a000001", "nowhere", "7c1f0e1a-0000-0000-0000-00000000000a"));
+                fail(String.format("delivery %d has no region", delivery + 1));
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("nowhere"));
+            }
+        }
+        assertEquals(2, ec2.getCalls("DescribeAvailabilityZones"));
+    }
+
+    @Test
+    public void launchActionWaitsForTheReadySignal() {
+        EC2InstanceHandler.processEvent(lifecycleMessage("i-0b000001", "us-east-1", "7c1f0e1a-0000-0000-0000-00000000000b"));
+        assertTrue(ec2.getCompletedActions().isEmpty());
+
+        EC2InstanceHandler.processEvent(readyMessage("i-0b000001", null, null));
+        assertEquals(Collections.singletonList("i-0b000001, token-7c1f0e1a-0000-0000-0000-00000000000b, CONTINUE"),
+                ec2.getCompletedActions());
+    }
+
+    @Test
+    public void readySignalBeforeTheLaunchAction() {
+        EC2InstanceHandler.processEvent(readyMessage("i-0c000001", null, null));
+        assertTrue(ec2.getCompletedActions().isEmpty());
+
+        EC2InstanceHandler.processEvent(lifecycleMessage("i-0c000001", "us-east-1", "7c1f0e1a-0000-0000-0000-00000000000c"));
+        assertEquals(Collections.singletonList("i-0c000001, token-7c1f0e1a-0000-0000-0000-00000000000c, CONTINUE"),
+                ec2.getCompletedActions());
+    }
+
+    @Test
+    public void readySignalCompletesAnActionHeldElsewhereByInstanceId() {
+        // the launch was handled by another container, the ready message names the group and hook
+        EC2InstanceHandler.processEvent(readyMessage("i-0d000001", "web", "salt"));
+        assertEquals(Collections.singletonList("i-0d000001, null, CONTINUE"), ec2.getCompletedActions());
+    }
+
+    private static Message lifecycleMessage(String instanceId, String region, String requestId) {
+        Message message = new Message();
+        message.event = "autoscaling:EC2_INSTANCE_LAUNCHING";
+        message.EC2InstanceId = instanceId;
+        message.requestId = requestId;
+        message.autoScalingGroupName = "web";
+        message.lifecycleHookName = "salt";
+        message.lifecycleActionToken = "token-" + requestId;
+        message.region = region;
+        return message;
+    }
+
+    private static Message readyMessage(String instanceId, String groupName, String hookName) {
+        Message message = new Message();
+        message.event = EC2InstanceHandler.INSTANCE_READY;
+        message.EC2InstanceId = instanceId;
+        message.autoScalingGroupName = groupName;
+        message.lifecycleHookName = hookName;
+        message.region = "us-east-1";
+        return message;
+    }
+}
@@ -0,0 +1,39 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// A duplicate is only dropped once the first delivery is done; while it runs the duplicate is
+// told so, since the first may still fail and need the retry
+public class InstanceSequencerTest {
+    private static final String LAUNCH = "b2a4f0c1-launch/autoscaling:EC2_INSTANCE_LAUNCH";
+
+    private final InstanceSequencer sequencer = new InstanceSequencer(instanceId -> {});
+
+    @Test
+    public void duplicateOfARunningEventIsInProgress() {
+        InstanceSequencer.Admission first = sequencer.admit("i-0a000001", InstanceSequencer.Kind.LAUNCH, LAUNCH, 1000);
+        assertTrue(first.proceed);
+
+        InstanceSequencer.Admission duplicate = sequencer.admit("i-0a000001", InstanceSequencer.Kind.LAUNCH, LAUNCH, 1000);
+        assertFalse(duplicate.proceed);
+        assertTrue(duplicate.inProgress);
+
+        first.done(true);
+        InstanceSequencer.Admission late = sequencer.admit("i-0a000001", InstanceSequencer.Kind.LAUNCH, LAUNCH, 1000);
+        assertFalse(late.proceed);
+        assertFalse(late.inProgress);
+    }
+
+    @Test
+    public void failedEventLetsTheRetryThrough() {
+        InstanceSequencer.Admission first = sequencer.admit("i-0b000001", InstanceSequencer.Kind.LAUNCH, LAUNCH, 1000);
+        first.done(false);
+
+        InstanceSequencer.Admission retry = sequencer.admit("i-0b000001", InstanceSequencer.Kind.LAUNCH, LAUNCH, 1000);
+        assertTrue(retry.proceed);
+        assertFalse(retry.inProgress);
+    }
+}
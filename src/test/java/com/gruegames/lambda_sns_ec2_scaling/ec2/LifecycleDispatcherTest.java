@@ -0,0 +1,196 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Handlers run together, dependents wait for what they depend on, a handler past its timeout is
+// interrupted, and every failure ends up in the one exception dispatch throws
+public class LifecycleDispatcherTest {
+    private static final String INSTANCE = "i-0f000001";
+
+    private final LifecycleDispatcher dispatcher = new LifecycleDispatcher();
+    private final List<String> ran = new CopyOnWriteArrayList<>();
+
+    // Dispatch keys handlers by class, so each stub is its own subclass
+    private abstract static class StubHandler implements EC2Instance {
+        Set<Class<? extends EC2Instance>> dependsOn = Collections.emptySet();
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(10);
+        Runnable work = () -> {};
+
+        @Override
+        public void create(String instanceId, String availabilityZone) {
+            work.run();
+        }
+
+        @Override
+        public void terminate(String instanceId, String availabilityZone) {}
+
+        @Override
+        public boolean processTerminateOnFail() {
+            return false;
+        }
+
+        @Override
+        public Set<Class<? extends EC2Instance>> dependsOn() {
+            return dependsOn;
+        }
+
+        @Override
+        public long timeoutMillis() {
+            return timeoutMillis;
+        }
+    }
+
+    private static class First extends StubHandler {}
+
+    private static class Second extends StubHandler {}
+
+    private static class Third extends StubHandler {}
+
+    @Test
+    public void slowHandlerTimesOutAndIsInterrupted() {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        First slow = new First();
+        slow.timeoutMillis = 200;
+        slow.work = () -> {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        };
+        Second quick = new Second();
+        quick.work = () -> ran.add("Second");
+
+        long start = System.nanoTime();
+        try {
+            create(slow, quick);
+            fail("the slow handler should have timed out");
+        } catch (RuntimeException e) {
+            long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(String.format("gave up after %d ms", took), took < TimeUnit.SECONDS.toMillis(5));
+            assertTrue(e.getMessage(), e.getMessage().startsWith("1 of 2 handlers failed create for " + INSTANCE));
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(Collections.singletonList("Second"), ran);
+        try {
+            assertTrue("the timed out handler was not interrupted", interrupted.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void dependentStartsOnlyOnceItsDependencyFinished() {
+        First first = new First();
+        first.work = () -> {
+            sleep(100);
+            ran.add("First");
+        };
+        Second second = new Second();
+        second.dependsOn = Collections.singleton(First.class);
+        second.work = () -> ran.add("Second");
+        Third third = new Third();
+        third.work = () -> ran.add("Third");
+
+        // listed before what it depends on, the order comes from dependsOn alone
+        create(second, first, third);
+
+        assertEquals(3, ran.size());
+        assertTrue(ran.toString(), ran.indexOf("First") < ran.indexOf("Second"));
+        // not held up by the others
+        assertEquals(ran.toString(), "Third", ran.get(0));
+    }
+
+    @Test
+    public void failedDependencySkipsItsDependentsOnly() {
+        First first = new First();
+        first.work = () -> {
+            throw new RuntimeException("first broke");
+        };
+        Second second = new Second();
+        second.dependsOn = Collections.singleton(First.class);
+        second.work = () -> ran.add("Second");
+        Third third = new Third();
+        third.work = () -> ran.add("Third");
+
+        try {
+            create(first, second, third);
+            fail("first failed");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("2 of 3 handlers failed"));
+        }
+        assertEquals(Collections.singletonList("Third"), ran);
+    }
+
+    @Test
+    public void dependencyCycleFailsWithoutRunningIt() {
+        First first = new First();
+        first.dependsOn = Collections.singleton(Second.class);
+        first.work = () -> ran.add("First");
+        Second second = new Second();
+        second.dependsOn = Collections.singleton(First.class);
+        second.work = () -> ran.add("Second");
+        Third third = new Third();
+        third.work = () -> ran.add("Third");
+
+        try {
+            create(first, second, third);
+            fail("first and second depend on each other");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("2 of 3 handlers failed"));
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IllegalStateException);
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().endsWith("is part of a dependency cycle"));
+        }
+        assertEquals(Collections.singletonList("Third"), ran);
+    }
+
+    @Test
+    public void everyFailureIsReported() {
+        First first = new First();
+        first.work = () -> {
+            throw new RuntimeException("first broke");
+        };
+        Second second = new Second();
+        second.work = () -> {
+            throw new IllegalStateException("second broke");
+        };
+        Third third = new Third();
+        third.work = () -> ran.add("Third");
+
+        try {
+            create(first, second, third);
+            fail("two handlers failed");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("2 of 3 handlers failed create for " + INSTANCE));
+            assertTrue(e.getMessage(), e.getMessage().contains("First (first broke)"));
+            assertTrue(e.getMessage(), e.getMessage().contains("Second (second broke)"));
+            assertEquals("first broke", e.getCause().getMessage());
+        }
+        assertEquals(Collections.singletonList("Third"), ran);
+    }
+
+    private void create(EC2Instance... handlers) {
+        dispatcher.dispatch(INSTANCE, "create", Arrays.asList(handlers), handler -> handler.create(INSTANCE, "us-east-1a"));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import com.amazonaws.services.ec2.model.Tag;
+import com.gruegames.lambda_sns_ec2_scaling.metadata.FileInstanceMetadataStore;
+import com.gruegames.lambda_sns_ec2_scaling.metadata.InstanceMetadataCache;
+import com.gruegames.lambda_sns_ec2_scaling.pojo.EC2Details;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubSaltApi;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Salt calls made at the same time go out as one lowstate request, and every caller gets back
+// the results for its own chunks
+public class SaltCallBatchingTest {
+    private static StubSaltApi salt;
+    private static SaltEC2InstanceImpl instance;
+
+    @BeforeClass
+    public static void startSalt() throws Exception {
+        salt = new StubSaltApi();
+        InstanceMetadataCache.setStore(new FileInstanceMetadataStore(
+                Files.createTempDirectory("metadata").toFile()));
+        instance = new SaltEC2InstanceImpl();
+    }
+
+    @AfterClass
+    public static void stopSalt() {
+        salt.close();
+    }
+
+    @Before
+    public void resetSalt() {
+        salt.reset();
+        salt.setLatencyMillis(0);
+    }
+
+    @Test
+    public void concurrentRegistrationsShareOneRequest() throws Exception {
+        int calls = 20;
+        // the first call goes out on its own, the rest arrive while it is still out
+        salt.setLatencyMillis(200);
+        List<Future<List<String>>> results = runConcurrently(calls, i -> {
+            String instanceId = String.format("i-0a%06d", i);
+            return instance.makeSaltCall(instanceId, new SaltPayload("event.send", "local", "salt-master",
+                    new SaltPayload.Job("arg", String.format("tag=salt/minion/ec2/%s/auth", instanceId))));
+        });
+
+        for (int i = 0; i < calls; i++) {
+            assertEquals(Collections.singletonList(String.format("\"event.send tag=salt/minion/ec2/i-0a%06d/auth\"", i)),
+                    results.get(i).get());
+        }
+
+        // the first call and one batch window, a slow thread may still miss it and start another
+        int requests = salt.getRequests().size();
+        assertTrue(String.format("%d calls took %d requests", calls, requests), requests <= 3);
+        assertEquals(calls, salt.getRequests().stream().mapToInt(List::size).sum());
+    }
+
+    @Test
+    public void terminateSendsEventAndKeyDeleteTogether() {
+        InstanceMetadataCache.remember("i-0b000001", new EC2Details("10.0.0.1", "ip-10-0-0-1.ec2.internal",
+                Collections.singletonList(new Tag("Name", "web-1"))));
+        instance.terminate("i-0b000001", "us-east-1a");
+
+        List<List<String>> requests = salt.getRequests();
+        assertEquals(1, requests.size());
+        assertEquals(2, requests.get(0).size());
+        assertEquals("event.send tag=salt/minion/ec2/i-0b000001/terminated data={\"Name\":\"web-1\"}",
+                requests.get(0).get(0));
+        assertEquals("key.delete match=i-0b000001", requests.get(0).get(1));
+    }
+
+    @Test
+    public void concurrentTerminatesKeepTheirChunksInOrder() throws Exception {
+        int calls = 10;
+        for (int i = 0; i < calls; i++) {
+            InstanceMetadataCache.remember(String.format("i-0c%06d", i), new EC2Details("10.0.2." + i,
+                    "ip-10-0-2-" + i + ".ec2.internal", Collections.emptyList()));
+        }
+        List<Future<List<String>>> results = runConcurrently(calls, i -> {
+            instance.terminate(String.format("i-0c%06d", i), "us-east-1a");
+            return null;
+        });
+        for (Future<List<String>> result : results) {
+            result.get();
+        }
+
+        int requests = 0;
+        for (List<String> request : salt.getRequests()) {
+            requests++;
+            for (int chunk = 0; chunk < request.size(); chunk += 2) {
+                String instanceId = request.get(chunk + 1).substring("key.delete match=".length());
+                assertTrue(request.get(chunk).startsWith(
+                        String.format("event.send tag=salt/minion/ec2/%s/terminated", instanceId)));
+            }
+        }
+        assertTrue(String.format("%d terminates took %d requests", calls, requests), requests <= 2);
+    }
+
+    @Test
+    public void stoppedCallIsNeverSent() {
+        SaltPayload payload = new SaltPayload("event.send", "local", "salt-master",
+                new SaltPayload.Job("arg", "tag=salt/minion/ec2/i-0d000001/auth"));
+        try {
+            instance.makeSaltCall("i-0d000001", () -> true, payload);
+            fail("the call was stopped before the batch went out");
+        } catch (CancellationException e) {
+            assertTrue(salt.getRequests().isEmpty());
+        }
+    }
+
+    @Test
+    public void loneCallIsNotHeldForTheWindow() {
+        SaltCallBatcher batcher = new SaltCallBatcher(SaltCallBatchingTest::echo, SaltEC2InstanceImpl::chunkError);
+        batcher.submit(payload("warm-up"));
+
+        long start = System.nanoTime();
+        assertEquals(Collections.singletonList("tag=alone"), batcher.submit(payload("tag=alone")));
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(String.format("took %d ms", took), took < 40);
+    }
+
+    @Test
+    public void senderErrorReachesEveryCaller() throws Exception {
+        SaltCallBatcher batcher = new SaltCallBatcher(payloads -> {
+            sleep(100);
+            throw new AssertionError("sender broke");
+        }, SaltEC2InstanceImpl::chunkError);
+
+        List<Future<List<String>>> results = runConcurrently(5, i -> batcher.submit(payload("tag=" + i)));
+        for (Future<List<String>> result : results) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("the sender threw");
+            } catch (ExecutionException e) {
+                assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof AssertionError);
+            }
+        }
+    }
+
+    @Test
+    public void failedBatchOnlyFailsTheCallThatBrokeIt() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        SaltCallBatcher batcher = new SaltCallBatcher(payloads -> {
+            requests.incrementAndGet();
+            sleep(100);
+            List<String> results = echo(payloads);
+            if (results.contains("tag=bad")) {
+                throw new RuntimeException("Code: 500");
+            }
+            return results;
+        }, SaltEC2InstanceImpl::chunkError);
+
+        List<Future<List<String>>> results = runConcurrently(6, i -> batcher.submit(payload(i == 3 ? "tag=bad" : "tag=" + i)));
+        for (int i = 0; i < 6; i++) {
+            try {
+                assertEquals(Collections.singletonList("tag=" + i), results.get(i).get(10, TimeUnit.SECONDS));
+                assertTrue(i != 3);
+            } catch (ExecutionException e) {
+                assertEquals(3, i);
+                assertEquals("Code: 500", e.getCause().getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void failedChunkOnlyFailsItsOwnCaller() throws Exception {
+        SaltCallBatcher batcher = new SaltCallBatcher(payloads -> {
+            sleep(100);
+            return echo(payloads).stream()
+                    .map(result -> result.equals("tag=bad") ? "{\"data\":{\"success\":false,\"return\":\"no such key\"}}"
+                            : "{\"salt-master\":true}")
+                    .collect(Collectors.toList());
+        }, SaltEC2InstanceImpl::chunkError);
+
+        List<Future<List<String>>> results = runConcurrently(6, i -> batcher.submit(payload(i == 3 ? "tag=bad" : "tag=" + i)));
+        for (int i = 0; i < 6; i++) {
+            try {
+                results.get(i).get(10, TimeUnit.SECONDS);
+                assertTrue(i != 3);
+            } catch (ExecutionException e) {
+                assertEquals(3, i);
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("no such key"));
+            }
+        }
+    }
+
+    @Test
+    public void chunkErrors() {
+        assertNull(SaltEC2InstanceImpl.chunkError("{\"salt-master\":true}"));
+        assertNull(SaltEC2InstanceImpl.chunkError("{\"data\":{\"success\":true,\"return\":{}}}"));
+        assertNull(SaltEC2InstanceImpl.chunkError("\"event.send\""));
+        assertEquals("salt-master returned false", SaltEC2InstanceImpl.chunkError("{\"salt-master\":false}"));
+        assertEquals("false", SaltEC2InstanceImpl.chunkError("false"));
+        assertTrue(SaltEC2InstanceImpl.chunkError("{\"data\":{\"success\":false}}") != null);
+    }
+
+    // one result per chunk: its first argument
+    private static List<String> echo(List<SaltPayload> payloads) {
+        return payloads.stream()
+                .map(payload -> ((List<?>) payload.getLowstate().get("arg")).get(0).toString())
+                .collect(Collectors.toList());
+    }
+
+    private static SaltPayload payload(String arg) {
+        return new SaltPayload("event.send", "local", "salt-master", new SaltPayload.Job("arg", arg));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Call {
+        List<String> run(int index) throws Exception;
+    }
+
+    private static List<Future<List<String>>> runConcurrently(int calls, Call call) {
+        ExecutorService pool = Executors.newFixedThreadPool(calls);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<String>>> results = new ArrayList<>();
+        for (int i = 0; i < calls; i++) {
+            int index = i;
+            results.add(pool.submit(() -> {
+                start.await();
+                return call.run(index);
+            }));
+        }
+        start.countDown();
+        pool.shutdown();
+        return results;
+    }
+}
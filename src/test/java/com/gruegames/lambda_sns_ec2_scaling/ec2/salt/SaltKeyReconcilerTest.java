@@ -0,0 +1,95 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import com.gruegames.lambda_sns_ec2_scaling.ec2.Fleet;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubSaltApi;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SaltKeyReconcilerTest {
+    private static StubSaltApi salt;
+    private static SaltEC2InstanceImpl instance;
+
+    @BeforeClass
+    public static void startSalt() throws Exception {
+        salt = new StubSaltApi();
+        instance = new SaltEC2InstanceImpl();
+    }
+
+    @AfterClass
+    public static void stopSalt() {
+        salt.close();
+    }
+
+    @Before
+    public void resetSalt() {
+        salt.reset();
+    }
+
+    @Test
+    public void keysAreReadBeforeEC2IsListed() {
+        salt.setKeys(Arrays.asList("i-0a000001", "i-0a000002"), Collections.emptyList());
+        List<Integer> requestsBeforeListing = new ArrayList<>();
+        Fleet fleet = new Fleet(true, (expected, live) -> {
+            requestsBeforeListing.add(salt.getRequests().size());
+            // i-0a000003 launched and registered while the sweep ran, the key list doesn't have it yet
+            live.addAll(Arrays.asList("i-0a000001", "i-0a000003"));
+        });
+
+        new SaltKeyReconciler(instance, false, 1.0).reconcile(fleet);
+
+        assertEquals(Collections.singletonList(1), requestsBeforeListing);
+        assertEquals(Collections.singletonList("key.delete match=i-0a000002"), salt.getRequests().get(1));
+    }
+
+    @Test
+    public void nothingIsDeletedWithoutConfiguredRegions() {
+        salt.setKeys(Arrays.asList("i-0b000001", "i-0b000002"), Collections.singletonList("i-0b000003"));
+        Fleet fleet = fleet(false, Collections.singletonList("i-0b000003"), Arrays.asList("i-0b000001", "i-0b000003"));
+
+        new SaltKeyReconciler(instance, false, 1.0).reconcile(fleet);
+
+        // the pending key of an InService instance is still accepted
+        assertEquals(Collections.singletonList("key.accept match=i-0b000003"), salt.getRequests().get(1));
+    }
+
+    @Test
+    public void deletesAreCappedPerSweep() {
+        List<String> accepted = new ArrayList<>();
+        List<String> live = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String instanceId = String.format("i-0c%06d", i);
+            accepted.add(instanceId);
+            // the first 20 are gone from EC2
+            if (i >= 20) {
+                live.add(instanceId);
+            }
+        }
+        salt.setKeys(accepted, Collections.emptyList());
+
+        new SaltKeyReconciler(instance, false, 0.1).reconcile(fleet(true, live, live));
+
+        List<String> delete = salt.getRequests().get(1);
+        assertEquals(1, delete.size());
+        String match = delete.get(0).substring("key.delete match=".length());
+        assertEquals(5, match.split(",").length);
+        assertTrue(match, match.startsWith("i-0c000000,"));
+    }
+
+    private static Fleet fleet(boolean complete, List<String> expected, List<String> live) {
+        return new Fleet(complete, (Set<String> listedExpected, Set<String> listedLive) -> {
+            listedExpected.addAll(expected);
+            listedLive.addAll(live);
+        });
+    }
+}
@@ -0,0 +1,170 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+import com.gruegames.lambda_sns_ec2_scaling.helper.SSHConnectionManager;
+import com.gruegames.lambda_sns_ec2_scaling.journal.EventProgress;
+import com.gruegames.lambda_sns_ec2_scaling.metadata.FileInstanceMetadataStore;
+import com.gruegames.lambda_sns_ec2_scaling.metadata.InstanceMetadataCache;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubEC2Server;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubSSHServer;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubSaltApi;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Bootstraps against stub EC2, sshd and salt-api: a cancel stops the stages before Salt is told
+// anything, and the caller only hears about it once a stage that was already running has returned
+public class SaltProvisionerTest {
+    private static final long BOOT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+    private static StubEC2Server ec2;
+    private static StubSSHServer sshd;
+    private static StubSaltApi salt;
+    private static SaltEC2InstanceImpl instance;
+
+    private SaltProvisioner provisioner;
+
+    @BeforeClass
+    public static void startStubs() throws Exception {
+        ec2 = new StubEC2Server();
+        sshd = new StubSSHServer();
+        salt = new StubSaltApi();
+        InstanceMetadataCache.setStore(new FileInstanceMetadataStore(
+                Files.createTempDirectory("metadata").toFile()));
+        instance = new SaltEC2InstanceImpl();
+    }
+
+    @AfterClass
+    public static void stopStubs() throws Exception {
+        SSHConnectionManager.closeAll();
+        salt.close();
+        sshd.close();
+        ec2.close();
+    }
+
+    @Before
+    public void createProvisioner() {
+        salt.reset();
+        provisioner = new SaltProvisioner(instance, 4, BOOT_TIMEOUT_MILLIS, false);
+    }
+
+    @After
+    public void resetStubs() {
+        sshd.setBootDelayMillis(0);
+        salt.setLatencyMillis(0);
+        ec2.setLatencyMillis(0);
+    }
+
+    @Test
+    public void cancelDuringCloudInitNeverRegisters() throws Exception {
+        ec2.addInstance("i-0a000001", "127.0.0.21", "web-1");
+        sshd.setBootDelayMillis(TimeUnit.MINUTES.toMillis(1));
+        CompletableFuture<Void> outcome = provision("i-0a000001");
+        awaitStage("i-0a000001", SaltProvisioner.Stage.WAITING_FOR_CLOUD_INIT);
+
+        assertTrue(provisioner.cancel("i-0a000001"));
+        assertCancelled(outcome);
+        assertTrue(salt.getRequests().isEmpty());
+        assertEquals(0, provisioner.getInFlightCount());
+    }
+
+    @Test
+    public void cancelWaitsForARegistrationInFlight() throws Exception {
+        ec2.addInstance("i-0b000001", "127.0.0.22", "web-2");
+        salt.setLatencyMillis(1000);
+        CompletableFuture<Void> outcome = provision("i-0b000001");
+        awaitStage("i-0b000001", SaltProvisioner.Stage.REGISTERING);
+        // past the batch window, the lowstate request is on its way
+        Thread.sleep(200);
+
+        long cancelledAt = System.nanoTime();
+        provisioner.cancel("i-0b000001");
+        assertCancelled(outcome);
+
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cancelledAt);
+        assertTrue(String.format("returned %d ms after the cancel", waited), waited >= 500);
+        assertEquals(1, salt.getRequests().size());
+    }
+
+    @Test
+    public void finishedBootstrapLeavesNoDeadlineBehind() throws Exception {
+        ec2.addInstance("i-0c000001", "127.0.0.23", "web-3");
+        provision("i-0c000001").get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, salt.getRequests().size());
+        assertEquals(0, provisioner.getPendingTimers());
+    }
+
+    @Test
+    public void readySignalDuringDescribeRegisters() throws Exception {
+        SaltProvisioner signalled = new SaltProvisioner(instance, 4, BOOT_TIMEOUT_MILLIS, true);
+        ec2.addInstance("i-0d000001", "127.0.0.24", "web-4");
+        ec2.setLatencyMillis(500);
+        CompletableFuture<Void> launch = signalled.provision("i-0d000001", "us-east-1a",
+                EventProgress.untracked("i-0d000001", "create"));
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (signalled.getStage("i-0d000001") != SaltProvisioner.Stage.DESCRIBING) {
+            assertTrue("never started describing", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        EventProgress ready = EventProgress.untracked("i-0d000001", "ready");
+        ready.record(InstanceState.CLOUD_INIT_DONE);
+        signalled.provision("i-0d000001", "us-east-1a", ready).get(10, TimeUnit.SECONDS);
+        launch.get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, salt.getRequests().size());
+        assertTrue(ready.isAtLeast(InstanceState.SALT_REGISTERED));
+    }
+
+    @Test
+    public void readySignalAfterTheLaunchParkedRegisters() throws Exception {
+        SaltProvisioner signalled = new SaltProvisioner(instance, 4, BOOT_TIMEOUT_MILLIS, true);
+        ec2.addInstance("i-0e000001", "127.0.0.25", "web-5");
+        signalled.provision("i-0e000001", "us-east-1a", EventProgress.untracked("i-0e000001", "create"))
+                .get(10, TimeUnit.SECONDS);
+        assertTrue(salt.getRequests().isEmpty());
+
+        EventProgress ready = EventProgress.untracked("i-0e000001", "ready");
+        ready.record(InstanceState.CLOUD_INIT_DONE);
+        signalled.provision("i-0e000001", "us-east-1a", ready).get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, salt.getRequests().size());
+        assertTrue(ready.isAtLeast(InstanceState.SALT_REGISTERED));
+    }
+
+    private CompletableFuture<Void> provision(String instanceId) {
+        return provisioner.provision(instanceId, "us-east-1a", EventProgress.untracked(instanceId, "create"));
+    }
+
+    private void awaitStage(String instanceId, SaltProvisioner.Stage stage) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (provisioner.getStage(instanceId) != stage) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(String.format("%s never reached %s, stuck in %s", instanceId, stage, provisioner.getStage(instanceId)));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertCancelled(CompletableFuture<Void> outcome) throws Exception {
+        try {
+            outcome.get(5, TimeUnit.SECONDS);
+            fail("the bootstrap was cancelled");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof CancellationException);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import com.gruegames.lambda_sns_ec2_scaling.helper.HttpTransport;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubSaltApi;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// One login serves every call until Salt rejects the token, and calls ride pooled keep-alive connections
+public class SaltSessionTest {
+    private static StubSaltApi salt;
+    private static SaltEC2InstanceImpl instance;
+
+    @BeforeClass
+    public static void startSalt() throws Exception {
+        salt = new StubSaltApi();
+        instance = new SaltEC2InstanceImpl();
+    }
+
+    @AfterClass
+    public static void stopSalt() {
+        salt.close();
+    }
+
+    @Before
+    public void resetSalt() {
+        // every test starts with a cached token that Salt no longer accepts
+        salt.reset();
+        salt.revokeTokens();
+    }
+
+    @Test
+    public void sequentialCallsShareOneLogin() {
+        for (int i = 0; i < 10; i++) {
+            register(String.format("i-0a%06d", i));
+        }
+
+        assertEquals(1, salt.getLogins());
+        assertEquals(10, salt.getRequests().size());
+    }
+
+    @Test
+    public void rejectedTokenLogsInOnceAndRetries() {
+        register("i-0b000001");
+        salt.revokeTokens();
+        register("i-0b000002");
+        register("i-0b000003");
+
+        assertEquals(2, salt.getLogins());
+        assertEquals(3, salt.getRequests().size());
+    }
+
+    @Test
+    public void concurrentCallsWithRejectedTokenShareOneLogin() throws Exception {
+        // staggered, slow requests so the calls land in different batches and each one needs the token
+        salt.setLatencyMillis(100);
+        try {
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                String instanceId = String.format("i-0c%06d", i);
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    Thread.sleep(Integer.parseInt(instanceId.substring(4)) * 60L);
+                    register(instanceId);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            pool.shutdown();
+        } finally {
+            salt.setLatencyMillis(0);
+        }
+
+        assertEquals(1, salt.getLogins());
+    }
+
+    @Test
+    public void sequentialCallsReuseOneConnection() {
+        register("i-0d000000");
+        long created = HttpTransport.getStats().connectionsCreated;
+        for (int i = 1; i <= 10; i++) {
+            register(String.format("i-0d%06d", i));
+        }
+
+        assertEquals(created, HttpTransport.getStats().connectionsCreated);
+        assertTrue(String.format("salt-api saw %d connections", salt.getConnections()), salt.getConnections() <= 2);
+    }
+
+    private static void register(String instanceId) {
+        instance.registerWithSalt(instanceId);
+    }
+}
@@ -0,0 +1,42 @@
+package com.gruegames.lambda_sns_ec2_scaling.ec2.salt;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+// A token is kept until shortly before Salt's expire, or for a default while when Salt gives none
+public class SaltTokenCacheTest {
+    @Test
+    public void missingExpireStillCachesTheToken() {
+        for (double expire : new double[] { 0, (System.currentTimeMillis() - 1000) / 1000.0 }) {
+            AtomicInteger logins = new AtomicInteger();
+            SaltTokenCache cache = new SaltTokenCache(instanceId -> login(logins, expire));
+
+            assertEquals("token-1", cache.getToken("i-0a000001"));
+            assertEquals("token-1", cache.getToken("i-0a000002"));
+            assertEquals(1, logins.get());
+        }
+    }
+
+    @Test
+    public void expireInTheFutureIsKept() {
+        long now = System.currentTimeMillis();
+        // whole seconds, as Salt hands them out
+        long expire = TimeUnit.SECONDS.toMillis(TimeUnit.MILLISECONDS.toSeconds(now) + TimeUnit.HOURS.toSeconds(12));
+
+        assertEquals(expire, SaltTokenCache.expiresAt(expire / 1000.0, now));
+        assertEquals(now + SaltTokenCache.DEFAULT_TTL_MILLIS, SaltTokenCache.expiresAt(0, now));
+        // already inside the refresh margin
+        assertEquals(now + SaltTokenCache.DEFAULT_TTL_MILLIS, SaltTokenCache.expiresAt((now + 1000) / 1000.0, now));
+    }
+
+    private static SaltLogin.Return login(AtomicInteger logins, double expire) {
+        SaltLogin.Return result = new SaltLogin().new Return();
+        result.token = String.format("token-%d", logins.incrementAndGet());
+        result.expire = expire;
+        return result;
+    }
+}
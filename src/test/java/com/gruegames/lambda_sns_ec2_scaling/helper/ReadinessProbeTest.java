@@ -0,0 +1,105 @@
+package com.gruegames.lambda_sns_ec2_scaling.helper;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Probes against local server sockets that are listening, open late or never open
+public class ReadinessProbeTest {
+    private static final String HOST = "127.0.0.1";
+
+    @Test
+    public void listeningPortCompletes() throws Exception {
+        try (ServerSocket server = listen(0)) {
+            ReadinessProbe.getInstance().awaitPort(HOST, server.getLocalPort(), deadline(5)).get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void portOpeningLaterCompletes() throws Exception {
+        int port = freePort();
+        CompletableFuture<Void> ready = ReadinessProbe.getInstance().awaitPort(HOST, port, deadline(10));
+
+        Thread.sleep(1500);
+        assertTrue(!ready.isDone());
+        try (ServerSocket server = listen(port)) {
+            ready.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void closedPortTimesOutAtDeadline() throws Exception {
+        CompletableFuture<Void> ready = ReadinessProbe.getInstance().awaitPort(HOST, freePort(), deadline(1));
+        try {
+            ready.get(5, TimeUnit.SECONDS);
+            fail("nothing listens on the port");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void unresolvableHostFailsOnlyItsOwnProbe() throws Exception {
+        CompletableFuture<Void> unresolved = ReadinessProbe.getInstance().awaitPort("no-such-host.invalid", 22, deadline(5));
+        try {
+            unresolved.get(5, TimeUnit.SECONDS);
+            fail("the host can't be resolved");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UnresolvedAddressException);
+        }
+
+        // the selector thread is still running
+        try (ServerSocket server = listen(0)) {
+            ReadinessProbe.getInstance().awaitPort(HOST, server.getLocalPort(), deadline(5)).get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void brokenSelectorFailsPendingProbesAndIsReplaced() throws Exception {
+        ReadinessProbe broken = ReadinessProbe.getInstance();
+        CompletableFuture<Void> pending = broken.awaitPort(HOST, freePort(), deadline(60));
+        Thread.sleep(200);
+
+        broken.breakSelector();
+        try {
+            pending.get(5, TimeUnit.SECONDS);
+            fail("the selector is gone");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+        }
+
+        ReadinessProbe replacement = ReadinessProbe.getInstance();
+        assertNotSame(broken, replacement);
+        try (ServerSocket server = listen(0)) {
+            replacement.awaitPort(HOST, server.getLocalPort(), deadline(5)).get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static ServerSocket listen(int port) throws Exception {
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new java.net.InetSocketAddress(InetAddress.getByName(HOST), port));
+        return server;
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket server = listen(0)) {
+            return server.getLocalPort();
+        }
+    }
+
+    private static long deadline(int seconds) {
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+    }
+}
@@ -0,0 +1,105 @@
+package com.gruegames.lambda_sns_ec2_scaling.helper;
+
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubSSHServer;
+import net.schmizz.sshj.SSHClient;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Connection reuse and backoff against an embedded sshd. Each test talks to its own loopback
+// address, so connections cached by one test are never seen by another.
+public class SSHConnectionManagerTest {
+    private static final SSHConnectionManager.Credentials CREDENTIALS =
+            SSHConnectionManager.Credentials.password(StubSSHServer.USERNAME, StubSSHServer.PASSWORD);
+
+    private static StubSSHServer sshd;
+
+    @BeforeClass
+    public static void startSSH() throws Exception {
+        sshd = new StubSSHServer();
+    }
+
+    @AfterClass
+    public static void stopSSH() throws Exception {
+        SSHConnectionManager.closeAll();
+        sshd.close();
+    }
+
+    @After
+    public void acceptLogins() {
+        sshd.refuseLoginsFor(0);
+    }
+
+    @Test
+    public void commandsShareOneConnection() throws Exception {
+        int sessions = sshd.getSessions();
+        SSHClient ssh = SSHConnectionManager.acquire("127.0.0.11", CREDENTIALS, deadline(10));
+        for (int i = 0; i < 5; i++) {
+            SSHConnectionManager.exec(ssh, "echo " + i);
+            assertSame(ssh, SSHConnectionManager.acquire("127.0.0.11", CREDENTIALS, deadline(10)));
+        }
+
+        assertEquals(sessions + 1, sshd.getSessions());
+    }
+
+    @Test
+    public void runAllStopsAtTheFirstFailure() throws Exception {
+        List<String> commands = Arrays.asList("echo one", "false", "echo three");
+        try {
+            SSHConnectionManager.runAll("127.0.0.12", CREDENTIALS, deadline(10), commands);
+            fail("the second command exits with 1");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("'false' on 127.0.0.12 exited with 1"));
+        }
+        assertTrue(!sshd.getCommands().contains("echo three"));
+    }
+
+    @Test
+    public void backsOffUntilLoginsAreAccepted() {
+        int refused = sshd.getRefusedLogins();
+        sshd.refuseLoginsFor(2500);
+        long start = System.currentTimeMillis();
+        SSHConnectionManager.acquire("127.0.0.13", CREDENTIALS, deadline(20));
+
+        assertTrue(System.currentTimeMillis() - start >= 2500);
+        assertTrue(sshd.getRefusedLogins() > refused);
+    }
+
+    @Test
+    public void givesUpAtTheDeadline() {
+        sshd.refuseLoginsFor(TimeUnit.MINUTES.toMillis(1));
+        try {
+            SSHConnectionManager.acquire("127.0.0.14", CREDENTIALS, deadline(2));
+            fail("logins are refused past the deadline");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("was not ready before the deadline"));
+        }
+    }
+
+    @Test
+    public void releasedConnectionIsReplaced() throws Exception {
+        SSHClient first = SSHConnectionManager.acquire("127.0.0.15", CREDENTIALS, deadline(10));
+        SSHConnectionManager.release("127.0.0.15", CREDENTIALS);
+        SSHClient second = SSHConnectionManager.acquire("127.0.0.15", CREDENTIALS, deadline(10));
+
+        assertNotSame(first, second);
+        assertTrue(!first.isConnected());
+        assertEquals("", SSHConnectionManager.exec(second, "echo"));
+    }
+
+    private static long deadline(int seconds) {
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+    }
+}
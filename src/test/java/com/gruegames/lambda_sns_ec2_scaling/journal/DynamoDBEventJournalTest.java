@@ -0,0 +1,81 @@
+package com.gruegames.lambda_sns_ec2_scaling.journal;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+import com.gruegames.lambda_sns_ec2_scaling.testing.StubDynamoDB;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+// Two journals on one table stand for two containers handling redeliveries of the same activity
+public class DynamoDBEventJournalTest {
+    private static final long RETENTION_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private static StubDynamoDB dynamoDB;
+
+    @BeforeClass
+    public static void startDynamoDB() throws Exception {
+        dynamoDB = new StubDynamoDB();
+    }
+
+    @AfterClass
+    public static void stopDynamoDB() {
+        dynamoDB.close();
+    }
+
+    @Test
+    public void progressIsSharedBetweenContainers() {
+        DynamoDBEventJournal first = journal();
+        DynamoDBEventJournal second = journal();
+        assertNull(second.latest("activity-1"));
+
+        first.append(entry("activity-1", InstanceState.REACHABLE));
+        assertEquals(InstanceState.REACHABLE, second.latest("activity-1"));
+    }
+
+    @Test
+    public void earlierStateNeverOverwritesALaterOne() {
+        DynamoDBEventJournal first = journal();
+        DynamoDBEventJournal second = journal();
+
+        first.append(entry("activity-2", InstanceState.SALT_REGISTERED));
+        second.append(entry("activity-2", InstanceState.CLOUD_INIT_DONE));
+        second.append(entry("activity-2", InstanceState.SALT_REGISTERED));
+
+        assertEquals(InstanceState.SALT_REGISTERED, first.latest("activity-2"));
+        assertEquals("SALT_REGISTERED", dynamoDB.getItem("activity-2").getAsJsonObject("State").get("S").getAsString());
+    }
+
+    @Test
+    public void finishedActivitiesExpireAfterTheRetention() {
+        long now = System.currentTimeMillis();
+        journal().append(new JournalEntry("activity-3", "i-0c000001", "autoscaling:EC2_INSTANCE_LAUNCH",
+                InstanceState.SALT_REGISTERED, now));
+        journal().append(new JournalEntry("activity-4", "i-0c000002", "autoscaling:EC2_INSTANCE_LAUNCH",
+                InstanceState.REACHABLE, now));
+
+        assertEquals(TimeUnit.MILLISECONDS.toSeconds(now + RETENTION_MILLIS), expiresAt("activity-3"));
+        // an unfinished activity is kept longer, a late redelivery can still resume it
+        assertEquals(TimeUnit.MILLISECONDS.toSeconds(now + 7 * RETENTION_MILLIS), expiresAt("activity-4"));
+    }
+
+    private static long expiresAt(String key) {
+        return dynamoDB.getItem(key).getAsJsonObject("ExpiresAt").get("N").getAsLong();
+    }
+
+    private static DynamoDBEventJournal journal() {
+        AmazonDynamoDBClient client = new AmazonDynamoDBClient(new BasicAWSCredentials("test", "test"));
+        client.setEndpoint(StubDynamoDB.ENDPOINT);
+        return new DynamoDBEventJournal(client, "events", RETENTION_MILLIS);
+    }
+
+    private static JournalEntry entry(String key, InstanceState state) {
+        return new JournalEntry(key, "i-0a000001", "autoscaling:EC2_INSTANCE_LAUNCH", state, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,98 @@
+package com.gruegames.lambda_sns_ec2_scaling.journal;
+
+import com.gruegames.lambda_sns_ec2_scaling.enums.InstanceState;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileEventJournalTest {
+    private static final long RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private File file;
+
+    @Before
+    public void createFile() throws Exception {
+        file = new File(Files.createTempDirectory("journal").toFile(), "events.journal");
+    }
+
+    @Test
+    public void replayKeepsTheFurthestState() throws Exception {
+        FileEventJournal journal = new FileEventJournal(file, RETENTION_MILLIS);
+        journal.append(entry("activity-1", InstanceState.CLOUD_INIT_DONE, 0));
+        journal.append(entry("activity-1", InstanceState.REACHABLE, 0));
+
+        assertEquals(InstanceState.CLOUD_INIT_DONE, new FileEventJournal(file, RETENTION_MILLIS).latest("activity-1"));
+    }
+
+    @Test
+    public void tornLastLineIsSkippedAndClosedOff() throws Exception {
+        new FileEventJournal(file, RETENTION_MILLIS).append(entry("activity-1", InstanceState.REACHABLE, 0));
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("{\"Key\":\"activity-2\",\"Sta".getBytes(StandardCharsets.UTF_8));
+        }
+
+        FileEventJournal journal = new FileEventJournal(file, RETENTION_MILLIS);
+        journal.append(entry("activity-3", InstanceState.DESCRIBED, 0));
+
+        FileEventJournal replayed = new FileEventJournal(file, RETENTION_MILLIS);
+        assertEquals(InstanceState.REACHABLE, replayed.latest("activity-1"));
+        assertNull(replayed.latest("activity-2"));
+        assertEquals(InstanceState.DESCRIBED, replayed.latest("activity-3"));
+    }
+
+    @Test
+    public void expiredActivitiesArePrunedOnOpen() throws Exception {
+        FileEventJournal journal = new FileEventJournal(file, RETENTION_MILLIS);
+        journal.append(entry("finished-long-ago", InstanceState.SALT_REGISTERED, 2 * RETENTION_MILLIS));
+        journal.append(entry("finished-just-now", InstanceState.SALT_REMOVED, 0));
+        journal.append(entry("stuck-long-ago", InstanceState.REACHABLE, 2 * RETENTION_MILLIS));
+        journal.append(entry("stuck-for-days", InstanceState.REACHABLE, 8 * RETENTION_MILLIS));
+
+        FileEventJournal reopened = new FileEventJournal(file, RETENTION_MILLIS);
+        assertNull(reopened.latest("finished-long-ago"));
+        assertEquals(InstanceState.SALT_REMOVED, reopened.latest("finished-just-now"));
+        // an unfinished activity is kept longer, a late redelivery can still resume it
+        assertEquals(InstanceState.REACHABLE, reopened.latest("stuck-long-ago"));
+        assertNull(reopened.latest("stuck-for-days"));
+
+        // and they are gone from the file as well
+        assertEquals(2, Files.readAllLines(file.toPath()).size());
+        assertEquals(2, reopened.lines());
+    }
+
+    @Test
+    public void staleLinesAreCompactedAway() throws Exception {
+        FileEventJournal journal = new FileEventJournal(file, RETENTION_MILLIS);
+        InstanceState[] steps = InstanceState.values();
+        for (int i = 0; i < 500; i++) {
+            for (int step = 0; step <= InstanceState.SALT_REGISTERED.ordinal(); step++) {
+                journal.append(entry("activity-" + i, steps[step], 0));
+            }
+        }
+
+        // 2500 appends for 500 activities, the file never grows much past twice the live ones
+        assertEquals(500, journal.size());
+        assertTrue(String.format("%d lines", journal.lines()), journal.lines() <= 1000);
+        assertEquals(journal.lines(), Files.readAllLines(file.toPath()).size());
+
+        FileEventJournal replayed = new FileEventJournal(file, RETENTION_MILLIS);
+        assertEquals(500, replayed.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(InstanceState.SALT_REGISTERED, replayed.latest("activity-" + i));
+        }
+    }
+
+    private static JournalEntry entry(String key, InstanceState state, long agoMillis) {
+        return new JournalEntry(key, "i-0a000001", "autoscaling:EC2_INSTANCE_LAUNCH", state,
+                System.currentTimeMillis() - agoMillis);
+    }
+}
@@ -0,0 +1,112 @@
+package com.gruegames.lambda_sns_ec2_scaling.metrics;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Latencies go out as the raw distribution, Values with Counts next to them, under one name
+public class MetricsTest {
+    private static final Logger emfLogger = Logger.getLogger("com.gruegames.lambda_sns_ec2_scaling.metrics.EMF");
+
+    private final List<JsonObject> documents = new ArrayList<>();
+    private final AppenderSkeleton appender = new AppenderSkeleton() {
+        @Override
+        protected void append(LoggingEvent event) {
+            documents.add(new JsonParser().parse(event.getRenderedMessage()).getAsJsonObject());
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return false;
+        }
+    };
+
+    @Before
+    public void captureEMF() {
+        // drop anything other tests recorded
+        Metrics.emit("test");
+        emfLogger.addAppender(appender);
+    }
+
+    @After
+    public void releaseEMF() {
+        emfLogger.removeAppender(appender);
+    }
+
+    @Test
+    public void latenciesGoOutAsValuesAndCounts() {
+        Metrics.recordMillis("Stage.Test", 5);
+        Metrics.recordMillis("Stage.Test", 5);
+        Metrics.recordMillis("Stage.Test", 120);
+        Metrics.increment("Counter.Test");
+        Metrics.emit("test");
+
+        assertEquals(1, documents.size());
+        JsonObject document = documents.get(0);
+        assertEquals(2, definitions(document).size());
+        assertFalse(document.has("Stage.Test.p50"));
+
+        JsonObject stage = document.getAsJsonObject("Stage.Test");
+        JsonArray values = stage.getAsJsonArray("Values");
+        JsonArray counts = stage.getAsJsonArray("Counts");
+        assertEquals(2, values.size());
+        assertEquals(5.0, values.get(0).getAsDouble(), 5 * 0.04);
+        assertEquals(120.0, values.get(1).getAsDouble(), 0.0);
+        assertEquals(2, counts.get(0).getAsLong());
+        assertEquals(1, counts.get(1).getAsLong());
+        assertEquals(1, document.get("Counter.Test").getAsLong());
+    }
+
+    @Test
+    public void wideSpreadsSpillIntoMoreDocuments() {
+        // every millisecond from 1 ms to 10 s fills close to 300 buckets
+        long recorded = 0;
+        for (long millis = 1; millis <= 10000; millis++) {
+            Metrics.recordMillis("Stage.Wide", millis);
+            recorded++;
+        }
+        Metrics.emit("test");
+
+        assertTrue(documents.size() > 1);
+        long counted = 0;
+        double previous = 0;
+        for (JsonObject document : documents) {
+            assertEquals(1, definitions(document).size());
+            JsonObject stage = document.getAsJsonObject("Stage.Wide");
+            JsonArray values = stage.getAsJsonArray("Values");
+            assertTrue(values.size() <= 100);
+            for (int i = 0; i < values.size(); i++) {
+                assertTrue(values.get(i).getAsDouble() > previous);
+                previous = values.get(i).getAsDouble();
+            }
+            for (JsonElement count : stage.getAsJsonArray("Counts")) {
+                counted += count.getAsLong();
+            }
+        }
+        assertEquals(recorded, counted);
+        assertEquals(10000.0, previous, 0.0);
+    }
+
+    private static JsonArray definitions(JsonObject document) {
+        return document.getAsJsonObject("_aws").getAsJsonArray("CloudWatchMetrics").get(0)
+                .getAsJsonObject().getAsJsonArray("Metrics");
+    }
+}
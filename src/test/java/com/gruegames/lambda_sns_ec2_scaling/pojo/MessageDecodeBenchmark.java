@@ -0,0 +1,114 @@
+package com.gruegames.lambda_sns_ec2_scaling.pojo;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Decoding a launch notification with MessageTypeAdapter against reflective Gson binding every
+// field of it, the way Message used to be read. Run with -prof gc to see the allocation side.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MessageDecodeBenchmark {
+    static final String LAUNCH = "{\"Progress\":50,\"AccountId\":\"123456789012\"," +
+            "\"Description\":\"Launching a new EC2 instance: i-0a1b2c3d4e5f67890\"," +
+            "\"RequestId\":\"1b1c5e3a-94d0-4c7b-9c55-6a1e0c4f7d21\",\"EndTime\":\"2016-09-01T12:00:45.123Z\"," +
+            "\"AutoScalingGroupARN\":\"arn:aws:autoscaling:us-east-1:123456789012:autoScalingGroup:" +
+            "6a1e0c4f-94d0-4c7b-9c55-1b1c5e3a7d21:autoScalingGroupName/web\"," +
+            "\"ActivityId\":\"1b1c5e3a-94d0-4c7b-9c55-6a1e0c4f7d21\",\"StartTime\":\"2016-09-01T12:00:12.456Z\"," +
+            "\"Service\":\"AWS Auto Scaling\",\"Time\":\"2016-09-01T12:00:45.123Z\"," +
+            "\"EC2InstanceId\":\"i-0a1b2c3d4e5f67890\",\"StatusCode\":\"InProgress\",\"StatusMessage\":\"\"," +
+            "\"Details\":{\"Subnet ID\":\"subnet-1234abcd\",\"Availability Zone\":\"us-east-1a\"}," +
+            "\"AutoScalingGroupName\":\"web\",\"Cause\":\"At 2016-09-01T11:59:54Z a user request update of " +
+            "AutoScalingGroup constraints to min: 2, max: 4, desired: 3 changing the desired capacity from 2 to 3.  " +
+            "At 2016-09-01T12:00:11Z an instance was started in response to a difference between desired and " +
+            "actual capacity, increasing the capacity from 2 to 3.\",\"Event\":\"autoscaling:EC2_INSTANCE_LAUNCH\"}";
+
+    // every field of a notification, bound by reflection
+    static class ReflectiveMessage {
+        class Details {
+            @SerializedName("Subnet ID")
+            String subnetId;
+
+            @SerializedName("Availability Zone")
+            String availabilityZone;
+        }
+
+        @SerializedName("Progress")
+        String progress;
+
+        @SerializedName("AccountId")
+        String accountId;
+
+        @SerializedName("Description")
+        String description;
+
+        @SerializedName("RequestId")
+        String requestId;
+
+        @SerializedName("EndTime")
+        String endTime;
+
+        @SerializedName("AutoScalingGroupARN")
+        String autoScalingGroupARN;
+
+        @SerializedName("ActivityId")
+        String activityId;
+
+        @SerializedName("StartTime")
+        String startTime;
+
+        @SerializedName("Service")
+        String service;
+
+        @SerializedName("Time")
+        String time;
+
+        @SerializedName("EC2InstanceId")
+        String EC2InstanceId;
+
+        @SerializedName("StatusCode")
+        String statusCode;
+
+        @SerializedName("StatusMessage")
+        String statusMessage;
+
+        @SerializedName("AutoScalingGroupName")
+        String autoScalingGroupName;
+
+        @SerializedName("Cause")
+        String cause;
+
+        @SerializedName("Event")
+        String event;
+
+        @SerializedName("Details")
+        Details details;
+    }
+
+    private final Gson gson = new Gson();
+
+    @Benchmark
+    public Message adapter() throws IOException {
+        return MessageTypeAdapter.parse(LAUNCH);
+    }
+
+    @Benchmark
+    public ReflectiveMessage reflective() {
+        return gson.fromJson(LAUNCH, ReflectiveMessage.class);
+    }
+}
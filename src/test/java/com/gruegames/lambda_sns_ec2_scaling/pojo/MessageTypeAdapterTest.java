@@ -0,0 +1,59 @@
+package com.gruegames.lambda_sns_ec2_scaling.pojo;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageTypeAdapterTest {
+    @Test
+    public void decodesWhatTheHandlersRead() throws Exception {
+        Message message = MessageTypeAdapter.parse(MessageDecodeBenchmark.LAUNCH);
+
+        assertEquals("autoscaling:EC2_INSTANCE_LAUNCH", message.getEvent());
+        assertEquals("i-0a1b2c3d4e5f67890", message.EC2InstanceId);
+        assertEquals("1b1c5e3a-94d0-4c7b-9c55-6a1e0c4f7d21", message.activityId);
+        assertEquals("1b1c5e3a-94d0-4c7b-9c55-6a1e0c4f7d21", message.requestId);
+        assertEquals("2016-09-01T12:00:12.456Z", message.startTime);
+        assertEquals("2016-09-01T12:00:45.123Z", message.time);
+        assertEquals("web", message.autoScalingGroupName);
+        assertEquals("us-east-1a", message.details.availabilityZone);
+        assertEquals("subnet-1234abcd", message.details.subnetId);
+    }
+
+    @Test
+    public void decodesLifecycleActions() throws Exception {
+        Message message = MessageTypeAdapter.parse("{\"AutoScalingGroupName\":\"web\",\"Service\":\"AWS Auto Scaling\"," +
+                "\"Time\":\"2016-09-01T12:00:45.123Z\",\"LifecycleActionToken\":\"71514b9d-6a40-4b26-8523-05e7e0c4d2b3\"," +
+                "\"LifecycleTransition\":\"autoscaling:EC2_INSTANCE_LAUNCHING\",\"LifecycleHookName\":\"salt\"," +
+                "\"EC2InstanceId\":\"i-0a1b2c3d4e5f67890\",\"NotificationMetadata\":{\"nested\":[1,2,{\"x\":null}]}}");
+
+        assertEquals("autoscaling:EC2_INSTANCE_LAUNCHING", message.getEvent());
+        assertTrue(message.isLifecycleAction());
+        assertEquals("salt", message.lifecycleHookName);
+        assertNull(message.details);
+    }
+
+    @Test
+    public void toleratesNullsAndOddShapes() throws Exception {
+        Message message = MessageTypeAdapter.parse("{\"Event\":null,\"Details\":\"none\",\"EC2InstanceId\":\"i-0b000001\"}");
+
+        assertNull(message.event);
+        assertNull(message.details);
+        assertEquals("i-0b000001", message.EC2InstanceId);
+        assertNull(MessageTypeAdapter.parse(" "));
+    }
+
+    @Test
+    public void gsonUsesTheAdapterBothWays() {
+        Gson gson = new Gson();
+        Message message = gson.fromJson(MessageDecodeBenchmark.LAUNCH, Message.class);
+        Message copy = gson.fromJson(gson.toJson(message), Message.class);
+
+        assertEquals(message.EC2InstanceId, copy.EC2InstanceId);
+        assertEquals(message.details.availabilityZone, copy.details.availabilityZone);
+        assertEquals(message.getEvent(), copy.getEvent());
+    }
+}
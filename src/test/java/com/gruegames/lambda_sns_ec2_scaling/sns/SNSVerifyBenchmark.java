@@ -0,0 +1,49 @@
+package com.gruegames.lambda_sns_ec2_scaling.sns;
+
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.gruegames.lambda_sns_ec2_scaling.testing.SNSSigner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Verification with the signing certificate already cached against a cache miss on every
+// message. The certificate is read from a local file, so the cold numbers leave out the HTTPS
+// round trip a real miss pays on top.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SNSVerifyBenchmark {
+    @Param({ "1", "2" })
+    String signatureVersion;
+
+    private SNSEvent.SNS sns;
+
+    @Setup
+    public void setUp() throws Exception {
+        sns = new SNSSigner().notification("{\"Event\":\"autoscaling:EC2_INSTANCE_LAUNCH\"}", signatureVersion);
+    }
+
+    @Benchmark
+    public boolean cached() {
+        return SNSSignatureVerifier.isMessageSignatureValid(sns);
+    }
+
+    @Benchmark
+    public boolean cold() {
+        SigningCertCache.getInstance().clear();
+        return SNSSignatureVerifier.isMessageSignatureValid(sns);
+    }
+}
@@ -0,0 +1,84 @@
+package com.gruegames.lambda_sns_ec2_scaling.sns;
+
+import com.gruegames.lambda_sns_ec2_scaling.testing.SNSSigner;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.CertificateException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Only SNS endpoints are fetched, a fetch that never answers gives up, and the cache stays bounded
+public class SigningCertCacheTest {
+    @Test
+    public void refusesUrlsThatAreNotSNS() {
+        SigningCertCache cache = new SigningCertCache(TimeUnit.HOURS.toMillis(1));
+        for (String url : new String[] {
+                "http://sns.us-east-1.amazonaws.com/SimpleNotificationService.pem",
+                "https://sns.us-east-1.amazonaws.com.example.com/SimpleNotificationService.pem",
+                "https://example.com/sns.us-east-1.amazonaws.com.pem",
+                "file:/etc/passwd",
+                "not a url",
+                null }) {
+            try {
+                cache.get(url);
+                fail(String.format("fetched %s", url));
+            } catch (CertificateException e) {
+                assertEquals(0, cache.size());
+            }
+        }
+    }
+
+    @Test
+    public void acceptsSNSEndpoints() throws Exception {
+        SigningCertCache.checkCertUrl("https://sns.us-east-1.amazonaws.com/SimpleNotificationService-abc.pem");
+        SigningCertCache.checkCertUrl("https://sns.cn-north-1.amazonaws.com.cn/SimpleNotificationService-abc.pem");
+    }
+
+    @Test
+    public void slowEndpointTimesOut() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             // accepted by the backlog, never answered
+             Socket ignored = new Socket("127.0.0.1", server.getLocalPort())) {
+            String url = String.format("http://127.0.0.1:%d/SimpleNotificationService.pem", server.getLocalPort());
+            SigningCertCache.allowCertUrl(url);
+            SigningCertCache cache = new SigningCertCache(TimeUnit.HOURS.toMillis(1));
+
+            long start = System.nanoTime();
+            try {
+                cache.get(url);
+                fail("nothing was served");
+            } catch (CertificateException e) {
+                long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue(String.format("gave up after %d ms", took), took < TimeUnit.SECONDS.toMillis(10));
+            }
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void staysBounded() throws Exception {
+        SNSSigner signer = new SNSSigner();
+        SigningCertCache cache = new SigningCertCache(TimeUnit.HOURS.toMillis(1));
+        for (int i = 0; i < 50; i++) {
+            File copy = File.createTempFile("sns-signing", ".pem");
+            copy.deleteOnExit();
+            Files.copy(Paths.get(URI.create(signer.getCertUrl())), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            String url = copy.toURI().toString();
+            SigningCertCache.allowCertUrl(url);
+
+            assertNotNull(cache.get(url));
+        }
+        assertTrue(String.format("%d entries", cache.size()), cache.size() <= 32);
+    }
+}
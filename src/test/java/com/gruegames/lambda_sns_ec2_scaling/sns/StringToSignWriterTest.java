@@ -0,0 +1,86 @@
+package com.gruegames.lambda_sns_ec2_scaling.sns;
+
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.gruegames.lambda_sns_ec2_scaling.testing.SNSSigner;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+import static org.junit.Assert.assertTrue;
+
+// Signs with the streamed string to sign and verifies against the spec's string built the slow way
+public class StringToSignWriterTest {
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void generateKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        keyPair = generator.generateKeyPair();
+    }
+
+    @Test
+    public void notificationMatchesConcatenatedString() throws Exception {
+        for (String message : new String[] { "", "{\"Event\":\"autoscaling:EC2_INSTANCE_LAUNCH\"}",
+                "caf\u00e9 \u20ac \ud83d\ude80 unpaired \ud83d end", repeat("a\u00e9\u4e2d\ud83d\ude80", 20000) }) {
+            SNSEvent.SNS sns = new SNSSigner().notification(message, "2");
+            assertVerifies(sns, notification(sns, true));
+
+            sns.setSubject(null);
+            assertVerifies(sns, notification(sns, false));
+        }
+    }
+
+    @Test
+    public void confirmationMatchesConcatenatedString() throws Exception {
+        SNSEvent.SNS sns = new SNSSigner().notification("You have chosen to subscribe", "2");
+        sns.setType("SubscriptionConfirmation");
+        String subscribeUrl = "https://sns.us-east-1.amazonaws.com/?Action=ConfirmSubscription&Token=abc";
+
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(keyPair.getPrivate());
+        StringToSignWriter.get().writeConfirmation(signer, sns, subscribeUrl, "abc");
+
+        String expected = "Message\n" + sns.getMessage() + "\nMessageId\n" + sns.getMessageId() +
+                "\nSubscribeURL\n" + subscribeUrl + "\nTimestamp\n" + timestamp(sns) + "\nToken\nabc" +
+                "\nTopicArn\n" + sns.getTopicArn() + "\nType\nSubscriptionConfirmation\n";
+        assertTrue(verify(signer.sign(), expected));
+    }
+
+    private static void assertVerifies(SNSEvent.SNS sns, String expected) throws Exception {
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(keyPair.getPrivate());
+        StringToSignWriter.get().writeNotification(signer, sns);
+        assertTrue(verify(signer.sign(), expected));
+    }
+
+    private static boolean verify(byte[] signature, String expected) throws Exception {
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update(expected.getBytes(StandardCharsets.UTF_8));
+        return verifier.verify(signature);
+    }
+
+    private static String notification(SNSEvent.SNS sns, boolean withSubject) {
+        return "Message\n" + sns.getMessage() + "\nMessageId\n" + sns.getMessageId() +
+                (withSubject ? "\nSubject\n" + sns.getSubject() : "") + "\nTimestamp\n" + timestamp(sns) +
+                "\nTopicArn\n" + sns.getTopicArn() + "\nType\n" + sns.getType() + "\n";
+    }
+
+    private static String timestamp(SNSEvent.SNS sns) {
+        return ISODateTimeFormat.dateTime().print(sns.getTimestamp());
+    }
+
+    private static String repeat(String value, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package com.gruegames.lambda_sns_ec2_scaling.testing;
+
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.google.gson.JsonObject;
+import com.gruegames.lambda_sns_ec2_scaling.sns.SigningCertCache;
+import com.gruegames.lambda_sns_ec2_scaling.sns.StringToSignWriter;
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Stands in for SNS: a throwaway key with a self-signed certificate, served from a file: URL, and
+// notifications signed the way SNS signs them.
+public class SNSSigner {
+    public static final String TOPIC_ARN = "arn:aws:sns:us-east-1:000000000000:scaling";
+
+    private final KeyPair keyPair;
+    private final String certUrl;
+
+    public SNSSigner() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+
+        long now = System.currentTimeMillis();
+        X500Name name = new X500Name("CN=sns.us-east-1.amazonaws.com");
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(
+                name, BigInteger.valueOf(now), new Date(now - TimeUnit.HOURS.toMillis(1)),
+                new Date(now + TimeUnit.DAYS.toMillis(1)), name, keyPair.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+        File file = File.createTempFile("sns-signing", ".pem");
+        file.deleteOnExit();
+        Files.write(file.toPath(), certificate.getEncoded());
+        certUrl = file.toURI().toString();
+        // not an SNS endpoint, the verifier would refuse to fetch it otherwise
+        SigningCertCache.allowCertUrl(certUrl);
+    }
+
+    public String getCertUrl() {
+        return certUrl;
+    }
+
+    public SNSEvent.SNS notification(String message, String signatureVersion) throws Exception {
+        SNSEvent.SNS sns = new SNSEvent.SNS();
+        sns.setType("Notification");
+        sns.setMessageId(UUID.randomUUID().toString());
+        sns.setTopicArn(TOPIC_ARN);
+        sns.setSubject("Auto Scaling: test");
+        sns.setMessage(message);
+        sns.setTimestamp(new DateTime(DateTimeZone.UTC));
+        sns.setSignatureVersion(signatureVersion);
+        sns.setSigningCertUrl(certUrl);
+        sign(sns);
+        return sns;
+    }
+
+    public void sign(SNSEvent.SNS sns) throws Exception {
+        Signature signature = Signature.getInstance("1".equals(sns.getSignatureVersion()) ? "SHA1withRSA" : "SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        StringToSignWriter.get().writeNotification(signature, sns);
+        sns.setSignature(Base64.encodeBase64String(signature.sign()));
+    }
+
+    // What SNS delivers to an SQS subscriber for the notification, with raw message delivery off
+    public String envelope(SNSEvent.SNS sns) {
+        JsonObject envelope = new JsonObject();
+        envelope.addProperty("Type", sns.getType());
+        envelope.addProperty("MessageId", sns.getMessageId());
+        envelope.addProperty("TopicArn", sns.getTopicArn());
+        envelope.addProperty("Subject", sns.getSubject());
+        envelope.addProperty("Message", sns.getMessage());
+        envelope.addProperty("Timestamp", sns.getTimestamp().toString());
+        envelope.addProperty("SignatureVersion", sns.getSignatureVersion());
+        envelope.addProperty("Signature", sns.getSignature());
+        envelope.addProperty("SigningCertURL", sns.getSigningCertUrl());
+        return envelope.toString();
+    }
+
+    public SNSEvent.SNSRecord record(SNSEvent.SNS sns) {
+        SNSEvent.SNSRecord record = new SNSEvent.SNSRecord();
+        record.setSns(sns);
+        record.setEventSource("aws:sns");
+        return record;
+    }
+}
@@ -0,0 +1,94 @@
+package com.gruegames.lambda_sns_ec2_scaling.testing;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+// Stands in for DynamoDB on a local port with a single table keyed by "Key". Knows GetItem and
+// PutItem, and of condition expressions only the one the event journal uses: the put goes through
+// when the item is missing or its Rank is below :rank.
+public class StubDynamoDB implements AutoCloseable {
+    public static final int PORT = 18184;
+    public static final String ENDPOINT = "http://127.0.0.1:" + PORT;
+
+    private final HttpServer server;
+    private final Map<String, JsonObject> items = new ConcurrentHashMap<>();
+
+    public StubDynamoDB() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", PORT), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public JsonObject getItem(String key) {
+        return items.get(key);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+        JsonObject request = new JsonParser().parse(StubEC2Server.read(exchange.getRequestBody())).getAsJsonObject();
+
+        if ("DynamoDB_20120810.GetItem".equals(target)) {
+            String key = request.getAsJsonObject("Key").getAsJsonObject("Key").get("S").getAsString();
+            JsonObject response = new JsonObject();
+            JsonObject item = items.get(key);
+            if (item != null) {
+                response.add("Item", item);
+            }
+            respond(exchange, 200, response.toString());
+        } else if ("DynamoDB_20120810.PutItem".equals(target)) {
+            put(exchange, request);
+        } else {
+            respond(exchange, 400, error("UnknownOperationException", String.valueOf(target)));
+        }
+    }
+
+    private synchronized void put(HttpExchange exchange, JsonObject request) throws IOException {
+        JsonObject item = request.getAsJsonObject("Item");
+        String key = item.getAsJsonObject("Key").get("S").getAsString();
+        JsonElement condition = request.get("ConditionExpression");
+        JsonObject existing = items.get(key);
+        if (condition != null && existing != null) {
+            long rank = request.getAsJsonObject("ExpressionAttributeValues").getAsJsonObject(":rank").get("N").getAsLong();
+            if (existing.getAsJsonObject("Rank").get("N").getAsLong() >= rank) {
+                respond(exchange, 400, error("ConditionalCheckFailedException", "The conditional request failed"));
+                return;
+            }
+        }
+
+        items.put(key, item);
+        respond(exchange, 200, "{}");
+    }
+
+    private static String error(String type, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("__type", "com.amazonaws.dynamodb.v20120810#" + type);
+        error.addProperty("message", message);
+        return error.toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/x-amz-json-1.0");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
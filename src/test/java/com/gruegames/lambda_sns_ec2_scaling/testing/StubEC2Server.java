@@ -0,0 +1,210 @@
+package com.gruegames.lambda_sns_ec2_scaling.testing;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Stands in for the EC2 query API on a local port (aws.ec2.endpoint in the test ec2.properties).
+// Knows DescribeInstances, filtered by instance-id or instance-state-name, and
+// DescribeAvailabilityZones, and counts every call by action. It also answers the Auto Scaling
+// lifecycle calls (aws.autoscaling.endpoint), and keeps every completed lifecycle action.
+public class StubEC2Server implements AutoCloseable {
+    public static final int PORT = 18180;
+
+    private static class Instance {
+        final String id;
+        final String ip;
+        volatile String state = "running";
+        final Map<String, String> tags = new ConcurrentHashMap<>();
+
+        Instance(String id, String ip) {
+            this.id = id;
+            this.ip = ip;
+        }
+    }
+
+    private final HttpServer server;
+    private final Map<String, Instance> instances = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final List<String> completedActions = new CopyOnWriteArrayList<>();
+    private volatile long latencyMillis;
+
+    public StubEC2Server() throws IOException {
+        // without it every answer sits out a delayed ACK, ~40 ms that would hide what the tests time
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", PORT), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public void addInstance(String instanceId, String ip, String name) {
+        Instance instance = new Instance(instanceId, ip);
+        instance.tags.put("Name", name);
+        instances.put(instanceId, instance);
+    }
+
+    public void setState(String instanceId, String state) {
+        instances.get(instanceId).state = state;
+    }
+
+    // forget an instance entirely, the way EC2 stops returning one some time after it terminates
+    public void removeInstance(String instanceId) {
+        instances.remove(instanceId);
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public int getCalls(String action) {
+        AtomicInteger count = calls.get(action);
+        return count == null ? 0 : count.get();
+    }
+
+    public void resetCalls() {
+        calls.clear();
+        completedActions.clear();
+    }
+
+    // CompleteLifecycleAction calls in order, as "instance id, token (or null), result"
+    public List<String> getCompletedActions() {
+        return completedActions;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> params = parseForm(exchange);
+        String action = first(params, "Action");
+        calls.computeIfAbsent(action, key -> new AtomicInteger()).incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        String body;
+        if ("DescribeInstances".equals(action)) {
+            body = describeInstances(params);
+        } else if ("DescribeAvailabilityZones".equals(action)) {
+            body = "<DescribeAvailabilityZonesResponse><requestId>stub</requestId><availabilityZoneInfo/>" +
+                    "</DescribeAvailabilityZonesResponse>";
+        } else if ("RecordLifecycleActionHeartbeat".equals(action)) {
+            body = "<RecordLifecycleActionHeartbeatResponse><RecordLifecycleActionHeartbeatResult/>" +
+                    "<ResponseMetadata><RequestId>stub</RequestId></ResponseMetadata></RecordLifecycleActionHeartbeatResponse>";
+        } else if ("CompleteLifecycleAction".equals(action)) {
+            completedActions.add(String.format("%s, %s, %s", first(params, "InstanceId"),
+                    first(params, "LifecycleActionToken"), first(params, "LifecycleActionResult")));
+            body = "<CompleteLifecycleActionResponse><CompleteLifecycleActionResult/>" +
+                    "<ResponseMetadata><RequestId>stub</RequestId></ResponseMetadata></CompleteLifecycleActionResponse>";
+        } else {
+            respond(exchange, 400, "<Response><Errors><Error><Code>InvalidAction</Code><Message>" + action +
+                    "</Message></Error></Errors><RequestID>stub</RequestID></Response>");
+            return;
+        }
+        respond(exchange, 200, body);
+    }
+
+    private String describeInstances(Map<String, List<String>> params) {
+        List<String> ids = null;
+        List<String> states = null;
+        for (int i = 1; params.containsKey("Filter." + i + ".Name"); i++) {
+            List<String> values = new ArrayList<>();
+            for (int j = 1; params.containsKey("Filter." + i + ".Value." + j); j++) {
+                values.add(first(params, "Filter." + i + ".Value." + j));
+            }
+            if ("instance-id".equals(first(params, "Filter." + i + ".Name"))) {
+                ids = values;
+            } else if ("instance-state-name".equals(first(params, "Filter." + i + ".Name"))) {
+                states = values;
+            }
+        }
+
+        StringBuilder xml = new StringBuilder("<DescribeInstancesResponse><requestId>stub</requestId><reservationSet>");
+        for (Instance instance : instances.values()) {
+            if ((ids != null && !ids.contains(instance.id)) || (states != null && !states.contains(instance.state))) {
+                continue;
+            }
+            xml.append("<item><reservationId>r-").append(instance.id).append("</reservationId><instancesSet><item>")
+                    .append("<instanceId>").append(instance.id).append("</instanceId>")
+                    .append("<instanceState><code>16</code><name>").append(instance.state).append("</name></instanceState>")
+                    .append("<privateDnsName>ip-").append(instance.ip.replace('.', '-')).append(".ec2.internal</privateDnsName>")
+                    .append("<privateIpAddress>").append(instance.ip).append("</privateIpAddress><tagSet>");
+            for (Map.Entry<String, String> tag : instance.tags.entrySet()) {
+                xml.append("<item><key>").append(tag.getKey()).append("</key><value>").append(tag.getValue())
+                        .append("</value></item>");
+            }
+            xml.append("</tagSet></item></instancesSet></item>");
+        }
+        return xml.append("</reservationSet></DescribeInstancesResponse>").toString();
+    }
+
+    private static Map<String, List<String>> parseForm(HttpExchange exchange) throws IOException {
+        String form = exchange.getRequestURI().getRawQuery();
+        if ("POST".equals(exchange.getRequestMethod())) {
+            form = read(exchange.getRequestBody());
+        }
+
+        Map<String, List<String>> params = new HashMap<>();
+        if (form == null) {
+            return params;
+        }
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = decode(eq < 0 ? pair : pair.substring(0, eq));
+            String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+            params.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private static String first(Map<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+
+    static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
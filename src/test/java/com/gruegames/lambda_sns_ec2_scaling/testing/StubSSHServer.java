@@ -0,0 +1,153 @@
+package com.gruegames.lambda_sns_ec2_scaling.testing;
+
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Stands in for the sshd of booting instances (ec2.ssh.port in the test ec2.properties), listening
+// on every loopback address so each instance can have its own 127.0.0.x. Logins are refused until
+// sshd "comes up", and the cloud-init check reports an instance as booted once its boot delay has
+// passed since it was first asked about. Any other command prints nothing, "false" exits with 1.
+public class StubSSHServer implements AutoCloseable {
+    public static final int PORT = 18122;
+    public static final String USERNAME = "test";
+    public static final String PASSWORD = "test";
+
+    private static final Pattern BOOT_FINISHED = Pattern.compile("/var/lib/cloud/instances/([^/]+)/boot-finished");
+
+    private final SshServer server;
+    private final Map<String, Long> firstAsked = new ConcurrentHashMap<>();
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicInteger logins = new AtomicInteger();
+    private final AtomicInteger refusedLogins = new AtomicInteger();
+    private volatile long acceptLoginsAt;
+    private volatile long bootDelayMillis;
+
+    public StubSSHServer() throws IOException {
+        server = SshServer.setUpDefaultServer();
+        server.setHost("0.0.0.0");
+        server.setPort(PORT);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        server.setPasswordAuthenticator((username, password, session) -> {
+            if (System.currentTimeMillis() < acceptLoginsAt) {
+                refusedLogins.incrementAndGet();
+                return false;
+            }
+            boolean accepted = USERNAME.equals(username) && PASSWORD.equals(password);
+            if (accepted) {
+                logins.incrementAndGet();
+            }
+            return accepted;
+        });
+        server.setCommandFactory(StubCommand::new);
+        server.addSessionListener(new SessionListener() {
+            @Override
+            public void sessionCreated(Session session) {
+                sessions.incrementAndGet();
+            }
+
+            @Override
+            public void sessionEvent(Session session, Event event) {}
+
+            @Override
+            public void sessionException(Session session, Throwable t) {}
+
+            @Override
+            public void sessionClosed(Session session) {}
+        });
+        server.start();
+    }
+
+    // sshd is up but refuses logins for this long, the way it does while an instance boots
+    public void refuseLoginsFor(long millis) {
+        acceptLoginsAt = System.currentTimeMillis() + millis;
+    }
+
+    public void setBootDelayMillis(long bootDelayMillis) {
+        this.bootDelayMillis = bootDelayMillis;
+    }
+
+    // TCP connections (SSH transports) opened so far
+    public int getSessions() {
+        return sessions.get();
+    }
+
+    public int getLogins() {
+        return logins.get();
+    }
+
+    public int getRefusedLogins() {
+        return refusedLogins.get();
+    }
+
+    public List<String> getCommands() {
+        return commands;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop(true);
+    }
+
+    private class StubCommand implements Command {
+        private final String command;
+        private OutputStream out;
+        private ExitCallback exit;
+
+        StubCommand(String command) {
+            this.command = command;
+        }
+
+        @Override
+        public void setInputStream(InputStream in) {}
+
+        @Override
+        public void setOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void setErrorStream(OutputStream err) {}
+
+        @Override
+        public void setExitCallback(ExitCallback exit) {
+            this.exit = exit;
+        }
+
+        @Override
+        public void start(Environment env) throws IOException {
+            commands.add(command);
+            int status = 0;
+            Matcher matcher = BOOT_FINISHED.matcher(command);
+            if (matcher.find()) {
+                long asked = firstAsked.computeIfAbsent(matcher.group(1), id -> System.currentTimeMillis());
+                boolean booted = System.currentTimeMillis() - asked >= bootDelayMillis;
+                out.write((booted ? "true\n" : "false\n").getBytes(StandardCharsets.UTF_8));
+            } else if ("false".equals(command.trim())) {
+                status = 1;
+            }
+            out.flush();
+            exit.onExit(status);
+        }
+
+        @Override
+        public void destroy() {}
+    }
+}
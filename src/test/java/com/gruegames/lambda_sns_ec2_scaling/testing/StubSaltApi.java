@@ -0,0 +1,165 @@
+package com.gruegames.lambda_sns_ec2_scaling.testing;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Stands in for salt-api on a local port (salt.url in the test salt.properties). /login hands out
+// tokens, / takes a JSON lowstate list and answers with one return per chunk: the chunk's fun
+// and its args joined by spaces, or for key.list_all the keys set with setKeys. Counts logins,
+// lowstate requests and client connections.
+public class StubSaltApi implements AutoCloseable {
+    public static final int PORT = 18181;
+
+    private static final Gson gson = new Gson();
+
+    private final HttpServer server;
+    private final Set<String> tokens = ConcurrentHashMap.newKeySet();
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+    private final List<List<String>> requests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger logins = new AtomicInteger();
+    private volatile long latencyMillis;
+    private volatile List<String> acceptedKeys = Collections.emptyList();
+    private volatile List<String> pendingKeys = Collections.emptyList();
+
+    public StubSaltApi() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", PORT), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/login", this::login);
+        server.createContext("/", this::lowstate);
+        server.start();
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void setKeys(List<String> accepted, List<String> pending) {
+        acceptedKeys = new ArrayList<>(accepted);
+        pendingKeys = new ArrayList<>(pending);
+    }
+
+    // every token handed out so far now gets a 401, the way a restarted salt-api behaves
+    public void revokeTokens() {
+        tokens.clear();
+    }
+
+    public int getLogins() {
+        return logins.get();
+    }
+
+    // one entry per lowstate request, holding what each chunk returned
+    public List<List<String>> getRequests() {
+        return new ArrayList<>(requests);
+    }
+
+    public int getConnections() {
+        return connections.size();
+    }
+
+    public void reset() {
+        logins.set(0);
+        requests.clear();
+        connections.clear();
+        acceptedKeys = Collections.emptyList();
+        pendingKeys = Collections.emptyList();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void login(HttpExchange exchange) throws IOException {
+        connections.add(exchange.getRemoteAddress());
+        StubEC2Server.read(exchange.getRequestBody());
+        String token = "token-" + logins.incrementAndGet();
+        tokens.add(token);
+
+        JsonObject login = new JsonObject();
+        login.addProperty("token", token);
+        login.addProperty("start", System.currentTimeMillis() / 1000.0);
+        login.addProperty("expire", (System.currentTimeMillis() + TimeUnit.HOURS.toMillis(12)) / 1000.0);
+        login.addProperty("user", "test");
+        login.addProperty("eauth", "pam");
+        JsonObject body = new JsonObject();
+        JsonArray returns = new JsonArray();
+        returns.add(login);
+        body.add("return", returns);
+        json(exchange, 200, body.toString());
+    }
+
+    private void lowstate(HttpExchange exchange) throws IOException {
+        connections.add(exchange.getRemoteAddress());
+        String request = StubEC2Server.read(exchange.getRequestBody());
+        if (!tokens.contains(String.valueOf(exchange.getRequestHeaders().getFirst("X-Auth-Token")))) {
+            json(exchange, 401, "{\"status\": 401, \"return\": \"Please log in\"}");
+            return;
+        }
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<String> results = new ArrayList<>();
+        JsonArray returns = new JsonArray();
+        for (JsonElement element : gson.fromJson(request, JsonArray.class)) {
+            JsonObject chunk = element.getAsJsonObject();
+            StringBuilder result = new StringBuilder(chunk.get("fun").getAsString());
+            if (chunk.has("arg")) {
+                for (JsonElement arg : chunk.getAsJsonArray("arg")) {
+                    result.append(' ').append(arg.getAsString());
+                }
+            }
+            if (chunk.has("match")) {
+                result.append(" match=").append(chunk.get("match").getAsString());
+            }
+            results.add(result.toString());
+            returns.add("key.list_all".equals(chunk.get("fun").getAsString()) ? keyList() : new JsonPrimitive(result.toString()));
+        }
+        requests.add(Collections.unmodifiableList(results));
+
+        JsonObject body = new JsonObject();
+        body.add("return", returns);
+        json(exchange, 200, body.toString());
+    }
+
+    private JsonObject keyList() {
+        JsonObject keys = new JsonObject();
+        keys.add("minions", gson.toJsonTree(acceptedKeys));
+        keys.add("minions_pre", gson.toJsonTree(pendingKeys));
+        JsonObject data = new JsonObject();
+        data.addProperty("success", true);
+        data.add("return", keys);
+        JsonObject wheel = new JsonObject();
+        wheel.add("data", data);
+        return wheel;
+    }
+
+    private static void json(HttpExchange exchange, int status, String body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+}
@@ -0,0 +1,165 @@
+package com.gruegames.lambda_sns_ec2_scaling.worker;
+
+import com.gruegames.lambda_sns_ec2_scaling.ec2.EC2Instance;
+import com.gruegames.lambda_sns_ec2_scaling.ec2.EC2InstanceHandler;
+import com.gruegames.lambda_sns_ec2_scaling.journal.EventJournals;
+import com.gruegames.lambda_sns_ec2_scaling.journal.FileEventJournal;
+import com.gruegames.lambda_sns_ec2_scaling.testing.SNSSigner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// The worker against an in-memory queue and a handler that takes its time: the message stays
+// invisible while it is handled, and a second copy arriving meanwhile is released, not deleted
+public class WorkerTest {
+    private static final long LAUNCH_MILLIS = 600;
+    private static final long HEARTBEAT_MILLIS = 100;
+
+    private static SNSSigner signer;
+
+    private final RecordingQueue queue = new RecordingQueue();
+    private Worker worker;
+    private Thread runner;
+
+    public static class SlowInstance implements EC2Instance {
+        @Override
+        public void create(String instanceId, String availabilityZone) {
+            try {
+                Thread.sleep(LAUNCH_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void terminate(String instanceId, String availabilityZone) {}
+
+        @Override
+        public boolean processTerminateOnFail() {
+            return false;
+        }
+    }
+
+    // hands out what was offered, and keeps every acknowledgement in order as "action id"
+    private static class RecordingQueue implements MessageQueue {
+        final BlockingQueue<QueueMessage> pending = new LinkedBlockingQueue<>();
+        final List<String> acks = new CopyOnWriteArrayList<>();
+
+        @Override
+        public List<QueueMessage> receive(int maxMessages, int waitSeconds) {
+            List<QueueMessage> received = new ArrayList<>();
+            try {
+                QueueMessage message = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (message != null) {
+                    received.add(message);
+                    pending.drainTo(received, maxMessages - 1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return received;
+        }
+
+        @Override
+        public void delete(QueueMessage message) {
+            acks.add("delete " + message.id);
+        }
+
+        @Override
+        public void release(QueueMessage message) {
+            acks.add("release " + message.id);
+        }
+
+        @Override
+        public void extend(QueueMessage message, int timeoutSeconds) {
+            acks.add("extend " + message.id);
+        }
+    }
+
+    @BeforeClass
+    public static void registerHandler() throws Exception {
+        signer = new SNSSigner();
+        EventJournals.setJournal(new FileEventJournal(Files.createTempFile("events", ".journal").toFile()));
+        EC2InstanceHandler.register(SlowInstance.class);
+    }
+
+    @Before
+    public void startWorker() {
+        worker = new Worker(queue, 2, HEARTBEAT_MILLIS);
+        runner = new Thread(worker::run, "worker-test");
+        runner.start();
+    }
+
+    @After
+    public void stopWorker() throws InterruptedException {
+        worker.stop();
+        runner.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    @Test
+    public void longLaunchKeepsItsMessageInvisible() throws Exception {
+        queue.pending.add(new QueueMessage("m-1", "handle-1", launch("i-0a000001", "a1b2c3d4-0000-0000-0000-000000000001"), 1));
+        awaitAcks(1, "delete");
+        // nothing may extend the message once it is gone
+        Thread.sleep(2 * HEARTBEAT_MILLIS);
+
+        List<String> acks = queue.acks;
+        assertEquals("delete m-1", acks.get(acks.size() - 1));
+        assertTrue(String.valueOf(acks), acks.size() >= 1 + (int) (LAUNCH_MILLIS / HEARTBEAT_MILLIS) / 2);
+        for (String ack : acks.subList(0, acks.size() - 1)) {
+            assertEquals("extend m-1", ack);
+        }
+    }
+
+    @Test
+    public void duplicateOfARunningLaunchIsReleased() throws Exception {
+        // SNS delivered the launch twice, both copies are taken while the first is still running
+        String body = launch("i-0b000001", "a1b2c3d4-0000-0000-0000-000000000002");
+        queue.pending.add(new QueueMessage("m-2", "handle-2", body, 1));
+        queue.pending.add(new QueueMessage("m-3", "handle-3", body, 1));
+        awaitAcks(2, "delete", "release");
+
+        assertEquals(1, count("delete"));
+        assertEquals(1, count("release"));
+    }
+
+    private static String launch(String instanceId, String activityId) throws Exception {
+        return signer.envelope(signer.notification(String.format("{\"Event\":\"autoscaling:EC2_INSTANCE_LAUNCH\"," +
+                "\"EC2InstanceId\":\"%s\",\"ActivityId\":\"%s\",\"Details\":{\"Availability Zone\":\"us-east-1a\"}}",
+                instanceId, activityId), "1"));
+    }
+
+    private void awaitAcks(int expected, String... actions) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (count(actions) < expected) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(String.format("only got %s", queue.acks));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private long count(String... actions) {
+        return queue.acks.stream().filter(ack -> {
+            for (String action : actions) {
+                if (ack.startsWith(action + " ")) {
+                    return true;
+                }
+            }
+            return false;
+        }).count();
+    }
+}